@@ -27,6 +27,8 @@
 package uk.ac.sanger.cgp.dbcon.config;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Abstraction of the pooling configuration code away from the core Pool
@@ -56,14 +58,103 @@ public class Config implements Serializable, Cloneable {
   /** When the pool is exhausted, the pool grows */
   public static final byte GROW = 2;
 
+  /**
+   * When the pool is exhausted, up to {@link #getBurstConnections()}
+   * temporary connections are opened above max active and closed when they
+   * are returned; beyond that the user waits as with {@link #BLOCK}. Only
+   * the dbcon engine supports this; the dbcp engine treats it as
+   * {@link #BLOCK}
+   */
+  public static final byte BURST = 3;
+
+  /** Borrowing priority for batch work which can wait */
+  public static final int PRIORITY_LOW = 0;
+
+  /** Borrowing priority used when none is given */
+  public static final int PRIORITY_NORMAL = 1;
+
+  /** Borrowing priority for interactive requests */
+  public static final int PRIORITY_HIGH = 2;
+
+  /** Pool engine built on commons-dbcp and commons-pool; the default */
+  public static final String ENGINE_DBCP = "dbcp";
+
+  /** The native lock-free dbcon pool engine */
+  public static final String ENGINE_DBCON = "dbcon";
+
+  /**
+   * Connections are validated by running the validation query; the default
+   */
+  public static final String VALIDATION_QUERY = "query";
+
+  /**
+   * Connections are validated with the driver's JDBC 4 Connection.isValid()
+   * ping, falling back to the query for drivers which lack it
+   */
+  public static final String VALIDATION_ISVALID = "isvalid";
+
+  /** Connections are always rolled back when returned to the pool */
+  public static final String RESET_ALWAYS = "always";
+
+  /**
+   * Connections are rolled back on return only when a statement has run
+   * since the last commit or rollback; the default
+   */
+  public static final String RESET_IF_DIRTY = "if-dirty";
+
+  /**
+   * Connections are never reset on return; outstanding work is rolled back
+   * when the connection is next borrowed
+   */
+  public static final String RESET_NEVER = "never";
+
+  /**
+   * Read-only connections go to the read URL with the fewest borrowed
+   * connections; the default
+   */
+  public static final String READ_LEAST_ACTIVE = "leastactive";
+
+  /**
+   * Read-only connections go to the read URL with the lowest observed borrow
+   * and validation latency weighted by its borrowed connections
+   */
+  public static final String READ_LATENCY = "latency";
+
+  /**
+   * Milliseconds an eviction run may spend validating idle connections when
+   * no evict budget is configured
+   */
+  public static final long DEFAULT_EVICT_BUDGET = 5000;
+
 	/* PRIMATIVE DECLARATIONS */
   private int maxActive = 0;
   private int maxIdle = 0;
+  private int minIdle = 0;
   private int numTestsPerEvictionRun = 0;
   private byte exhausted = 0;
   private long maxWait = 0;
   private long timeBetweenEvictRun = 0;
   private long minEvictTime = 0;
+  private long validationInterval = 0;
+  private long maxLifetime = 0;
+  private int failoverThreshold = 3;
+  private long failbackInterval = 30000;
+  private int standbyConnections = 0;
+  private int breakerThreshold = 0;
+  private int concurrentEvictTests = 1;
+  private long evictBudget = DEFAULT_EVICT_BUDGET;
+  private int burstConnections = 0;
+  private int reservedHigh = 0;
+  private int reservedNormal = 0;
+  private long priorityAging = 1000;
+  private int maxWaiters = 0;
+  private long maxExpectedWait = 0;
+  private int adaptiveCeiling = 0;
+  private int adaptiveFloor = 1;
+  private long targetWait = 50;
+  private long resizeInterval = 10000;
+  private long breakerProbeInterval = 5000;
+  private int validationTimeout = 5;
 	private int cachedPreparedStatements = 0;
 
   private boolean testOnBorrow = false;
@@ -79,6 +170,12 @@ public class Config implements Serializable, Cloneable {
   private String validationQuery = null;
   private String driver = null;
 	private String workingUrl = null;
+	private String engine = ENGINE_DBCP;
+	private String resetPolicy = RESET_IF_DIRTY;
+	private String validationMode = VALIDATION_QUERY;
+	private String readBalancing = READ_LEAST_ACTIVE;
+	private List readUrls = new ArrayList();
+	private String fatalErrorClassifier = null;
 
 	/** Creates a new instance of Config */
 	private Config() {
@@ -237,6 +334,33 @@ public class Config implements Serializable, Cloneable {
 			testOnBorrow, testOnReturn, timeBetweenEvictRun,
 				numTestsPerEvictionRun, minEvictTime, testWhileIdle, url,
 					username, password, name, validationQuery, driver, backupUrl, cachedPreparedStatements);
+		clone.setMinIdle(minIdle);
+		clone.setValidationInterval(validationInterval);
+		clone.setMaxLifetime(maxLifetime);
+		clone.setFailoverThreshold(failoverThreshold);
+		clone.setFailbackInterval(failbackInterval);
+		clone.setStandbyConnections(standbyConnections);
+		clone.setBreakerThreshold(breakerThreshold);
+		clone.setBreakerProbeInterval(breakerProbeInterval);
+		clone.setConcurrentEvictTests(concurrentEvictTests);
+		clone.setEvictBudget(evictBudget);
+		clone.setBurstConnections(burstConnections);
+		clone.setReservedHigh(reservedHigh);
+		clone.setReservedNormal(reservedNormal);
+		clone.setPriorityAging(priorityAging);
+		clone.setMaxWaiters(maxWaiters);
+		clone.setMaxExpectedWait(maxExpectedWait);
+		clone.setAdaptiveCeiling(adaptiveCeiling);
+		clone.setAdaptiveFloor(adaptiveFloor);
+		clone.setTargetWait(targetWait);
+		clone.setResizeInterval(resizeInterval);
+		clone.setValidationMode(validationMode);
+		clone.setValidationTimeout(validationTimeout);
+		clone.setEngine(engine);
+		clone.setResetPolicy(resetPolicy);
+		clone.setReadUrls(new ArrayList(readUrls));
+		clone.setReadBalancing(readBalancing);
+		clone.setFatalErrorClassifier(fatalErrorClassifier);
 
 		return clone;
 	}
@@ -273,6 +397,18 @@ public class Config implements Serializable, Cloneable {
     this.maxIdle=maxIdle;
   }
 
+  /**
+   * The number of idle connections a pool is filled to when warmed up and
+   * kept topped up to in the background. Defaults to 0
+   */
+  public int getMinIdle() {
+    return minIdle;
+  }
+
+  public void setMinIdle(int minIdle) {
+    this.minIdle=minIdle;
+  }
+
   public boolean isTestOnBorrow() {
     return testOnBorrow;
   }
@@ -313,6 +449,160 @@ public class Config implements Serializable, Cloneable {
     return minEvictTime;
   }
 
+  /**
+   * Number of idle connections validated at once during an eviction run.
+   * Only used by the dbcon engine. Defaults to 1 which validates them one
+   * after another
+   */
+  public int getConcurrentEvictTests() {
+    return concurrentEvictTests;
+  }
+
+  public void setConcurrentEvictTests(int concurrentEvictTests) {
+    this.concurrentEvictTests=concurrentEvictTests;
+  }
+
+  /**
+   * Milliseconds an eviction run may spend validating idle connections.
+   * Connections not reached in time are left for the next run. Only used by
+   * the dbcon engine. Defaults to {@link #DEFAULT_EVICT_BUDGET}; 0 or less
+   * means no budget, so a run validates every idle connection it selects
+   */
+  public long getEvictBudget() {
+    return evictBudget;
+  }
+
+  public void setEvictBudget(long evictBudget) {
+    this.evictBudget=evictBudget;
+  }
+
+  /**
+   * Number of temporary connections the pool may open above max active when
+   * the exhausted action is {@link #BURST}. Defaults to 0
+   */
+  public int getBurstConnections() {
+    return burstConnections;
+  }
+
+  public void setBurstConnections(int burstConnections) {
+    this.burstConnections=burstConnections;
+  }
+
+  /**
+   * Number of the max active connections only {@link #PRIORITY_HIGH}
+   * borrowers may use. Only used by the dbcon engine. Defaults to 0
+   */
+  public int getReservedHigh() {
+    return reservedHigh;
+  }
+
+  public void setReservedHigh(int reservedHigh) {
+    this.reservedHigh=reservedHigh;
+  }
+
+  /**
+   * Number of the max active connections {@link #PRIORITY_LOW} borrowers
+   * may not use, on top of those reserved for {@link #PRIORITY_HIGH}. Only
+   * used by the dbcon engine. Defaults to 0
+   */
+  public int getReservedNormal() {
+    return reservedNormal;
+  }
+
+  public void setReservedNormal(int reservedNormal) {
+    this.reservedNormal=reservedNormal;
+  }
+
+  /**
+   * Milliseconds a waiting borrower must wait for its priority to rise by one
+   * class so it is not starved by higher ones. Reserved connections stay
+   * reserved. Only used by the dbcon engine. Defaults to 1000; 0 turns aging
+   * off
+   */
+  public long getPriorityAging() {
+    return priorityAging;
+  }
+
+  public void setPriorityAging(long priorityAging) {
+    this.priorityAging=priorityAging;
+  }
+
+  /**
+   * The most borrowers which may wait for a connection at once when the pool
+   * is exhausted; any more are refused straight away. Defaults to 0 which
+   * means no limit
+   */
+  public int getMaxWaiters() {
+    return maxWaiters;
+  }
+
+  public void setMaxWaiters(int maxWaiters) {
+    this.maxWaiters=maxWaiters;
+  }
+
+  /**
+   * Borrowers which would have to wait longer than this many milliseconds,
+   * estimated from how long connections have recently been held, are refused
+   * straight away instead of joining the wait. Defaults to 0 which turns the
+   * estimate off
+   */
+  public long getMaxExpectedWait() {
+    return maxExpectedWait;
+  }
+
+  public void setMaxExpectedWait(long maxExpectedWait) {
+    this.maxExpectedWait=maxExpectedWait;
+  }
+
+  /**
+   * The largest max active size adaptive sizing may grow the pool to.
+   * Defaults to 0 which turns adaptive sizing off and keeps max active fixed
+   *
+   * @see uk.ac.sanger.cgp.dbcon.pooling.AdaptiveSizer
+   */
+  public int getAdaptiveCeiling() {
+    return adaptiveCeiling;
+  }
+
+  public void setAdaptiveCeiling(int adaptiveCeiling) {
+    this.adaptiveCeiling=adaptiveCeiling;
+  }
+
+  /**
+   * The smallest max active size adaptive sizing may shrink the pool to.
+   * Defaults to 1
+   */
+  public int getAdaptiveFloor() {
+    return adaptiveFloor;
+  }
+
+  public void setAdaptiveFloor(int adaptiveFloor) {
+    this.adaptiveFloor=adaptiveFloor;
+  }
+
+  /**
+   * The 95th percentile borrow wait, in milliseconds, above which adaptive
+   * sizing grows the pool. Defaults to 50
+   */
+  public long getTargetWait() {
+    return targetWait;
+  }
+
+  public void setTargetWait(long targetWait) {
+    this.targetWait=targetWait;
+  }
+
+  /**
+   * Milliseconds between adaptive sizing decisions. Defaults to 10000
+   */
+  public long getResizeInterval() {
+    return resizeInterval;
+  }
+
+  public void setResizeInterval(long resizeInterval) {
+    this.resizeInterval=resizeInterval;
+  }
+
   public boolean isTestWhileIdle() {
     return testWhileIdle;
   }
@@ -377,6 +667,31 @@ public class Config implements Serializable, Cloneable {
     this.backupUrl=backupUrl;
   }
 
+	/**
+	 * URLs of read replicas of the database which serve read-only connections.
+	 * Empty when none are configured
+	 */
+	public List getReadUrls() {
+    return readUrls;
+  }
+
+	public void setReadUrls(List readUrls) {
+    this.readUrls=readUrls;
+  }
+
+  /**
+   * How read-only connections are spread over the read URLs. One of
+   * {@link #READ_LEAST_ACTIVE} or {@link #READ_LATENCY}; defaults to
+   * {@link #READ_LEAST_ACTIVE}
+   */
+  public String getReadBalancing() {
+    return readBalancing;
+  }
+
+  public void setReadBalancing(String readBalancing) {
+    this.readBalancing=readBalancing;
+  }
+
 	public String getWorkingUrl() {
     return workingUrl;
   }
@@ -393,6 +708,168 @@ public class Config implements Serializable, Cloneable {
     this.cachedPreparedStatements=cachedPreparedStatements;
   }
 
+  /**
+   * Milliseconds for which a connection that was validated or returned after
+   * use is trusted without running the validation query again. Defaults to
+   * 0 which validates every time the test flags ask for it
+   */
+  public long getValidationInterval() {
+    return validationInterval;
+  }
+
+  public void setValidationInterval(long validationInterval) {
+    this.validationInterval=validationInterval;
+  }
+
+  /**
+   * Milliseconds after which a physical connection is closed and replaced.
+   * Each connection is retired up to a tenth of this earlier at random so
+   * connections opened together are not all replaced together. Should be
+   * set below any server side idle timeout. Defaults to 0 which never
+   * retires connections on age
+   */
+  public long getMaxLifetime() {
+    return maxLifetime;
+  }
+
+  public void setMaxLifetime(long maxLifetime) {
+    this.maxLifetime=maxLifetime;
+  }
+
+  /**
+   * Number of consecutive failures to open a connection to the primary URL
+   * after which new connections are opened against the backup URL. Only
+   * used when a backup URL is given. Defaults to 3; 0 disables switching
+   * once the pool has been created
+   */
+  public int getFailoverThreshold() {
+    return failoverThreshold;
+  }
+
+  public void setFailoverThreshold(int failoverThreshold) {
+    this.failoverThreshold=failoverThreshold;
+  }
+
+  /**
+   * Milliseconds between checks of the primary URL while a pool is using its
+   * backup URL. The pool switches back as soon as a check succeeds. Defaults
+   * to 30000
+   */
+  public long getFailbackInterval() {
+    return failbackInterval;
+  }
+
+  public void setFailbackInterval(long failbackInterval) {
+    this.failbackInterval=failbackInterval;
+  }
+
+  /**
+   * Number of validated connections kept open to the backup URL while the
+   * pool uses its primary URL, so that a failover does not have to wait for
+   * new connections to be made. They are checked every failback interval
+   * and do not count against max connections until they are used. Defaults
+   * to 0
+   */
+  public int getStandbyConnections() {
+    return standbyConnections;
+  }
+
+  public void setStandbyConnections(int standbyConnections) {
+    this.standbyConnections=standbyConnections;
+  }
+
+  /**
+   * Number of consecutive failures to create or validate a connection after
+   * which the pool's circuit breaker opens and borrowers are refused straight
+   * away. Defaults to 0 which disables the breaker
+   */
+  public int getBreakerThreshold() {
+    return breakerThreshold;
+  }
+
+  public void setBreakerThreshold(int breakerThreshold) {
+    this.breakerThreshold=breakerThreshold;
+  }
+
+  /**
+   * Milliseconds between attempts to connect to the database while the
+   * circuit breaker is open. The breaker closes on the first attempt which
+   * opens and validates a connection. Defaults to 5000
+   */
+  public long getBreakerProbeInterval() {
+    return breakerProbeInterval;
+  }
+
+  public void setBreakerProbeInterval(long breakerProbeInterval) {
+    this.breakerProbeInterval=breakerProbeInterval;
+  }
+
+  /**
+   * How connections are validated. One of {@link #VALIDATION_QUERY} or
+   * {@link #VALIDATION_ISVALID}; defaults to {@link #VALIDATION_QUERY}
+   */
+  public String getValidationMode() {
+    return validationMode;
+  }
+
+  public void setValidationMode(String validationMode) {
+    this.validationMode=validationMode;
+  }
+
+  /**
+   * Seconds given to Connection.isValid() when using
+   * {@link #VALIDATION_ISVALID}. Defaults to 5
+   */
+  public int getValidationTimeout() {
+    return validationTimeout;
+  }
+
+  public void setValidationTimeout(int validationTimeout) {
+    this.validationTimeout=validationTimeout;
+  }
+
+  /**
+   * The name of the pool engine to use for this synonym. Defaults to
+   * {@link #ENGINE_DBCP}
+   *
+   * @see uk.ac.sanger.cgp.dbcon.pooling.PoolEngine#getName()
+   */
+  public String getEngine() {
+    return engine;
+  }
+
+  public void setEngine(String engine) {
+    this.engine=engine;
+  }
+
+  /**
+   * How a connection's transaction is reset when it is returned to the pool.
+   * One of {@link #RESET_ALWAYS}, {@link #RESET_IF_DIRTY} or
+   * {@link #RESET_NEVER}; defaults to {@link #RESET_IF_DIRTY}
+   */
+  public String getResetPolicy() {
+    return resetPolicy;
+  }
+
+  public void setResetPolicy(String resetPolicy) {
+    this.resetPolicy=resetPolicy;
+  }
+
+  /**
+   * The class name of the
+   * {@link uk.ac.sanger.cgp.dbcon.pooling.FatalErrorClassifier} which decides
+   * whether an error from a borrowed connection means every connection in the
+   * pool is dead. Null uses
+   * {@link uk.ac.sanger.cgp.dbcon.pooling.SqlStateFatalErrorClassifier}
+   */
+  public String getFatalErrorClassifier() {
+    return fatalErrorClassifier;
+  }
+
+  public void setFatalErrorClassifier(String fatalErrorClassifier) {
+    this.fatalErrorClassifier=fatalErrorClassifier;
+  }
+
 	public String toString() {
 
 		StringBuffer sb = new StringBuffer();
@@ -402,6 +879,8 @@ public class Config implements Serializable, Cloneable {
 		sb.append("url: "+url+"\n");
 		sb.append("backupUrl: "+backupUrl+"\n");
 		sb.append("workingUrl: "+workingUrl+"\n");
+		sb.append("readUrls: "+readUrls+"\n");
+		sb.append("readBalancing: "+readBalancing+"\n");
 		sb.append("username: "+username+"\n");
 		sb.append("password: "+password+"\n");
 		sb.append("validationQuery: "+validationQuery+"\n");
@@ -409,13 +888,38 @@ public class Config implements Serializable, Cloneable {
 		sb.append("exhausted: "+exhausted+"\n");
 		sb.append("maxWait: "+maxWait+"\n");
 		sb.append("maxIdle: "+maxIdle+"\n");
+		sb.append("minIdle: "+minIdle+"\n");
 		sb.append("testOnBorrow: "+testOnBorrow+"\n");
 		sb.append("testOnReturn: "+testOnReturn+"\n");
 		sb.append("timeBetweenEvictRun: "+timeBetweenEvictRun+"\n");
 		sb.append("numTestsPerEvictionRun: "+numTestsPerEvictionRun+"\n");
 		sb.append("minEvictTime: "+minEvictTime+"\n");
 		sb.append("testWhileIdle: "+testWhileIdle+"\n");
+		sb.append("validationInterval: "+validationInterval+"\n");
+		sb.append("maxLifetime: "+maxLifetime+"\n");
+		sb.append("failoverThreshold: "+failoverThreshold+"\n");
+		sb.append("failbackInterval: "+failbackInterval+"\n");
+		sb.append("standbyConnections: "+standbyConnections+"\n");
+		sb.append("breakerThreshold: "+breakerThreshold+"\n");
+		sb.append("breakerProbeInterval: "+breakerProbeInterval+"\n");
+		sb.append("concurrentEvictTests: "+concurrentEvictTests+"\n");
+		sb.append("evictBudget: "+evictBudget+"\n");
+		sb.append("burstConnections: "+burstConnections+"\n");
+		sb.append("reservedHigh: "+reservedHigh+"\n");
+		sb.append("reservedNormal: "+reservedNormal+"\n");
+		sb.append("priorityAging: "+priorityAging+"\n");
+		sb.append("maxWaiters: "+maxWaiters+"\n");
+		sb.append("maxExpectedWait: "+maxExpectedWait+"\n");
+		sb.append("adaptiveCeiling: "+adaptiveCeiling+"\n");
+		sb.append("adaptiveFloor: "+adaptiveFloor+"\n");
+		sb.append("targetWait: "+targetWait+"\n");
+		sb.append("resizeInterval: "+resizeInterval+"\n");
+		sb.append("validationMode: "+validationMode+"\n");
+		sb.append("validationTimeout: "+validationTimeout+"\n");
 		sb.append("cachedPreparedStatements: "+cachedPreparedStatements+"\n");
+		sb.append("engine: "+engine+"\n");
+		sb.append("resetPolicy: "+resetPolicy+"\n");
+		sb.append("fatalErrorClassifier: "+fatalErrorClassifier+"\n");
 
 		return sb.toString();
 	}
@@ -29,9 +29,11 @@ package uk.ac.sanger.cgp.dbcon.config;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
@@ -87,6 +89,7 @@ public class XMLConfigParser extends ConfigParser {
 					db = (Element)dbIterator.next();
 					Iterator subIter = db.getChildren().iterator();
 					Element el = null;
+					List readUrls = new ArrayList();
 
 					while(subIter.hasNext()) {
 						el = (Element)subIter.next();
@@ -100,12 +103,16 @@ public class XMLConfigParser extends ConfigParser {
 						//Generic DB backup url
 						else if(el.getName().equalsIgnoreCase("backupurl")) backupUrl = el.getText().trim();
 
+						//Read replica urls; any number may be given
+						else if(el.getName().equalsIgnoreCase("readurl")) readUrls.add(el.getText().trim());
+
 						//Individual pool definitions
 						else if(el.getName().equalsIgnoreCase("pool")) {
 							Config config = Config.createEmptyConfig();
 							config.setDriver(driver);
 							config.setUrl(url);
 							config.setBackupUrl(backupUrl);
+							config.setReadUrls(new ArrayList(readUrls));
 							config.setName(el.getAttributeValue("synonym").trim());
 
 							Iterator settingsIterator = el.getChildren().iterator();
@@ -167,6 +174,101 @@ public class XMLConfigParser extends ConfigParser {
 								else if(settings.getName().equalsIgnoreCase("cachedpreparedstatements")) {
 									config.setCachedPreparedStatements(parseLong(settings.getText().trim(), config.getName(), "cachedpreparedstatements").intValue() );
 								}
+
+								else if(settings.getName().equalsIgnoreCase("validationinterval")) {
+									config.setValidationInterval( parseLong(settings.getText().trim(), config.getName(), "validationinterval").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("validationmode")) config.setValidationMode(settings.getText().trim());
+
+								else if(settings.getName().equalsIgnoreCase("validationtimeout")) {
+									config.setValidationTimeout( parseLong(settings.getText().trim(), config.getName(), "validationtimeout").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("maxlifetime")) {
+									config.setMaxLifetime( parseLong(settings.getText().trim(), config.getName(), "maxlifetime").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("failoverthreshold")) {
+									config.setFailoverThreshold( parseLong(settings.getText().trim(), config.getName(), "failoverthreshold").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("failbackinterval")) {
+									config.setFailbackInterval( parseLong(settings.getText().trim(), config.getName(), "failbackinterval").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("standbyconnections")) {
+									config.setStandbyConnections( parseLong(settings.getText().trim(), config.getName(), "standbyconnections").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("breakerthreshold")) {
+									config.setBreakerThreshold( parseLong(settings.getText().trim(), config.getName(), "breakerthreshold").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("breakerprobeinterval")) {
+									config.setBreakerProbeInterval( parseLong(settings.getText().trim(), config.getName(), "breakerprobeinterval").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("concurrentevicttests")) {
+									config.setConcurrentEvictTests( parseLong(settings.getText().trim(), config.getName(), "concurrentevicttests").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("evictbudget")) {
+									//Defaults to Config.DEFAULT_EVICT_BUDGET when absent; 0 or less is unbounded
+									config.setEvictBudget( parseLong(settings.getText().trim(), config.getName(), "evictbudget").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("burstconnections")) {
+									config.setBurstConnections( parseLong(settings.getText().trim(), config.getName(), "burstconnections").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("reservedhigh")) {
+									config.setReservedHigh( parseLong(settings.getText().trim(), config.getName(), "reservedhigh").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("reservednormal")) {
+									config.setReservedNormal( parseLong(settings.getText().trim(), config.getName(), "reservednormal").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("priorityaging")) {
+									config.setPriorityAging( parseLong(settings.getText().trim(), config.getName(), "priorityaging").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("maxwaiters")) {
+									config.setMaxWaiters( parseLong(settings.getText().trim(), config.getName(), "maxwaiters").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("maxexpectedwait")) {
+									config.setMaxExpectedWait( parseLong(settings.getText().trim(), config.getName(), "maxexpectedwait").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("adaptiveceiling")) {
+									config.setAdaptiveCeiling( parseLong(settings.getText().trim(), config.getName(), "adaptiveceiling").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("adaptivefloor")) {
+									config.setAdaptiveFloor( parseLong(settings.getText().trim(), config.getName(), "adaptivefloor").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("targetwait")) {
+									config.setTargetWait( parseLong(settings.getText().trim(), config.getName(), "targetwait").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("resizeinterval")) {
+									config.setResizeInterval( parseLong(settings.getText().trim(), config.getName(), "resizeinterval").longValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("minidle")) {
+									config.setMinIdle( parseLong(settings.getText().trim(), config.getName(), "minidle").intValue() );
+								}
+
+								else if(settings.getName().equalsIgnoreCase("engine")) config.setEngine(settings.getText().trim());
+
+								else if(settings.getName().equalsIgnoreCase("resetpolicy")) config.setResetPolicy(settings.getText().trim());
+
+								else if(settings.getName().equalsIgnoreCase("readbalancing")) config.setReadBalancing(settings.getText().trim());
+
+								else if(settings.getName().equalsIgnoreCase("fatalerrorclassifier")) config.setFatalErrorClassifier(settings.getText().trim());
 							}
 							configs.put(config.getName(), config);
 						}
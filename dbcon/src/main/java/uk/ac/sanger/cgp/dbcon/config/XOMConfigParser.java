@@ -134,6 +134,7 @@ public class XOMConfigParser extends ConfigParser {
 					config.setDriver(xPathForSingleElementValue(poolElement.getParent(), "driver"));
 					config.setUrl(xPathForSingleElementValue(poolElement.getParent(), "url"));
 					config.setBackupUrl(xPathForSingleElementValue(poolElement.getParent(), "backupurl"));
+					config.setReadUrls(xPathForElementValues(poolElement.getParent(), "readurl"));
 					config.setUsername(xPathForSingleElementValue(poolElement, "username"));
 					config.setPassword(Obsfucator.decode(xPathForSingleElementValue(poolElement, "password")));
 					config.setValidationQuery(xPathForSingleElementValue(poolElement, "query"));
@@ -148,6 +149,61 @@ public class XOMConfigParser extends ConfigParser {
 					config.setMinEvictTime(parseLong(xPathForSingleElementValue(poolElement, "mintimeforevict"), config.getName(), "mintimeforevict").longValue());
 					config.setNumTestsPerEvictionRun(parseLong(xPathForSingleElementValue(poolElement, "numberofevicttests"), config.getName(), "numberofevicttests").intValue());
 					config.setCachedPreparedStatements(parseLong(xPathForSingleElementValue(poolElement, "cachedpreparedstatements"), config.getName(), "cachedpreparedstatements").intValue());
+
+					//Optional settings keep the Config defaults when not given
+					String engine = xPathForSingleElementValue(poolElement, "engine");
+					if(engine.length() > 0) config.setEngine(engine);
+					String minIdle = xPathForSingleElementValue(poolElement, "minidle");
+					if(minIdle.length() > 0) config.setMinIdle(parseLong(minIdle, config.getName(), "minidle").intValue());
+					String validationInterval = xPathForSingleElementValue(poolElement, "validationinterval");
+					if(validationInterval.length() > 0) config.setValidationInterval(parseLong(validationInterval, config.getName(), "validationinterval").longValue());
+					String validationMode = xPathForSingleElementValue(poolElement, "validationmode");
+					if(validationMode.length() > 0) config.setValidationMode(validationMode);
+					String validationTimeout = xPathForSingleElementValue(poolElement, "validationtimeout");
+					if(validationTimeout.length() > 0) config.setValidationTimeout(parseLong(validationTimeout, config.getName(), "validationtimeout").intValue());
+					String maxLifetime = xPathForSingleElementValue(poolElement, "maxlifetime");
+					if(maxLifetime.length() > 0) config.setMaxLifetime(parseLong(maxLifetime, config.getName(), "maxlifetime").longValue());
+					String failoverThreshold = xPathForSingleElementValue(poolElement, "failoverthreshold");
+					if(failoverThreshold.length() > 0) config.setFailoverThreshold(parseLong(failoverThreshold, config.getName(), "failoverthreshold").intValue());
+					String failbackInterval = xPathForSingleElementValue(poolElement, "failbackinterval");
+					if(failbackInterval.length() > 0) config.setFailbackInterval(parseLong(failbackInterval, config.getName(), "failbackinterval").longValue());
+					String standbyConnections = xPathForSingleElementValue(poolElement, "standbyconnections");
+					if(standbyConnections.length() > 0) config.setStandbyConnections(parseLong(standbyConnections, config.getName(), "standbyconnections").intValue());
+					String breakerThreshold = xPathForSingleElementValue(poolElement, "breakerthreshold");
+					if(breakerThreshold.length() > 0) config.setBreakerThreshold(parseLong(breakerThreshold, config.getName(), "breakerthreshold").intValue());
+					String breakerProbeInterval = xPathForSingleElementValue(poolElement, "breakerprobeinterval");
+					if(breakerProbeInterval.length() > 0) config.setBreakerProbeInterval(parseLong(breakerProbeInterval, config.getName(), "breakerprobeinterval").longValue());
+					String concurrentEvictTests = xPathForSingleElementValue(poolElement, "concurrentevicttests");
+					if(concurrentEvictTests.length() > 0) config.setConcurrentEvictTests(parseLong(concurrentEvictTests, config.getName(), "concurrentevicttests").intValue());
+					//Defaults to Config.DEFAULT_EVICT_BUDGET when absent; 0 or less is unbounded
+					String evictBudget = xPathForSingleElementValue(poolElement, "evictbudget");
+					if(evictBudget.length() > 0) config.setEvictBudget(parseLong(evictBudget, config.getName(), "evictbudget").longValue());
+					String burstConnections = xPathForSingleElementValue(poolElement, "burstconnections");
+					if(burstConnections.length() > 0) config.setBurstConnections(parseLong(burstConnections, config.getName(), "burstconnections").intValue());
+					String reservedHigh = xPathForSingleElementValue(poolElement, "reservedhigh");
+					if(reservedHigh.length() > 0) config.setReservedHigh(parseLong(reservedHigh, config.getName(), "reservedhigh").intValue());
+					String reservedNormal = xPathForSingleElementValue(poolElement, "reservednormal");
+					if(reservedNormal.length() > 0) config.setReservedNormal(parseLong(reservedNormal, config.getName(), "reservednormal").intValue());
+					String priorityAging = xPathForSingleElementValue(poolElement, "priorityaging");
+					if(priorityAging.length() > 0) config.setPriorityAging(parseLong(priorityAging, config.getName(), "priorityaging").longValue());
+					String maxWaiters = xPathForSingleElementValue(poolElement, "maxwaiters");
+					if(maxWaiters.length() > 0) config.setMaxWaiters(parseLong(maxWaiters, config.getName(), "maxwaiters").intValue());
+					String maxExpectedWait = xPathForSingleElementValue(poolElement, "maxexpectedwait");
+					if(maxExpectedWait.length() > 0) config.setMaxExpectedWait(parseLong(maxExpectedWait, config.getName(), "maxexpectedwait").longValue());
+					String adaptiveCeiling = xPathForSingleElementValue(poolElement, "adaptiveceiling");
+					if(adaptiveCeiling.length() > 0) config.setAdaptiveCeiling(parseLong(adaptiveCeiling, config.getName(), "adaptiveceiling").intValue());
+					String adaptiveFloor = xPathForSingleElementValue(poolElement, "adaptivefloor");
+					if(adaptiveFloor.length() > 0) config.setAdaptiveFloor(parseLong(adaptiveFloor, config.getName(), "adaptivefloor").intValue());
+					String targetWait = xPathForSingleElementValue(poolElement, "targetwait");
+					if(targetWait.length() > 0) config.setTargetWait(parseLong(targetWait, config.getName(), "targetwait").longValue());
+					String resizeInterval = xPathForSingleElementValue(poolElement, "resizeinterval");
+					if(resizeInterval.length() > 0) config.setResizeInterval(parseLong(resizeInterval, config.getName(), "resizeinterval").longValue());
+					String resetPolicy = xPathForSingleElementValue(poolElement, "resetpolicy");
+					if(resetPolicy.length() > 0) config.setResetPolicy(resetPolicy);
+					String readBalancing = xPathForSingleElementValue(poolElement, "readbalancing");
+					if(readBalancing.length() > 0) config.setReadBalancing(readBalancing);
+					String fatalErrorClassifier = xPathForSingleElementValue(poolElement, "fatalerrorclassifier");
+					if(fatalErrorClassifier.length() > 0) config.setFatalErrorClassifier(fatalErrorClassifier);
 				}
 				catch(DbConException e) {
 					throw new DbConException("Exception occured during config parsing. Runtime exception thrown as an unchecked exception", e);
@@ -175,6 +231,18 @@ public class XOMConfigParser extends ConfigParser {
 		return output.trim();
 	}
 
+	/**
+	 * Returns the trimmed values of every element matching the query
+	 */
+	private List xPathForElementValues(Node node, String query) {
+		List output = new ArrayList();
+		Nodes availNodes = node.query(query);
+		for(int i = 0; i < availNodes.size(); i++) {
+			output.add(((Element)availNodes.get(i)).getValue().trim());
+		}
+		return output;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
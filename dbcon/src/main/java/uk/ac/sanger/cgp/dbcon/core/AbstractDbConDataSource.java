@@ -35,9 +35,10 @@ import javax.sql.DataSource;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.ConnectionNotAvailableException;
 import uk.ac.sanger.cgp.dbcon.exceptions.DbConException;
 import uk.ac.sanger.cgp.dbcon.pooling.Pool;
-import uk.ac.sanger.cgp.dbcon.pooling.PooledDataSource;
 import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
 
 /**
@@ -53,6 +54,19 @@ import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
  * have impacts on other systems with locking out connections and causing the pool
  * to be filled.
  *
+ * <p>
+ * The Pool behind the synonym is looked up once and then cached. The cached
+ * copy is dropped whenever the generation of the backing
+ * {@link AbstractPools} changes, i.e. when a pool is destroyed or the pools
+ * are reset, so borrowing a connection does not normally touch the pool
+ * registry at all.
+ *
+ * <p>
+ * A data source can be given a borrowing priority, one of the
+ * Config.PRIORITY constants, so that for example batch jobs and interactive
+ * requests sharing a synonym can use separate data sources with different
+ * priorities. See {@link Pool#getConnection(int)}.
+ *
  * @author andrewyates
  * @author $Author$
  * @version $Revision$
@@ -64,12 +78,38 @@ public abstract class AbstractDbConDataSource implements DataSource {
 
   private final String name;
 
+  private final int priority;
+
+  private volatile CachedPool cachedPool = null;
+
+  /**
+   * Immutable pairing of a pool with the registry generation it was read at
+   */
+  private static final class CachedPool {
+    private final Pool pool;
+    private final long generation;
+
+    private CachedPool(Pool pool, long generation) {
+      this.pool = pool;
+      this.generation = generation;
+    }
+  }
+
   /**
    * Creates a new instance of PooledDataSource
    */
   public AbstractDbConDataSource(String name) {
+    this(name, Config.PRIORITY_NORMAL);
+  }
+
+  /**
+   * Creates a data source whose connections are borrowed at the given
+   * priority
+   */
+  public AbstractDbConDataSource(String name, int priority) {
     super();
     this.name = name;
+    this.priority = priority;
   }
 
   protected Log getLog() {
@@ -138,14 +178,19 @@ public abstract class AbstractDbConDataSource implements DataSource {
   }
 
   /**
-   * Gets a connection from the underling DataSource using the username and
-   * password specified at creation. Applies the settings specified by
-   * {@link DatabaseUtils#connectionSettings(Connection)}
+   * Gets a connection from the pool at this data source's priority through
+   * {@link Pool#borrowConnection(int)}, so the settings specified by
+   * {@link DatabaseUtils#connectionSettings(Connection)} are applied
    */
   public Connection getConnection() throws SQLException {
-    Connection conn = getDataSource().getConnection();
-    DatabaseUtils.connectionSettings(conn);
-    return conn;
+    try {
+      return getUnderlyingPool().borrowConnection(priority);
+    }
+    catch (ConnectionNotAvailableException e) {
+      SQLException sqle = new SQLException(e.getMessage());
+      sqle.initCause(e);
+      throw sqle;
+    }
   }
 
   /**
@@ -173,7 +218,9 @@ public abstract class AbstractDbConDataSource implements DataSource {
   protected abstract AbstractPools getBackingAbstractPoolsInstance();
 
   /**
-   * Finds the pool which is represented by the synonym given by this Object
+   * Finds the pool which is represented by the synonym given by this Object.
+   * The registry is only consulted when there is no cached pool or the cached
+   * one is from an older generation of the backing pools.
    *
    * @throws SQLException
    *           If any DbConException is detected. This is logged here and
@@ -181,8 +228,19 @@ public abstract class AbstractDbConDataSource implements DataSource {
    *           not support this
    */
   protected Pool getUnderlyingPool() throws SQLException {
+    AbstractPools pools = getBackingAbstractPoolsInstance();
+    // Read the generation first so a destroy racing this lookup is noticed
+    // on the next call
+    long generation = pools.getGeneration();
+    CachedPool cached = cachedPool;
+    if (cached != null && cached.generation == generation) {
+      return cached.pool;
+    }
+
     try {
-      return getBackingAbstractPoolsInstance().getPool(getName());
+      Pool pool = pools.getPool(getName());
+      cachedPool = new CachedPool(pool, generation);
+      return pool;
     }
     catch (DbConException e) {
       if (getLog().isErrorEnabled()) {
@@ -201,50 +259,41 @@ public abstract class AbstractDbConDataSource implements DataSource {
   }
 
   /**
-   * Tests if the submitted DataSource is a PooledDataSource and if it is backed
-   * by the same Pool. This is enough to test equality as we hold only one
-   * instance underlying the pools here so two hashcodes from the same synonym
-   * should be equal.
+   * The priority connections are borrowed at
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * Tests if the submitted DataSource is of the same type and uses the same
+   * synonym and priority against the same backing pools. This is enough to test equality
+   * as there is only one pool per synonym in an {@link AbstractPools} so both
+   * would be backed by the same Pool. Neither data source's pool is looked
+   * up or created.
    */
   public boolean equals(Object obj) {
     boolean equality = false;
 
     if (this.getClass().isInstance(obj)) {
-      PooledDataSource pds = (PooledDataSource) obj;
-      try {
-        equality = pds.getUnderlyingPool().equals(this.getUnderlyingPool());
-      }
-      catch (SQLException e) {
-        if (getLog().isErrorEnabled())
-          getLog().error("Could not compare pools together. Equality is false",
-              e);
-      }
+      AbstractDbConDataSource ds = (AbstractDbConDataSource) obj;
+      equality = ds.getClass().equals(this.getClass())
+          && ds.getBackingAbstractPoolsInstance() == this
+              .getBackingAbstractPoolsInstance()
+          && ds.getPriority() == getPriority()
+          && (getName() == null ? ds.getName() == null : getName().equals(
+              ds.getName()));
     }
 
     return equality;
   }
 
   /**
-   * This is taken as being the underlying Pool's hashcode. This is enough to
-   * get the hashcode as we hold only one instance underlying the pools here so
-   * two hashcodes from the same synonym should be equal.
+   * Taken from the synonym which is consistent with {@link #equals(Object)}
+   * and does not need the underlying pool.
    */
   public int hashCode() {
-
-    int hashCodeReturn = 0;
-
-    try {
-      hashCodeReturn = this.getUnderlyingPool().hashCode();
-    }
-    catch (SQLException e) {
-      if (getLog().isErrorEnabled())
-        getLog()
-            .error(
-                "Could not retrieve underlying pool for hashcode. Hashcode is 0",
-                e);
-    }
-
-    return hashCodeReturn;
+    return (getName() == null) ? 0 : getName().hashCode();
   }
 
 }
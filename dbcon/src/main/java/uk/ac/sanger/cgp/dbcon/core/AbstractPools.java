@@ -28,19 +28,27 @@ package uk.ac.sanger.cgp.dbcon.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Hashtable;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import uk.ac.sanger.cgp.dbcon.config.Config;
 import uk.ac.sanger.cgp.dbcon.config.ConfigParser;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+import uk.ac.sanger.cgp.dbcon.pooling.Housekeeper;
 import uk.ac.sanger.cgp.dbcon.pooling.Pool;
 
 /**
@@ -50,28 +58,47 @@ import uk.ac.sanger.cgp.dbcon.pooling.Pool;
  * each database to give a Pool of size 1. Other versions could be also be
  * generated if required with minimal overriding.
  * 
+ * <p>
+ * Pools are held in a concurrent map keyed by synonym. A loaded pool is stored
+ * directly so looking it up is a single lock-free read. Whilst a pool is being
+ * created the map holds the task creating it and every other caller asking
+ * for that synonym waits on the same task, so only one pool is ever built per
+ * synonym.
+ * 
  * @author andrewyates
  * @author $Author$
  * @version $Revision$
  */
 public abstract class AbstractPools {
 
-  private final Map pools;
+  private final ConcurrentMap pools;
+
+  private final AtomicLong generation = new AtomicLong();
 
   private final Log log;
 
   private ConfigParser configParser = null;
 
   public AbstractPools() {
-    pools = Collections.synchronizedMap(new Hashtable());
+    pools = new ConcurrentHashMap();
     log = LogFactory.getLog(this.getClass());
     configParser = ConfigParser.getDefaultParser();
   }
 
-  protected Map getPools() {
+  protected ConcurrentMap getPools() {
     return pools;
   }
 
+  /**
+   * A counter which changes every time a pool is destroyed or the pools are
+   * reset. Anything caching a {@link Pool} taken from this object can compare
+   * the generation it was read at with the current one to know if its copy
+   * may have been destroyed.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
   protected Log getLog() {
     return log;
   }
@@ -85,18 +112,115 @@ public abstract class AbstractPools {
 
   /**
    * Returns a pool object and will initalise a new pool object if it was not
-   * found in the underlying map
+   * found in the underlying map. Concurrent callers for a synonym which is not
+   * yet loaded all receive the pool built by the first caller. A pool which
+   * was destroyed whilst being created is never returned; the lookup is
+   * retried instead.
    */
   public Pool getPool(String name) {
-    Pool output = null;
-    if (getPools().containsKey(name)) {
-      output = (Pool) getPools().get(name);
+    while (true) {
+      Object value = getPools().get(name);
+      if (value instanceof Pool) {
+        return (Pool) value;
+      }
+      Pool pool = initalisePool(name, (FutureTask) value);
+      if (pool != null) {
+        return pool;
+      }
     }
-    else {
-      output = createPool(name);
-      getPools().put(name, output);
+  }
+
+  /**
+   * Returns the pool for the synonym only if it has already been loaded. This
+   * never creates a pool or waits for one which is being created.
+   * 
+   * @return The loaded pool or null if there is not one
+   */
+  public Pool getLoadedPool(String name) {
+    Object value = getPools().get(name);
+    if (value instanceof Pool) {
+      return (Pool) value;
+    }
+    if (value != null) {
+      FutureTask task = (FutureTask) value;
+      if (task.isDone() && !task.isCancelled()) {
+        try {
+          return (Pool) task.get();
+        }
+        catch (Exception e) {
+          // Failed creation; there is no loaded pool
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Single flight initalisation of a pool. Either joins the creation task
+   * already registered for the synonym or registers and runs a new one. Once
+   * built the task is swapped for the pool itself; if creation fails the task
+   * is removed so the next caller tries again.
+   * 
+   * @return The pool or null if the task was removed by
+   *         {@link #destroyNamedPool(String)} before the pool could be
+   *         published, in which case the caller should look the pool up again
+   */
+  private Pool initalisePool(final String name, FutureTask existing) {
+    FutureTask task = existing;
+    boolean creator = false;
+
+    if (task == null) {
+      FutureTask newTask = new FutureTask(new Callable() {
+        public Object call() {
+          return createPool(name);
+        }
+      });
+      Object current = getPools().putIfAbsent(name, newTask);
+      if (current instanceof Pool) {
+        return (Pool) current;
+      }
+      else if (current != null) {
+        task = (FutureTask) current;
+      }
+      else {
+        task = newTask;
+        creator = true;
+        task.run();
+      }
+    }
+
+    try {
+      Pool pool = (Pool) task.get();
+      if (creator) {
+        if (!getPools().replace(name, task, pool)) {
+          pool.destroyPool();
+          return null;
+        }
+      }
+      else {
+        Object current = getPools().get(name);
+        if (current != task && current != pool) {
+          return null;
+        }
+      }
+      return pool;
+    }
+    catch (ExecutionException e) {
+      getPools().remove(name, task);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new PoolingException("Could not create pool " + name, cause);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PoolingException("Interrupted whilst waiting for pool " + name
+          + " to be created", e);
     }
-    return output;
   }
 
   /**
@@ -132,12 +256,12 @@ public abstract class AbstractPools {
 
   /**
    * Returns if the pool as given by the synonym is initalised or not. This is
-   * true if the pool object was returned from {@link #getPool(String)} and
-   * {@link Pool#isPoolInitalised()} was true.
+   * true if the pool has been loaded by {@link #getPool(String)} and
+   * {@link Pool#isPoolInitalised()} was true. Asking never creates the pool.
    */
   public boolean isPoolInitalised(String name) {
     boolean initalised = false;
-    Pool pool = getPool(name);
+    Pool pool = getLoadedPool(name);
     if (pool != null) {
       initalised = pool.isPoolInitalised();
     }
@@ -178,30 +302,178 @@ public abstract class AbstractPools {
   }
   
   public List getLoadedDbNames() {
-    Set copy = new HashSet(getPools().keySet());
-    return new ArrayList(copy);
+    List names = new ArrayList();
+    for (Iterator iter = getPools().entrySet().iterator(); iter.hasNext();) {
+      Map.Entry entry = (Map.Entry) iter.next();
+      if (entry.getValue() instanceof Pool) {
+        names.add(entry.getKey());
+      }
+    }
+    return names;
+  }
+
+  /** Upper limit on the threads used to warm pools in parallel */
+  private static final int MAX_WARM_THREADS = 8;
+
+  /**
+   * Warms every synonym known to the config parser
+   * 
+   * @see #warm(Collection)
+   */
+  public WarmUpReport warmAll() {
+    return warm(getAvailableDbNames());
   }
 
   /**
-   * Loops through all entries in the given pools map, runs the destroy pool
-   * method on it and then removes it from the iterating set. This should be
-   * reflected in the underlying map.
+   * Initalises the pools for the given synonyms concurrently and fills each
+   * to its configured min idle size so the first requests after start up do
+   * not pay for connection creation. At most {@link #MAX_WARM_THREADS} pools
+   * are warmed at once. A failure only affects its own synonym; the time
+   * taken and any exception are recorded in the returned report.
+   * 
+   * @param names The synonyms to warm
+   * @return Timings and failures for each synonym
+   */
+  public WarmUpReport warm(Collection names) {
+    final WarmUpReport report = new WarmUpReport();
+    if (names.isEmpty()) {
+      return report;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+        names.size(), MAX_WARM_THREADS), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "dbcon-warm-pools");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      List tasks = new ArrayList(names.size());
+      for (Iterator iter = names.iterator(); iter.hasNext();) {
+        final String name = (String) iter.next();
+        tasks.add(new Callable() {
+          public Object call() {
+            warmPool(name, report);
+            return null;
+          }
+        });
+      }
+      executor.invokeAll(tasks);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PoolingException("Interrupted whilst warming pools", e);
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    if (getLog().isInfoEnabled())
+      getLog().info("Warmed " + names.size() + " pool(s), "
+          + report.getFailedSynonyms().size() + " failed");
+
+    return report;
+  }
+
+  private void warmPool(String name, WarmUpReport report) {
+    long start = System.currentTimeMillis();
+    try {
+      int opened = getPool(name).fillToMinIdle();
+      report.success(name, System.currentTimeMillis() - start, opened);
+    }
+    catch (Throwable e) {
+      report.failure(name, System.currentTimeMillis() - start, e);
+      if (getLog().isWarnEnabled())
+        getLog().warn("Could not warm pool " + name, e);
+    }
+  }
+
+  /** Upper limit on the threads used to destroy pools in parallel */
+  private static final int MAX_DESTROY_THREADS = 8;
+
+  /**
+   * Destroys every pool which has been loaded (or is being loaded) and removes
+   * it from the map. Synonyms which were never used are not touched. When more
+   * than one pool is loaded they are shut down in parallel on a small set of
+   * short lived threads.
    */
   public void destroyAllPools() {
-    Iterator iter = getAvailableDbNames().iterator();
-    while (iter.hasNext()) {
-      destroyNamedPool((String)iter.next());
+    List names = new ArrayList(getPools().keySet());
+    if (names.size() <= 1) {
+      for (Iterator iter = names.iterator(); iter.hasNext();) {
+        destroyNamedPool((String) iter.next());
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+        names.size(), MAX_DESTROY_THREADS), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "dbcon-destroy-pools");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      List tasks = new ArrayList(names.size());
+      for (Iterator iter = names.iterator(); iter.hasNext();) {
+        final String name = (String) iter.next();
+        tasks.add(new Callable() {
+          public Object call() {
+            destroyNamedPool(name);
+            return null;
+          }
+        });
+      }
+      executor.invokeAll(tasks);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PoolingException("Interrupted whilst destroying pools", e);
+    }
+    finally {
+      executor.shutdown();
     }
   }
-  
-  private Object lockObject = new Object();
 
+  /**
+   * Removes the named pool from the map and destroys it. A pool which is still
+   * being created is waited for and then destroyed. Nothing happens if the
+   * pool was never loaded.
+   */
   public void destroyNamedPool(String name) {
-    synchronized (lockObject) {
-      Pool pool = getPool(name);
-      if (pool != null) {
+    Object value = getPools().remove(name);
+    Pool pool = null;
+
+    if (value != null) {
+      generation.incrementAndGet();
+    }
+
+    if (value instanceof Pool) {
+      pool = (Pool) value;
+    }
+    else if (value != null) {
+      try {
+        pool = (Pool) ((FutureTask) value).get();
+      }
+      catch (ExecutionException e) {
+        // Creation failed so there is nothing to destroy
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new PoolingException("Interrupted whilst waiting for pool " + name
+            + " to be created", e);
+      }
+    }
+
+    if (pool != null) {
+      try {
         pool.destroyPool();
-        getPools().remove(name);
+      }
+      catch (RuntimeException e) {
+        if (getLog().isErrorEnabled())
+          getLog().error("Could not destroy pool " + name, e);
       }
     }
   }
@@ -209,12 +481,14 @@ public abstract class AbstractPools {
   /**
    * Returns the current number of active connections in the pool.
    * 
-   * @return Number of active connections. Returns -1 if the pool does not exist
+   * @return Number of active connections. Returns -1 if the pool has not
+   *         been loaded
    */
   public int getActiveConnections(String name) {
     int output = -1;
-    if (getPool(name) != null) {
-      output = getPool(name).getActiveConnections();
+    Pool pool = getLoadedPool(name);
+    if (pool != null) {
+      output = pool.getActiveConnections();
     }
     return output;
   }
@@ -222,12 +496,14 @@ public abstract class AbstractPools {
   /**
    * Returns the current number of idle connections in the pool.
    * 
-   * @return Number of idle connections. Returns -1 if the pool does not exist
+   * @return Number of idle connections. Returns -1 if the pool has not
+   *         been loaded
    */
   public int getIdleConnections(String name) {
     int output = -1;
-    if (getPool(name) != null) {
-      output = getPool(name).getIdleConnections();
+    Pool pool = getLoadedPool(name);
+    if (pool != null) {
+      output = pool.getIdleConnections();
     }
     return output;
   }
@@ -235,13 +511,14 @@ public abstract class AbstractPools {
   /**
    * Returns the max number of idle connections in the pool.
    * 
-   * @return Max number of idle connections. Returns -1 if the pool does not
-   *         exist
+   * @return Max number of idle connections. Returns -1 if the pool has not
+   *         been loaded
    */
   public int getMaxIdleConnections(String name) {
     int output = -1;
-    if (getPool(name) != null) {
-      output = getPool(name).getMaxIdleConnections();
+    Pool pool = getLoadedPool(name);
+    if (pool != null) {
+      output = pool.getMaxIdleConnections();
     }
     return output;
   }
@@ -249,30 +526,47 @@ public abstract class AbstractPools {
   /**
    * Returns the max number of active connections in the pool.
    * 
-   * @return Max number of active connections. Returns -1 if the pool does not
-   *         exist
+   * @return Max number of active connections. Returns -1 if the pool has not
+   *         been loaded
    */
   public int getMaxActiveConnections(String name) {
     int output = -1;
-    if (getPool(name) != null) {
-      output = getPool(name).getMaxActiveConnections();
+    Pool pool = getLoadedPool(name);
+    if (pool != null) {
+      output = pool.getMaxActiveConnections();
     }
     return output;
   }
 
   /**
-   * Returns a pool's current status
+   * Returns a pool's current status. Asking never creates the pool.
    */
   public String poolStatus(String name) {
 
     String status = "The pool " + name + " has not been initalised";
-    Pool pool = getPool(name);
+    Pool pool = getLoadedPool(name);
     if (pool != null) {
       status = pool.getStatus();
     }
 
     return status;
   }
+
+  /**
+   * Returns the scheduler which runs eviction, validation, replenishment and
+   * lifetime checks for every pool. It is shared by all AbstractPools
+   * instances and reports the time spent on each kind of task.
+   */
+  public Housekeeper getHousekeeper() {
+    return Housekeeper.getInstance();
+  }
+
+  /**
+   * Returns the status of the shared housekeeping scheduler
+   */
+  public String housekeepingStatus() {
+    return getHousekeeper().toString();
+  }
   
   /**
    * Method which destroys all known pools and resets the configuration
@@ -281,5 +575,6 @@ public abstract class AbstractPools {
   public void reset() {
     destroyAllPools();
     configParser = null;
+    generation.incrementAndGet();
   }
 }
@@ -0,0 +1,128 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of {@link AbstractPools#warm(java.util.Collection)}. Records how
+ * long each synonym took to initalise and fill, and the exception thrown by
+ * any synonym which could not be warmed.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class WarmUpReport {
+
+  private final Map timings = Collections.synchronizedMap(new LinkedHashMap());
+
+  private final Map failures = Collections.synchronizedMap(new LinkedHashMap());
+
+  private final Map opened = Collections.synchronizedMap(new LinkedHashMap());
+
+  WarmUpReport() {
+    super();
+  }
+
+  void success(String name, long millis, int connectionsOpened) {
+    timings.put(name, new Long(millis));
+    opened.put(name, new Integer(connectionsOpened));
+  }
+
+  void failure(String name, long millis, Throwable cause) {
+    timings.put(name, new Long(millis));
+    failures.put(name, cause);
+  }
+
+  /**
+   * Synonyms which were warmed in the order they completed
+   */
+  public List getSynonyms() {
+    synchronized (timings) {
+      return new ArrayList(timings.keySet());
+    }
+  }
+
+  /**
+   * Time in milliseconds taken to warm the synonym or -1 if it was not part
+   * of the warm up
+   */
+  public long getTime(String name) {
+    Long time = (Long) timings.get(name);
+    return (time == null) ? -1 : time.longValue();
+  }
+
+  /**
+   * Number of connections opened to reach the min idle size. Excludes the
+   * connection the pool keeps from its own initalisation.
+   */
+  public int getConnectionsOpened(String name) {
+    Integer count = (Integer) opened.get(name);
+    return (count == null) ? 0 : count.intValue();
+  }
+
+  /**
+   * The exception which stopped the synonym being warmed or null if it
+   * succeeded
+   */
+  public Throwable getFailure(String name) {
+    return (Throwable) failures.get(name);
+  }
+
+  public List getFailedSynonyms() {
+    synchronized (failures) {
+      return new ArrayList(failures.keySet());
+    }
+  }
+
+  public boolean hasFailures() {
+    return !failures.isEmpty();
+  }
+
+  public String toString() {
+    String nl = System.getProperty("line.separator");
+    StringBuffer sb = new StringBuffer();
+    for (Iterator iter = getSynonyms().iterator(); iter.hasNext();) {
+      String name = (String) iter.next();
+      sb.append(name).append(": ").append(getTime(name)).append("ms");
+      Throwable failure = getFailure(name);
+      if (failure == null) {
+        sb.append(", opened ").append(getConnectionsOpened(name));
+      }
+      else {
+        sb.append(", failed: ").append(failure);
+      }
+      sb.append(nl);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * <p>
+ * Base class for engines which take part in more of the Pool's work than the
+ * {@link PoolEngine} interface asks for. Every method here has a default
+ * which leaves the feature off, so an engine overrides only what it
+ * supports and new features can be added here without breaking existing
+ * engines.
+ * 
+ * <p>
+ * Engines which support them should open connections through a
+ * {@link UrlFailover} so they follow switches between the primary and backup
+ * URL, report each connection they create or validate to a
+ * {@link CircuitBreaker} and ask a {@link LoadShedder} before a borrower
+ * blocks. The Pool checks the breaker before borrowing and reports on all
+ * three when they are given.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public abstract class AbstractPoolEngine implements PoolEngine {
+
+  protected AbstractPoolEngine() {
+    super();
+  }
+
+  /**
+   * Adds an already open physical connection to the pool as an idle
+   * connection. Used to keep the connection opened while the pool's URL was
+   * being validated. By default the connection is not taken.
+   * 
+   * @return False if the pool has no room for the connection; the caller
+   *         then still owns it and must close it
+   */
+  public boolean addConnection(Connection connection) {
+    return false;
+  }
+
+  /**
+   * Opens new connections until the pool holds at least the given number of
+   * idle connections or one of its limits is reached. By default nothing is
+   * opened.
+   * 
+   * @return The number of connections opened
+   */
+  public int fillIdle(int target) throws SQLException {
+    return 0;
+  }
+
+  /**
+   * Borrows a connection at the given priority. By default every borrower is
+   * treated the same.
+   * 
+   * @see uk.ac.sanger.cgp.dbcon.config.Config#PRIORITY_HIGH
+   */
+  public Connection getConnection(int priority) throws SQLException {
+    return getConnection();
+  }
+
+  /**
+   * Counts of the transaction control calls made on this pool's connections
+   * and how many of them were answered without a round-trip to the driver.
+   * Null by default.
+   */
+  public RoundTripStatistics getRoundTripStatistics() {
+    return null;
+  }
+
+  /**
+   * Counts and timings of the connection validations run by this pool,
+   * broken down by validation mode. Null by default.
+   */
+  public ValidationStatistics getValidationStatistics() {
+    return null;
+  }
+
+  /**
+   * Chooses between the primary and backup URL for new connections. Null by
+   * default.
+   */
+  public UrlFailover getUrlFailover() {
+    return null;
+  }
+
+  /**
+   * Refuses borrowers while the database cannot be reached. Null by default,
+   * in which case borrowers are never refused.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return null;
+  }
+
+  /**
+   * Refuses borrowers which would join too long a wait. Null by default.
+   */
+  public LoadShedder getLoadShedder() {
+    return null;
+  }
+
+  /**
+   * True if {@link #setLimits(int, int)} resizes the running pool. False by
+   * default, which keeps a Pool from starting an {@link AdaptiveSizer}.
+   */
+  public boolean isResizable() {
+    return false;
+  }
+
+  /**
+   * Changes the max active and max idle sizes of the running pool. Threads
+   * already waiting for a connection must be able to use extra room at once.
+   * Shrinking never closes borrowed connections; the pool comes down to size
+   * as they are returned. Does nothing by default.
+   * 
+   * @see AdaptiveSizer
+   */
+  public void setLimits(int maxActive, int maxIdle) {
+    // Not resizable
+  }
+}
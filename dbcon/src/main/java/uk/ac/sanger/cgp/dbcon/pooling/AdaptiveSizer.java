@@ -0,0 +1,256 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+
+/**
+ * <p>
+ * Resizes a pool between {@link Config#getAdaptiveFloor()} and
+ * {@link Config#getAdaptiveCeiling()} according to how long borrowers wait
+ * for connections. Every {@link Config#getResizeInterval()} milliseconds
+ * the housekeeper takes the 95th percentile of the borrow waits recorded
+ * since the last decision:
+ * <ul>
+ * <li>above {@link Config#getTargetWait()} max active grows by a quarter
+ * (at least one)</li>
+ * <li>at or below half the target, with idle connections in the pool, the
+ * interval counts as calm. After {@link #CALM_INTERVALS} calm intervals in a
+ * row max active shrinks by half the connections not in use (at least
+ * one)</li>
+ * <li>anything between the two is left alone and restarts the calm count</li>
+ * </ul>
+ * The gap between the two thresholds and the run of calm intervals stop the
+ * pool flapping between sizes. Max idle moves by the same amount as max
+ * active, never above it.
+ * 
+ * <p>
+ * Waits are kept in a ring of the last {@link #SAMPLES} borrows so recording
+ * one is a single counter increment and array write.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class AdaptiveSizer {
+
+  /** Number of calm intervals in a row needed before the pool shrinks */
+  public static final int CALM_INTERVALS = 3;
+
+  /** Number of recent borrow waits kept for the percentile */
+  static final int SAMPLES = 1024;
+
+  private static final double PERCENTILE = 0.95;
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private final Config config;
+
+  private final AbstractPoolEngine engine;
+
+  private final AtomicLongArray waits = new AtomicLongArray(SAMPLES);
+
+  private final AtomicLong recorded = new AtomicLong();
+
+  private final AtomicLong grows = new AtomicLong();
+
+  private final AtomicLong shrinks = new AtomicLong();
+
+  private long lastRecorded = 0;
+
+  private int calmIntervals = 0;
+
+  private volatile long lastWaitMicros = 0;
+
+  private volatile long lastBorrows = 0;
+
+  private ScheduledFuture run = null;
+
+  /**
+   * Brings the engine's max active within the floor and ceiling and starts
+   * the resize decisions on the {@link Housekeeper}
+   */
+  public AdaptiveSizer(Config config, AbstractPoolEngine engine) {
+    this.config = config;
+    this.engine = engine;
+
+    int maxActive = engine.getMaxActiveConnections();
+    int start = (maxActive <= 0) ? config.getAdaptiveCeiling() : clamp(maxActive);
+    if (start != maxActive) {
+      apply(maxActive, start);
+    }
+
+    long interval = config.getResizeInterval();
+    if (interval > 0) {
+      run = Housekeeper.getInstance().scheduleWithFixedDelay(
+          config.getName(), Housekeeper.SIZING, new Runnable() {
+            public void run() {
+              resize();
+            }
+          }, interval, interval);
+    }
+  }
+
+  protected Log getLog() {
+    return log;
+  }
+
+  /**
+   * Records how long a borrower waited for a connection
+   */
+  public void recordWait(long nanos) {
+    long index = recorded.getAndIncrement();
+    waits.set((int) (index % SAMPLES), nanos);
+  }
+
+  /**
+   * Makes one sizing decision from the waits recorded since the last one
+   */
+  synchronized void resize() {
+    long total = recorded.get();
+    int borrows = (int) Math.min(total - lastRecorded, SAMPLES);
+    lastRecorded = total;
+    long waitMicros = percentile(total, borrows) / 1000;
+    lastBorrows = borrows;
+    lastWaitMicros = waitMicros;
+
+    long targetMicros = config.getTargetWait() * 1000;
+    int maxActive = engine.getMaxActiveConnections();
+
+    if (borrows > 0 && waitMicros > targetMicros) {
+      calmIntervals = 0;
+      int grown = clamp(maxActive + Math.max(1, maxActive / 4));
+      if (grown > maxActive) {
+        apply(maxActive, grown);
+        grows.incrementAndGet();
+      }
+    }
+    else if (waitMicros <= targetMicros / 2
+        && engine.getIdleConnections() > 0) {
+      calmIntervals++;
+      if (calmIntervals >= CALM_INTERVALS) {
+        calmIntervals = 0;
+        int unused = maxActive - engine.getActiveConnections();
+        int shrunk = clamp(maxActive - Math.max(1, unused / 2));
+        if (shrunk < maxActive) {
+          apply(maxActive, shrunk);
+          shrinks.incrementAndGet();
+        }
+      }
+    }
+    else {
+      calmIntervals = 0;
+    }
+  }
+
+  /**
+   * The wait at the percentile of the last count samples recorded before
+   * total, in nanoseconds
+   */
+  private long percentile(long total, int count) {
+    if (count == 0) {
+      return 0;
+    }
+    long[] sorted = new long[count];
+    for (int i = 0; i < count; i++) {
+      sorted[i] = waits.get((int) ((total - 1 - i) % SAMPLES));
+    }
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(PERCENTILE * count) - 1;
+    return sorted[Math.max(0, index)];
+  }
+
+  private int clamp(int maxActive) {
+    int floor = Math.max(1, config.getAdaptiveFloor());
+    int ceiling = Math.max(floor, config.getAdaptiveCeiling());
+    return Math.max(floor, Math.min(ceiling, maxActive));
+  }
+
+  private void apply(int from, int to) {
+    int maxIdle = engine.getMaxIdleConnections();
+    if (maxIdle >= 0) {
+      maxIdle = Math.max(0, Math.min(to, maxIdle + (to - Math.max(from, 0))));
+    }
+    engine.setLimits(to, maxIdle);
+    if (getLog().isInfoEnabled())
+      getLog().info("Resized " + config.getName() + " from " + from + " to "
+          + to + " max active (p95 borrow wait " + lastWaitMicros
+          + " micros)");
+  }
+
+  /**
+   * Number of times the pool has been grown
+   */
+  public long getGrows() {
+    return grows.get();
+  }
+
+  /**
+   * Number of times the pool has been shrunk
+   */
+  public long getShrinks() {
+    return shrinks.get();
+  }
+
+  /**
+   * The 95th percentile borrow wait, in microseconds, seen by the last
+   * decision
+   */
+  public long getLastWaitMicros() {
+    return lastWaitMicros;
+  }
+
+  /**
+   * Number of borrows the last decision was based on, at most
+   * {@link #SAMPLES}
+   */
+  public long getLastBorrows() {
+    return lastBorrows;
+  }
+
+  /**
+   * Stops the resize decisions. The pool keeps its current size.
+   */
+  public void close() {
+    Housekeeper.getInstance().cancel(run);
+  }
+
+  public String toString() {
+    return "maxActive=" + engine.getMaxActiveConnections() + ", floor="
+        + clamp(0) + ", ceiling=" + config.getAdaptiveCeiling()
+        + ", p95WaitMicros=" + getLastWaitMicros() + ", borrows="
+        + getLastBorrows() + ", grows=" + getGrows() + ", shrinks="
+        + getShrinks();
+  }
+}
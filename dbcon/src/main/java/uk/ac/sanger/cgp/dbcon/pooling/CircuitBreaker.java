@@ -0,0 +1,231 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.ConnectionNotAvailableException;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * <p>
+ * Stops borrowers queueing up behind a database which cannot be reached. The
+ * pool engine reports every attempt to create or validate a connection. After
+ * {@link Config#getBreakerThreshold()} consecutive failures the breaker opens
+ * and {@link #assertClosed()} refuses borrowers straight away.
+ * 
+ * <p>
+ * While the breaker is open a single probe task on the shared
+ * {@link Housekeeper} tries to open and validate a connection every
+ * {@link Config#getBreakerProbeInterval()} milliseconds. Only the probe
+ * closes the breaker. Successes reported by
+ * the pool in the meantime do not close it.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class CircuitBreaker {
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private final Config config;
+
+  private final UrlFailover failover;
+
+  private final ConnectionValidator validator;
+
+  private final AtomicBoolean open = new AtomicBoolean(false);
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+  private final AtomicLong trips = new AtomicLong();
+
+  private final AtomicLong rejections = new AtomicLong();
+
+  private ScheduledFuture probe = null;
+
+  private boolean closed = false;
+
+  /**
+   * @param failover
+   *          Used by the probe to open connections
+   * @param validator
+   *          Used by the probe to validate the connections it opens
+   */
+  public CircuitBreaker(Config config, UrlFailover failover,
+      ConnectionValidator validator) {
+    this.config = config;
+    this.failover = failover;
+    this.validator = validator;
+  }
+
+  protected Log getLog() {
+    return log;
+  }
+
+  /**
+   * True while borrowers are being refused
+   */
+  public boolean isOpen() {
+    return open.get();
+  }
+
+  /**
+   * Number of times the breaker has opened
+   */
+  public long getTrips() {
+    return trips.get();
+  }
+
+  /**
+   * Number of borrowers refused while the breaker was open
+   */
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  /**
+   * Called when a connection was created or validated
+   */
+  public void recordSuccess() {
+    if (!open.get()) {
+      consecutiveFailures.set(0);
+    }
+  }
+
+  /**
+   * Called when a connection could not be created or failed validation. Opens
+   * the breaker once the failures reach the threshold.
+   */
+  public void recordFailure() {
+    int threshold = config.getBreakerThreshold();
+    if (threshold <= 0 || open.get()) {
+      return;
+    }
+    if (consecutiveFailures.incrementAndGet() >= threshold
+        && open.compareAndSet(false, true)) {
+      trips.incrementAndGet();
+      if (getLog().isWarnEnabled())
+        getLog().warn("Circuit breaker for " + config.getName()
+            + " opened after " + threshold + " consecutive connection failures");
+      startProbe();
+    }
+  }
+
+  /**
+   * @throws ConnectionNotAvailableException
+   *           If the breaker is open
+   */
+  public void assertClosed() {
+    if (open.get()) {
+      rejections.incrementAndGet();
+      throw new ConnectionNotAvailableException("Circuit breaker for "
+          + config.getName() + " is open; the database could not be reached");
+    }
+  }
+
+  /**
+   * Tries to open and validate a connection, closing the breaker if that
+   * works
+   * 
+   * @return True if the breaker was closed
+   */
+  boolean probe() {
+    Connection conn = null;
+    try {
+      conn = failover.openConnection();
+      if (!validator.validate(conn)) {
+        return false;
+      }
+    }
+    catch (SQLException e) {
+      if (getLog().isDebugEnabled())
+        getLog().debug("Circuit breaker probe failed for " + config.getName(), e);
+      return false;
+    }
+    finally {
+      DatabaseUtils.closeDbObject(conn);
+    }
+
+    consecutiveFailures.set(0);
+    synchronized (this) {
+      stopProbe();
+      open.set(false);
+    }
+    if (getLog().isInfoEnabled())
+      getLog().info("Circuit breaker for " + config.getName() + " closed");
+    return true;
+  }
+
+  private synchronized void startProbe() {
+    if (probe != null || closed) {
+      return;
+    }
+    long interval = Math.max(1, config.getBreakerProbeInterval());
+    Runnable probeTask = new Runnable() {
+      public void run() {
+        try {
+          probe();
+        }
+        catch (RuntimeException e) {
+          if (getLog().isErrorEnabled())
+            getLog().error("Circuit breaker probe failed for "
+                + config.getName(), e);
+        }
+      }
+    };
+    probe = Housekeeper.getInstance().scheduleWithFixedDelay(
+        config.getName(), Housekeeper.BREAKER, probeTask, interval, interval);
+  }
+
+  private void stopProbe() {
+    Housekeeper.getInstance().cancel(probe);
+    probe = null;
+  }
+
+  /**
+   * Stops the probe
+   */
+  public synchronized void close() {
+    closed = true;
+    stopProbe();
+  }
+
+  public String toString() {
+    return (open.get() ? "open" : "closed") + ", trips=" + getTrips()
+        + ", rejections=" + getRejections();
+  }
+}
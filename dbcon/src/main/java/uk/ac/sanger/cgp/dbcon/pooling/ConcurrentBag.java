@@ -0,0 +1,611 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * A lock-free container of pooled items used by the dbcon pooling engine.
+ * Items are held in a shared copy-on-write list and claimed by a compare and
+ * set of their state so no monitor is taken when borrowing or returning.
+ * 
+ * <p>
+ * Each thread keeps a short list of the items it recently returned which is
+ * consulted before the shared list. A thread which borrows and returns in a
+ * loop will therefore normally get its own last item back without touching
+ * any shared state.
+ * 
+ * <p>
+ * Threads which have to wait join a first in, first out queue for their
+ * priority. A returned or newly added item is handed straight to the waiting
+ * thread with the highest priority, the longest waiting first among equals,
+ * without ever becoming free, so a thread which has just arrived cannot take
+ * it first and only the thread given the item is woken. If an aging interval
+ * is set a waiter's priority rises by one for every interval it has waited
+ * so low priority threads are not starved. A waiter gives up at the deadline
+ * set when it started waiting however many times it is woken. Only the head
+ * of each queue is looked at when handing over an item and the number in use
+ * is kept as a count, so returning an item costs the same however many
+ * threads wait or items are held.
+ * 
+ * <p>
+ * An optional {@link Admission} can stop threads of a priority taking items
+ * while too many are in use, keeping the rest for higher priorities. Those
+ * threads neither take free items nor are handed returned ones until it
+ * admits them.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ConcurrentBag {
+
+  /** Item is in the bag and free to be borrowed */
+  public static final int STATE_NOT_IN_USE = 0;
+
+  /** Item has been borrowed */
+  public static final int STATE_IN_USE = 1;
+
+  /** Item has been removed from the bag */
+  public static final int STATE_REMOVED = -1;
+
+  /** Item is held by housekeeping code and cannot be borrowed */
+  public static final int STATE_RESERVED = -2;
+
+  /** The number of recently returned items remembered per thread */
+  private static final int THREAD_LIST_SIZE = 16;
+
+  /**
+   * The base class of anything held in the bag. The state field is updated by
+   * compare and set only.
+   */
+  public abstract static class Entry {
+
+    private static final AtomicIntegerFieldUpdater STATE_UPDATER = AtomicIntegerFieldUpdater
+        .newUpdater(Entry.class, "state");
+
+    private volatile int state = STATE_NOT_IN_USE;
+
+    public int getState() {
+      return state;
+    }
+
+    public boolean compareAndSetState(int expect, int update) {
+      return STATE_UPDATER.compareAndSet(this, expect, update);
+    }
+
+    public void setState(int update) {
+      STATE_UPDATER.set(this, update);
+    }
+  }
+
+  private final CopyOnWriteArrayList sharedList = new CopyOnWriteArrayList();
+
+  private final ThreadLocal threadList = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ArrayList(THREAD_LIST_SIZE);
+    }
+  };
+
+  /**
+   * Decides whether a thread of the given priority may take an item
+   */
+  public interface Admission {
+
+    /**
+     * @param priority
+     *          The priority the thread borrowed with; aging does not count
+     * @param inUse
+     *          The number of items in use, not counting the one being handed
+     *          over
+     */
+    boolean admits(int priority, int inUse);
+  }
+
+  /** Marks a waiter which has given up so it cannot be handed an item */
+  private static final Object CANCELLED = new Object();
+
+  /**
+   * A thread waiting in {@link ConcurrentBag#borrow(long, TimeUnit)}. The
+   * slot goes from null to either the item handed over or
+   * {@link ConcurrentBag#CANCELLED}, exactly once.
+   */
+  private static final class Waiter {
+
+    private final Thread thread = Thread.currentThread();
+
+    private final int priority;
+
+    private final long since = System.nanoTime();
+
+    Waiter(int priority) {
+      this.priority = priority;
+    }
+
+    /**
+     * The priority raised by one for every aging interval waited
+     */
+    long getEffectivePriority(long now, long agingNanos) {
+      return (agingNanos > 0) ? priority + (now - since) / agingNanos
+          : priority;
+    }
+
+    private final AtomicReference slot = new AtomicReference();
+
+    /**
+     * Hands an item the caller owns to this waiter
+     * 
+     * @return False if the waiter has already given up or been served
+     */
+    boolean offer(Entry entry) {
+      if (slot.compareAndSet(null, entry)) {
+        LockSupport.unpark(thread);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return False if an item was handed over first
+     */
+    boolean cancel() {
+      return slot.compareAndSet(null, CANCELLED);
+    }
+
+    /**
+     * True until the waiter is served or gives up
+     */
+    boolean isWaiting() {
+      return slot.get() == null;
+    }
+
+    Entry getEntry() {
+      Object handed = slot.get();
+      return (handed == CANCELLED) ? null : (Entry) handed;
+    }
+  }
+
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  /** Waiter queues keyed by the priority the threads borrowed with */
+  private final ConcurrentMap waiterQueues = new ConcurrentHashMap();
+
+  private final AtomicInteger inUse = new AtomicInteger();
+
+  private final AtomicLong handoffs = new AtomicLong();
+
+  private volatile Admission admission = null;
+
+  private volatile long agingNanos = 0;
+
+  private volatile boolean closed = false;
+
+  public ConcurrentBag() {
+    super();
+  }
+
+  /**
+   * Sets the check which keeps items back from lower priority threads. Null,
+   * the default, admits everyone.
+   */
+  public void setAdmission(Admission admission) {
+    this.admission = admission;
+  }
+
+  /**
+   * Sets how long a thread must wait for its priority to rise by one. Zero,
+   * the default, turns aging off.
+   */
+  public void setAgingInterval(long interval, TimeUnit unit) {
+    this.agingNanos = unit.toNanos(interval);
+  }
+
+  /**
+   * True if a thread of the priority may take an item while the given number
+   * are in use
+   */
+  public boolean admits(int priority, int inUse) {
+    Admission current = admission;
+    return current == null || current.admits(priority, inUse);
+  }
+
+  /**
+   * Borrows an item from the bag at priority 0
+   * 
+   * @see #borrow(long, TimeUnit, int)
+   */
+  public Entry borrow(long timeout, TimeUnit unit) throws InterruptedException {
+    return borrow(timeout, unit, 0);
+  }
+
+  /**
+   * Borrows an item from the bag waiting up to the given timeout for one to be
+   * returned or added. Waiting threads with a higher priority are served
+   * first.
+   * 
+   * @return The borrowed item which is now in the state
+   *         {@link #STATE_IN_USE} or null if the timeout elapsed
+   */
+  public Entry borrow(long timeout, TimeUnit unit, int priority)
+      throws InterruptedException {
+    Entry entry = null;
+    if (admission == null || admits(priority, inUse.get())) {
+      entry = claimFree();
+    }
+    long nanos = unit.toNanos(timeout);
+    if (entry != null || nanos <= 0 || closed) {
+      return entry;
+    }
+
+    long deadline = System.nanoTime() + nanos;
+    Waiter waiter = new Waiter(priority);
+    Queue queue = getWaiterQueue(priority);
+    waiters.incrementAndGet();
+    queue.add(waiter);
+    try {
+      // Look again now we are queued; an item freed since the first look
+      // would not have been handed to us
+      if (admission == null || admits(priority, inUse.get())) {
+        entry = claimShared();
+      }
+      if (entry != null) {
+        if (waiter.cancel()) {
+          return entry;
+        }
+        release(entry);
+        return waiter.getEntry();
+      }
+      return await(waiter, deadline);
+    }
+    finally {
+      waiters.decrementAndGet();
+      // Waiters mostly give up in the order they queued so dropping those
+      // at the head keeps the queue short without searching it
+      pruneWaiters(queue);
+    }
+  }
+
+  private Queue getWaiterQueue(int priority) {
+    Integer key = new Integer(priority);
+    Queue queue = (Queue) waiterQueues.get(key);
+    if (queue == null) {
+      Queue created = new ConcurrentLinkedQueue();
+      queue = (Queue) waiterQueues.putIfAbsent(key, created);
+      if (queue == null) {
+        queue = created;
+      }
+    }
+    return queue;
+  }
+
+  /**
+   * Drops served and cancelled waiters from the head of the queue
+   * 
+   * @return The first waiter still waiting or null if there is none
+   */
+  private static Waiter pruneWaiters(Queue queue) {
+    Waiter head;
+    while ((head = (Waiter) queue.peek()) != null && !head.isWaiting()) {
+      queue.remove(head);
+    }
+    return head;
+  }
+
+  private Entry claimFree() {
+    // Try the thread local list first; most recently returned is at the end
+    List list = (List) threadList.get();
+    for (int i = list.size() - 1; i >= 0; i--) {
+      Entry entry = (Entry) ((WeakReference) list.remove(i)).get();
+      if (entry != null && claim(entry)) {
+        return entry;
+      }
+    }
+    return claimShared();
+  }
+
+  private Entry claimShared() {
+    for (Iterator iter = sharedList.iterator(); iter.hasNext();) {
+      Entry entry = (Entry) iter.next();
+      if (claim(entry)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Moves a free item to in use, counting it
+   */
+  private boolean claim(Entry entry) {
+    if (entry.compareAndSetState(STATE_NOT_IN_USE, STATE_IN_USE)) {
+      inUse.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Parks until the waiter is handed an item, the deadline passes or the bag
+   * is closed
+   */
+  private Entry await(Waiter waiter, long deadline) throws InterruptedException {
+    while (true) {
+      Entry entry = waiter.getEntry();
+      if (entry != null) {
+        return entry;
+      }
+
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0 || closed) {
+        if (waiter.cancel()) {
+          return null;
+        }
+        continue;
+      }
+
+      LockSupport.parkNanos(this, remaining);
+      if (Thread.interrupted()) {
+        if (waiter.cancel()) {
+          throw new InterruptedException();
+        }
+        // Served as we were interrupted; keep the item and the interrupt
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Gives an item owned by the caller to the longest waiting thread or, if
+   * there are none, frees it
+   * 
+   * @return True if the item was handed to a waiter
+   */
+  private boolean release(Entry entry) {
+    while (true) {
+      if (handOff(entry)) {
+        return true;
+      }
+      entry.setState(STATE_NOT_IN_USE);
+      inUse.decrementAndGet();
+
+      // A thread which queued after the search above has either seen the
+      // item free or is found here and served
+      if (nextWaiter() == null || !claim(entry)) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Finds the admitted waiter with the highest effective priority, the
+   * longest waiting first among equals. Only the head of each priority's
+   * queue is a candidate as it has waited longest and so aged most. The item
+   * being released still counts as in use so it is taken off the count.
+   */
+  private Waiter nextWaiter() {
+    if (waiters.get() == 0) {
+      return null;
+    }
+    Admission current = admission;
+    long aging = agingNanos;
+    int held = (current == null) ? 0 : Math.max(0, inUse.get() - 1);
+    long now = System.nanoTime();
+    Waiter best = null;
+    long bestPriority = Long.MIN_VALUE;
+    for (Iterator iter = waiterQueues.values().iterator(); iter.hasNext();) {
+      Waiter waiter = pruneWaiters((Queue) iter.next());
+      if (waiter == null
+          || (current != null && !current.admits(waiter.priority, held))) {
+        continue;
+      }
+      long priority = waiter.getEffectivePriority(now, aging);
+      if (priority > bestPriority
+          || (priority == bestPriority && best != null
+              && waiter.since - best.since < 0)) {
+        best = waiter;
+        bestPriority = priority;
+      }
+    }
+    return best;
+  }
+
+
+  /**
+   * Gives a borrowed item straight to the waiting thread {@link #requite}
+   * would choose. Unlike requite the item is never freed: if no thread takes
+   * it the caller still owns it, in use, and may remove it instead.
+   * 
+   * @return True if the item was handed to a waiter
+   */
+  public boolean handOff(Entry entry) {
+    for (Waiter waiter; (waiter = nextWaiter()) != null;) {
+      getWaiterQueue(waiter.priority).remove(waiter);
+      if (waiter.offer(entry)) {
+        handoffs.incrementAndGet();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns a borrowed item to the bag. If threads are waiting the item is
+   * handed to the longest waiting one otherwise it is remembered by the
+   * calling thread.
+   */
+  public void requite(Entry entry) {
+    if (release(entry)) {
+      return;
+    }
+
+    List list = (List) threadList.get();
+    if (list.size() >= THREAD_LIST_SIZE) {
+      list.remove(0);
+    }
+    list.add(new WeakReference(entry));
+  }
+
+  /**
+   * Adds a new item to the bag. The item can be added in the
+   * {@link #STATE_IN_USE} state if the caller wants to keep it.
+   */
+  public void add(Entry entry) {
+    if (closed) {
+      throw new IllegalStateException("Bag has been closed; cannot add new items");
+    }
+    if (entry.getState() == STATE_IN_USE) {
+      inUse.incrementAndGet();
+    }
+    sharedList.add(entry);
+
+    if (waiters.get() > 0 && claim(entry)) {
+      release(entry);
+    }
+  }
+
+  /**
+   * Removes an item which must be either borrowed or reserved by the caller.
+   * 
+   * @return True if the item was removed by this call
+   */
+  public boolean remove(Entry entry) {
+    while (true) {
+      int state = entry.getState();
+      if (state != STATE_IN_USE && state != STATE_RESERVED && !closed) {
+        return false;
+      }
+      if (entry.compareAndSetState(state, STATE_REMOVED)) {
+        if (state == STATE_IN_USE) {
+          inUse.decrementAndGet();
+        }
+        return sharedList.remove(entry);
+      }
+    }
+  }
+
+  /**
+   * Reserves a free item so it cannot be borrowed whilst housekeeping works on
+   * it.
+   */
+  public boolean reserve(Entry entry) {
+    return entry.compareAndSetState(STATE_NOT_IN_USE, STATE_RESERVED);
+  }
+
+  /**
+   * Releases a reserved item back to the bag
+   */
+  public void unreserve(Entry entry) {
+    if (entry.compareAndSetState(STATE_RESERVED, STATE_IN_USE)) {
+      inUse.incrementAndGet();
+      release(entry);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the items currently in the given state
+   */
+  public List values(int state) {
+    List output = new ArrayList();
+    for (Iterator iter = sharedList.iterator(); iter.hasNext();) {
+      Entry entry = (Entry) iter.next();
+      if (entry.getState() == state) {
+        output.add(entry);
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Returns a snapshot of all items in the bag
+   */
+  public List values() {
+    return new ArrayList(sharedList);
+  }
+
+  /**
+   * Counts the items currently in the given state. The in use count is kept
+   * as items change state; the others are counted.
+   */
+  public int getCount(int state) {
+    if (state == STATE_IN_USE) {
+      return inUse.get();
+    }
+    int count = 0;
+    for (Iterator iter = sharedList.iterator(); iter.hasNext();) {
+      if (((Entry) iter.next()).getState() == state) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public int size() {
+    return sharedList.size();
+  }
+
+  public int getWaitingThreadCount() {
+    return waiters.get();
+  }
+
+  /**
+   * Number of items handed straight to a waiting thread
+   */
+  public long getHandoffCount() {
+    return handoffs.get();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Marks the bag as closed. Waiting threads are woken and give up and no new
+   * items can be added.
+   */
+  public void close() {
+    closed = true;
+    for (Iterator queues = waiterQueues.values().iterator(); queues.hasNext();) {
+      for (Iterator iter = ((Queue) queues.next()).iterator(); iter.hasNext();) {
+        LockSupport.unpark(((Waiter) iter.next()).thread);
+      }
+    }
+  }
+}
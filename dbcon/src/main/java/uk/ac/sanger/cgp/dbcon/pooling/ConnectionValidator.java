@@ -0,0 +1,166 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * <p>
+ * Tests pooled connections for both pool engines using the synonym's
+ * validation mode. {@link Config#VALIDATION_QUERY} runs the validation query
+ * and expects a row back; with no query set the connection is only checked
+ * to be open. {@link Config#VALIDATION_ISVALID} uses the driver's own ping
+ * through <code>Connection.isValid(int)</code> which avoids parsing and
+ * executing SQL on the server.
+ * 
+ * <p>
+ * Drivers written before JDBC 4 do not have isValid. The first time the ping
+ * is found to be missing the validator logs the fact and uses the query
+ * mode from then on.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ConnectionValidator {
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private final Config config;
+
+  private final ValidationStatistics statistics = new ValidationStatistics();
+
+  private volatile boolean useIsValid;
+
+  public ConnectionValidator(Config config) {
+    this.config = config;
+    String mode = config.getValidationMode();
+    if (Config.VALIDATION_ISVALID.equalsIgnoreCase(mode)) {
+      useIsValid = true;
+    }
+    else if (Config.VALIDATION_QUERY.equalsIgnoreCase(mode)) {
+      useIsValid = false;
+    }
+    else {
+      throw new PoolingException("Unknown validation mode " + mode + " for "
+          + config.getName());
+    }
+  }
+
+  public ValidationStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * True if validation uses the driver's isValid ping; false once the driver
+   * has been found not to support it
+   */
+  public boolean isUsingIsValid() {
+    return useIsValid;
+  }
+
+  /**
+   * Tests the connection, recording how long the test took
+   * 
+   * @return True if the connection can be used
+   */
+  public boolean validate(Connection conn) {
+    if (useIsValid) {
+      long start = System.nanoTime();
+      try {
+        boolean valid = conn.isValid(config.getValidationTimeout());
+        statistics.record(ValidationStatistics.IS_VALID, System.nanoTime()
+            - start, valid);
+        return valid;
+      }
+      catch (AbstractMethodError e) {
+        pingUnsupported(e);
+      }
+      catch (SQLFeatureNotSupportedException e) {
+        pingUnsupported(e);
+      }
+      catch (UnsupportedOperationException e) {
+        pingUnsupported(e);
+      }
+      catch (SQLException e) {
+        statistics.record(ValidationStatistics.IS_VALID, System.nanoTime()
+            - start, false);
+        if (log.isDebugEnabled())
+          log.debug("Connection failed validation for " + config.getName(), e);
+        return false;
+      }
+    }
+    return validateWithQuery(conn);
+  }
+
+  private void pingUnsupported(Throwable e) {
+    useIsValid = false;
+    if (log.isInfoEnabled())
+      log.info("Driver for " + config.getName() + " does not support "
+          + "Connection.isValid(); using query validation instead (" + e + ")");
+  }
+
+  private boolean validateWithQuery(Connection conn) {
+    String query = config.getValidationQuery();
+    Statement st = null;
+    ResultSet rs = null;
+    long start = System.nanoTime();
+    boolean valid = false;
+    try {
+      if (StringUtils.isEmpty(query)) {
+        valid = !conn.isClosed();
+      }
+      else {
+        st = conn.createStatement();
+        rs = st.executeQuery(query);
+        valid = rs.next();
+      }
+    }
+    catch (SQLException e) {
+      if (log.isDebugEnabled())
+        log.debug("Connection failed validation for " + config.getName(), e);
+    }
+    finally {
+      DatabaseUtils.closeDbObject(rs);
+      DatabaseUtils.closeDbObject(st);
+    }
+    statistics.record(ValidationStatistics.QUERY, System.nanoTime() - start,
+        valid);
+    return valid;
+  }
+}
@@ -136,6 +136,28 @@ public class Connections {
 		return newConn;
 	}
 
+	/**
+	 * Returns a read-only connection for a given database name from one of the
+	 * read URLs given for it in the config. If it has none then this works
+	 * the same as {@link #getConnection(String)}.
+	 *
+	 * @param name The name of the database you want a connection to
+	 * @return The read-only connection to the specified database
+	 * @throws	PoolingException									Thrown when there is a problem with the pool
+	 *																						itself
+	 * @throws	ConnectionNotAvailableException 	Thrown when timeout occurs and no connection
+	 *																						is available
+	 */
+	public static Connection getReadOnlyConnection(String name) {
+
+		if(name == null){
+			throw new PoolingException("The call to 'getReadOnlyConnection' did not specify a connection - it was passed 'null'");
+		}
+
+		Pool pool = Pools.getInstance().getPool(name);
+		return pool.getReadOnlyConnection();
+	}
+
 	/**
 	 * Delegates to {@link DatabaseUtils#closeDbObject(Connection)} and here for
    * compatability sake
@@ -0,0 +1,921 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+
+/**
+ * <p>
+ * The native dbcon connection pool. Physical connections are held in a
+ * {@link ConcurrentBag} so borrowing and returning a connection takes no
+ * locks; the only shared write on the hot path is the compare and set of the
+ * entry's state.
+ * 
+ * <p>
+ * The pool honours the same {@link Config} settings as the DBCP based pool
+ * (max active, max idle, exhausted action, max wait, the test flags and the
+ * eviction settings) with the exception of prepared statement caching which
+ * is not provided. It also supports the {@link Config#BURST} exhausted
+ * action, opening a bounded number of temporary connections above max active
+ * which are closed on return once nobody is waiting. Borrowers can give a
+ * priority (see {@link Config#PRIORITY_HIGH}); waiting borrowers are served
+ * highest priority first, with aging, and some connections can be reserved
+ * for the higher priorities. Min idle is kept by an {@link IdleConnectionFiller} which
+ * is asked to top the pool up whenever a borrow finds nothing idle, a
+ * connection is closed and on every eviction run. Connections with a max
+ * lifetime are retired at a jittered time. Eviction, filling and retirement
+ * all run on the shared {@link Housekeeper}; an eviction run can validate
+ * idle connections on several housekeeper workers at once within a time
+ * budget (concurrentevicttests and evictbudget).
+ * Connections are opened through a {@link UrlFailover}; when it switches URL,
+ * or a borrower hits an error the pool's {@link FatalErrorClassifier} says
+ * is fatal, the idle connections are closed at once and the borrowed ones as
+ * they are returned. Every connection opened or validated is
+ * reported to the pool's {@link CircuitBreaker}. Borrowers about to block
+ * are checked by the pool's {@link LoadShedder} first, which is told how long
+ * each connection was held when it comes back.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class DbConConnectionPool {
+
+  private static final Comparator LEAST_RECENTLY_USED = new Comparator() {
+    public int compare(Object o1, Object o2) {
+      long first = ((PoolEntry) o1).getLastAccessed();
+      long second = ((PoolEntry) o2).getLastAccessed();
+      return (first < second) ? -1 : ((first == second) ? 0 : 1);
+    }
+  };
+
+  /**
+   * How often, in milliseconds, the idle count is checked against min idle
+   * when eviction is not configured
+   */
+  private static final long FILL_CHECK_PERIOD = 1000;
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private final Config config;
+
+  private final ConcurrentBag bag = new ConcurrentBag();
+
+  private final AtomicInteger totalConnections = new AtomicInteger();
+
+  private final AtomicInteger overflowConnections = new AtomicInteger();
+
+  private final AtomicLong overflowOpened = new AtomicLong();
+
+  private final AtomicInteger overflowPeak = new AtomicInteger();
+
+  private final RoundTripStatistics roundTripStatistics = new RoundTripStatistics();
+
+  private final IdleConnectionFiller filler;
+
+  private final ConnectionValidator validator;
+
+  private final UrlFailover failover;
+
+  private final FatalErrorClassifier classifier;
+
+  private final CircuitBreaker breaker;
+
+  private final LoadShedder shedder;
+
+  private ScheduledFuture evictionRun = null;
+
+  private volatile boolean closed = false;
+
+  private volatile int maxActive;
+
+  private volatile int maxIdle;
+
+  public DbConConnectionPool(Config config) {
+    this.config = config;
+    this.maxActive = config.getMaxActive();
+    this.maxIdle = config.getMaxIdle();
+    this.validator = new ConnectionValidator(config);
+    this.failover = new UrlFailover(config);
+    this.failover.setSwitchListener(new Runnable() {
+      public void run() {
+        purgeRetired();
+      }
+    });
+    this.classifier = SqlStateFatalErrorClassifier.forConfig(config);
+    this.breaker = new CircuitBreaker(config, failover, validator);
+    this.shedder = new LoadShedder(config);
+    if (config.getReservedHigh() > 0 || config.getReservedNormal() > 0) {
+      bag.setAdmission(new ConcurrentBag.Admission() {
+        public boolean admits(int priority, int inUse) {
+          return isAdmitted(priority, inUse);
+        }
+      });
+    }
+    bag.setAgingInterval(config.getPriorityAging(), TimeUnit.MILLISECONDS);
+    this.filler = new IdleConnectionFiller(config.getName(), config
+        .getMinIdle()) {
+      protected int fill(int target) throws SQLException {
+        return fillIdle(target);
+      }
+
+      protected boolean isBelowMinIdle() {
+        return getNumIdle() < getMinIdle();
+      }
+    };
+    startEvictor();
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  public RoundTripStatistics getRoundTripStatistics() {
+    return roundTripStatistics;
+  }
+
+  public ValidationStatistics getValidationStatistics() {
+    return validator.getStatistics();
+  }
+
+  public UrlFailover getUrlFailover() {
+    return failover;
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  public LoadShedder getLoadShedder() {
+    return shedder;
+  }
+
+  protected Log getLog() {
+    return log;
+  }
+
+  /**
+   * Borrows a connection from the pool. If none are free a new one is created
+   * provided the pool has not reached its max active size, otherwise the
+   * configured exhausted action is applied. A blocked borrower waits in turn
+   * for a returned connection and gives up max wait after it first asked,
+   * however many retired or invalid connections it is handed meanwhile.
+   * 
+   * @throws SQLException
+   *           If the pool is exhausted, closed or a connection could not be
+   *           created
+   */
+  public Connection getConnection() throws SQLException {
+    return getConnection(Config.PRIORITY_NORMAL);
+  }
+
+  /**
+   * Borrows a connection at the given priority. Waiting borrowers of a higher
+   * priority are served first, and a borrower may not take a connection
+   * reserved for higher priorities, even when it is idle.
+   * 
+   * @see Config#getReservedHigh()
+   * @see Config#getReservedNormal()
+   * @see #getConnection()
+   */
+  public Connection getConnection(int priority) throws SQLException {
+    if (closed) {
+      throw new SQLException("Pool " + config.getName() + " has been closed");
+    }
+
+    long maxWait = config.getMaxWait();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+
+    while (true) {
+      boolean created = false;
+      PoolEntry entry = borrowEntry(0, priority);
+
+      if (entry == null && bag.admits(priority, getNumActive())) {
+        // Out of idle connections so top them up for the borrows to come
+        filler.request();
+        entry = createEntry(false);
+        created = (entry != null);
+      }
+
+      if (entry == null && config.getExhausted() == Config.BURST) {
+        entry = createOverflowEntry();
+        created = (entry != null);
+      }
+
+      if (entry == null) {
+        if (config.getExhausted() == Config.BLOCK
+            || config.getExhausted() == Config.BURST) {
+          long remaining = (maxWait > 0) ? deadline - System.nanoTime()
+              : Long.MAX_VALUE;
+          if (remaining > 0) {
+            shedder.startWait(maxActive);
+            try {
+              entry = borrowEntry(remaining, priority);
+            }
+            finally {
+              shedder.endWait();
+            }
+          }
+          if (entry == null) {
+            throw new SQLException("Timeout waiting for a connection from pool "
+                + config.getName());
+          }
+        }
+        else {
+          throw new SQLException("Pool " + config.getName() + " exhausted");
+        }
+      }
+
+      if (!created && entry.getTracker().isRetired()) {
+        destroy(entry);
+        continue;
+      }
+
+      if (config.isTestOnBorrow()
+          && !entry.getTracker().isVerifiedWithin(config.getValidationInterval())
+          && !validate(entry)) {
+        destroy(entry);
+        if (created) {
+          throw new SQLException("Could not create a validated connection for "
+              + config.getName());
+        }
+        continue;
+      }
+
+      entry.touch();
+      entry.getTracker().markBorrowed();
+      return ProxyConnection.newInstance(this, entry);
+    }
+  }
+
+  /**
+   * @param timeout
+   *          Nanoseconds to wait for a connection to be returned
+   */
+  private PoolEntry borrowEntry(long timeout, int priority) throws SQLException {
+    try {
+      return (PoolEntry) bag.borrow(timeout, TimeUnit.NANOSECONDS, priority);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted whilst waiting for a connection from "
+          + config.getName());
+    }
+  }
+
+  /**
+   * Wraps a physical connection in a {@link StateTrackingConnection}, closing
+   * it if its initial state cannot be read
+   */
+  private Connection track(Connection conn) throws SQLException {
+    try {
+      Connection tracked = StateTrackingConnection.wrap(conn,
+          roundTripStatistics, config.getResetPolicy());
+      StateTrackingConnection tracker = StateTrackingConnection
+          .getTracker(tracked);
+      tracker.retireOnChange(failover.getGeneration());
+      tracker.purgeOnFatalError(classifier, failover);
+      return tracked;
+    }
+    catch (SQLException e) {
+      try {
+        conn.close();
+      }
+      catch (SQLException closeException) {
+        if (getLog().isDebugEnabled())
+          getLog().debug("Could not close physical connection", closeException);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * True if a borrower of the priority may take another connection while
+   * inUse are borrowed without eating into those reserved for higher
+   * priorities
+   */
+  private boolean isAdmitted(int priority, int inUse) {
+    int limit = maxActive;
+    if (limit <= 0) {
+      return true;
+    }
+    if (priority < Config.PRIORITY_HIGH) {
+      limit -= config.getReservedHigh();
+    }
+    if (priority < Config.PRIORITY_NORMAL) {
+      limit -= config.getReservedNormal();
+    }
+    return inUse < limit;
+  }
+
+  /**
+   * Opens a temporary connection above max active for the caller if fewer
+   * than the configured number of burst connections are open. Each borrower
+   * opens its own so a burst is served in parallel.
+   * 
+   * @return The new entry, already borrowed, or null if the burst limit has
+   *         been reached
+   */
+  private PoolEntry createOverflowEntry() throws SQLException {
+    int limit = config.getBurstConnections();
+    int overflow;
+    do {
+      overflow = overflowConnections.get();
+      if (overflow >= limit) {
+        return null;
+      }
+    }
+    while (!overflowConnections.compareAndSet(overflow, overflow + 1));
+
+    try {
+      PoolEntry entry = new PoolEntry(track(openConnection()), true);
+      entry.setState(ConcurrentBag.STATE_IN_USE);
+      bag.add(entry);
+      overflowOpened.incrementAndGet();
+      int peak = overflowPeak.get();
+      while (overflow + 1 > peak
+          && !overflowPeak.compareAndSet(peak, overflow + 1)) {
+        peak = overflowPeak.get();
+      }
+      return entry;
+    }
+    catch (SQLException e) {
+      overflowConnections.decrementAndGet();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      overflowConnections.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Claims a place for a new physical connection if the max active limit
+   * allows it
+   */
+  private boolean reserveSlot() {
+    int maxActive = this.maxActive;
+    boolean grow = (config.getExhausted() == Config.GROW);
+    while (true) {
+      int total = totalConnections.get();
+      if (maxActive > 0 && total >= maxActive && !grow) {
+        return false;
+      }
+      if (totalConnections.compareAndSet(total, total + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Opens a new physical connection if the max active limit allows it.
+   * 
+   * @param idle
+   *          If true the entry is added free for any borrower otherwise it is
+   *          added already borrowed by the caller
+   * @return The new entry or null if the pool is at its limit
+   */
+  private PoolEntry createEntry(boolean idle) throws SQLException {
+    if (!reserveSlot()) {
+      return null;
+    }
+
+    try {
+      Connection conn = openConnection();
+      PoolEntry entry = new PoolEntry(track(conn));
+      if (!idle) {
+        entry.setState(ConcurrentBag.STATE_IN_USE);
+      }
+      bag.add(entry);
+      scheduleRetirement(entry);
+      return entry;
+    }
+    catch (SQLException e) {
+      totalConnections.decrementAndGet();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      totalConnections.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a physical connection through the failover, reporting the outcome
+   * to the circuit breaker
+   */
+  private Connection openConnection() throws SQLException {
+    try {
+      Connection conn = failover.openConnection();
+      breaker.recordSuccess();
+      return conn;
+    }
+    catch (SQLException e) {
+      breaker.recordFailure();
+      throw e;
+    }
+  }
+
+  /**
+   * Adds an already open physical connection to the pool as an idle entry
+   * provided the max active and max idle limits leave room for it
+   * 
+   * @return False if the connection was not added; the caller must then
+   *         close it
+   */
+  public boolean addConnection(Connection conn) {
+    int maxIdle = this.maxIdle;
+    if (closed
+        || (maxIdle >= 0 && bag.getCount(ConcurrentBag.STATE_NOT_IN_USE) >= maxIdle)
+        || !reserveSlot()) {
+      return false;
+    }
+
+    try {
+      PoolEntry entry = new PoolEntry(track(conn));
+      bag.add(entry);
+      scheduleRetirement(entry);
+      return true;
+    }
+    catch (SQLException e) {
+      totalConnections.decrementAndGet();
+      if (getLog().isDebugEnabled())
+        getLog().debug("Could not add connection to " + config.getName(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Opens idle connections until there are at least target idle or the max
+   * active or max idle limit is reached
+   * 
+   * @return The number of connections opened
+   */
+  public int fillIdle(int target) throws SQLException {
+    int maxIdle = this.maxIdle;
+    if (maxIdle >= 0 && target > maxIdle) {
+      target = maxIdle;
+    }
+    int created = 0;
+    while (!closed && !breaker.isOpen() && getNumIdle() < target) {
+      if (createEntry(true) == null) {
+        break;
+      }
+      created++;
+    }
+    return created;
+  }
+
+  /**
+   * Called when a borrower closes its connection
+   */
+  void recycle(PoolEntry entry) {
+    entry.touch();
+    shedder.recordHold(entry.getTracker().markReturned());
+
+    if (closed || entry.getTracker().isRetired()) {
+      destroy(entry);
+      return;
+    }
+
+    if (config.isTestOnReturn() && !validate(entry)) {
+      destroy(entry);
+      return;
+    }
+
+    // Burst connections are only kept while someone is waiting for them
+    if (entry.isOverflow()) {
+      if (bag.getWaitingThreadCount() == 0 || !reset(entry)) {
+        destroy(entry);
+        return;
+      }
+      entry.getTracker().markVerified();
+      // The waiter seen above may give up before it is handed the
+      // connection; it must then go rather than join the idle ones
+      if (!bag.handOff(entry)) {
+        destroy(entry);
+      }
+      return;
+    }
+
+    int maxIdle = this.maxIdle;
+    if (maxIdle >= 0 && bag.getWaitingThreadCount() == 0
+        && bag.getCount(ConcurrentBag.STATE_NOT_IN_USE) >= maxIdle) {
+      destroy(entry);
+      return;
+    }
+
+    if (!reset(entry)) {
+      destroy(entry);
+      return;
+    }
+    entry.getTracker().markVerified();
+
+    bag.requite(entry);
+  }
+
+  /**
+   * Applies the synonym's reset policy to a returned connection and puts
+   * back any settings the borrower changed
+   * 
+   * @return False if the connection could not be reset and must be discarded
+   */
+  private boolean reset(PoolEntry entry) {
+    try {
+      entry.getTracker().reset();
+      entry.getTracker().restoreDefaults();
+      return true;
+    }
+    catch (SQLException e) {
+      if (getLog().isWarnEnabled())
+        getLog().warn("Could not reset returned connection for "
+            + config.getName(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Removes the entry from the pool and closes its physical connection. If
+   * threads are waiting a replacement connection is opened for them on the
+   * housekeeper so the thread returning the connection is not held up.
+   */
+  private void destroy(PoolEntry entry) {
+    Housekeeper.getInstance().cancel(entry.getRetirement());
+
+    if (bag.remove(entry)) {
+      if (entry.isOverflow()) {
+        overflowConnections.decrementAndGet();
+      }
+      else {
+        totalConnections.decrementAndGet();
+      }
+      try {
+        entry.getConnection().close();
+      }
+      catch (SQLException e) {
+        if (getLog().isDebugEnabled())
+          getLog().debug("Could not close physical connection", e);
+      }
+    }
+
+    if (!closed && bag.getWaitingThreadCount() > 0) {
+      openForWaiters(1);
+    }
+
+    if (!closed) {
+      filler.request();
+    }
+  }
+
+  /**
+   * Tests the entry's connection using the synonym's validation mode
+   */
+  private boolean validate(PoolEntry entry) {
+    boolean valid = validator.validate(entry.getConnection());
+    if (valid) {
+      entry.getTracker().markVerified();
+      breaker.recordSuccess();
+    }
+    else {
+      breaker.recordFailure();
+    }
+    return valid;
+  }
+
+  /**
+   * Schedules the entry to be retired at its max lifetime, if one is set.
+   * An idle entry is closed by the housekeeper; one in use is closed when it
+   * is returned.
+   */
+  private void scheduleRetirement(final PoolEntry entry) {
+    long maxLifetime = config.getMaxLifetime();
+    if (maxLifetime <= 0 || closed) {
+      return;
+    }
+
+    Runnable retirement = new Runnable() {
+      public void run() {
+        if (bag.reserve(entry)) {
+          if (getLog().isDebugEnabled())
+            getLog().debug("Retiring connection at max lifetime for "
+                + config.getName());
+          destroy(entry);
+        }
+      }
+    };
+    entry.setRetirement(Housekeeper.getInstance().schedule(config.getName(),
+        Housekeeper.RETIREMENT, retirement,
+        entry.getTracker().retireAfter(maxLifetime)));
+  }
+
+  private void startEvictor() {
+    long period = config.getTimeBetweenEvictRun();
+    if (period <= 0 && config.getMinIdle() > 0) {
+      period = FILL_CHECK_PERIOD;
+    }
+    if (period <= 0) {
+      return;
+    }
+
+    Runnable evictionTask = new Runnable() {
+      public void run() {
+        try {
+          if (config.getTimeBetweenEvictRun() > 0) {
+            evict();
+          }
+          filler.request();
+        }
+        catch (RuntimeException e) {
+          if (getLog().isErrorEnabled())
+            getLog().error("Eviction run failed for " + config.getName(), e);
+        }
+      }
+    };
+    evictionRun = Housekeeper.getInstance().scheduleWithFixedDelay(
+        config.getName(), Housekeeper.EVICTION, evictionTask, period, period);
+  }
+
+  /**
+   * Closes every idle connection which has been retired
+   */
+  void purgeRetired() {
+    for (Iterator iter = bag.values(ConcurrentBag.STATE_NOT_IN_USE).iterator(); iter
+        .hasNext();) {
+      PoolEntry entry = (PoolEntry) iter.next();
+      if (bag.reserve(entry)) {
+        if (entry.getTracker().isRetired()) {
+          destroy(entry);
+        }
+        else {
+          bag.unreserve(entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Examines the least recently used idle connections. Those idle for longer
+   * than the min evict time are closed and if test while idle is on the rest
+   * are validated, several at once if the config asks for it. Connections
+   * which fail validation are closed and replaced as they fail.
+   */
+  void evict() {
+    List idle = bag.values(ConcurrentBag.STATE_NOT_IN_USE);
+    Collections.sort(idle, LEAST_RECENTLY_USED);
+
+    int tests = config.getNumTestsPerEvictionRun();
+    if (tests < 0) {
+      tests = (int) Math.ceil((double) idle.size() / Math.abs(tests));
+    }
+
+    int examined = 0;
+    List toValidate = new ArrayList();
+    for (Iterator iter = idle.iterator(); iter.hasNext() && examined < tests;) {
+      PoolEntry entry = (PoolEntry) iter.next();
+      if (!bag.reserve(entry)) {
+        continue;
+      }
+      examined++;
+
+      if (config.getMinEvictTime() > 0
+          && entry.getIdleTime() > config.getMinEvictTime()) {
+        destroy(entry);
+      }
+      else if (config.isTestWhileIdle()) {
+        toValidate.add(entry);
+      }
+      else {
+        bag.unreserve(entry);
+      }
+    }
+
+    if (!toValidate.isEmpty()) {
+      validateIdle(toValidate);
+    }
+  }
+
+  /**
+   * Validates the reserved entries on this thread, with up to
+   * concurrentevicttests - 1 helpers on the pool's housekeeper workers taking
+   * entries from the same queue when a worker is free. This thread never
+   * waits for a helper; an entry a helper has taken is put back or closed by
+   * that helper. Entries not reached within the evict budget are put back
+   * untested; a budget of 0 or less validates every entry.
+   */
+  private void validateIdle(List entries) {
+    final Queue queue = new ConcurrentLinkedQueue(entries);
+    final boolean bounded = config.getEvictBudget() > 0;
+    final long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(config.getEvictBudget());
+
+    int helpers = Math.min(config.getConcurrentEvictTests(), entries.size()) - 1;
+    Runnable helper = new Runnable() {
+      public void run() {
+        validateQueued(queue, bounded, deadline);
+      }
+    };
+    for (int i = 0; i < helpers; i++) {
+      Housekeeper.getInstance().execute(config.getName(),
+          Housekeeper.VALIDATION, helper);
+    }
+
+    validateQueued(queue, bounded, deadline);
+
+    PoolEntry entry;
+    while ((entry = (PoolEntry) queue.poll()) != null) {
+      bag.unreserve(entry);
+    }
+  }
+
+  private void validateQueued(Queue queue, boolean bounded, long deadline) {
+    while (!bounded || System.nanoTime() - deadline < 0) {
+      PoolEntry entry = (PoolEntry) queue.poll();
+      if (entry == null) {
+        return;
+      }
+      if (validate(entry)) {
+        bag.unreserve(entry);
+      }
+      else {
+        destroy(entry);
+        replace();
+      }
+    }
+  }
+
+  /**
+   * Opens a replacement for a connection which failed validation on the
+   * housekeeper, as far as the max idle and max active limits allow
+   */
+  private void replace() {
+    Housekeeper.getInstance().execute(config.getName(),
+        Housekeeper.REPLENISHMENT, new Runnable() {
+          public void run() {
+            int maxIdle = getMaxIdle();
+            if (closed || breaker.isOpen()
+                || (maxIdle >= 0 && getNumIdle() >= maxIdle)) {
+              return;
+            }
+            try {
+              createEntry(true);
+            }
+            catch (SQLException e) {
+              if (getLog().isWarnEnabled())
+                getLog().warn("Could not replace evicted connection for "
+                    + config.getName(), e);
+            }
+          }
+        });
+  }
+
+  public int getNumActive() {
+    return bag.getCount(ConcurrentBag.STATE_IN_USE);
+  }
+
+  public int getNumIdle() {
+    return bag.getCount(ConcurrentBag.STATE_NOT_IN_USE);
+  }
+
+  public int getMaxActive() {
+    return maxActive;
+  }
+
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+
+  /**
+   * Changes the max active and max idle sizes. If threads are waiting and max
+   * active has grown, connections are opened for them on the housekeeper.
+   */
+  public void setLimits(int maxActive, int maxIdle) {
+    int previous = this.maxActive;
+    this.maxIdle = maxIdle;
+    this.maxActive = maxActive;
+
+    int room = (maxActive <= 0 || previous <= 0) ? 0 : maxActive - previous;
+    openForWaiters(Math.min(room, bag.getWaitingThreadCount()));
+  }
+
+  /**
+   * Opens up to count connections on the housekeeper for threads waiting to
+   * borrow, stopping once nobody is waiting
+   */
+  private void openForWaiters(int count) {
+    Runnable opener = new Runnable() {
+      public void run() {
+        if (closed || bag.getWaitingThreadCount() == 0) {
+          return;
+        }
+        try {
+          createEntry(true);
+        }
+        catch (SQLException e) {
+          if (getLog().isWarnEnabled())
+            getLog().warn("Could not open connection for a waiting "
+                + "borrower of " + config.getName(), e);
+        }
+      }
+    };
+    for (int i = 0; i < count; i++) {
+      Housekeeper.getInstance().execute(config.getName(),
+          Housekeeper.REPLENISHMENT, opener);
+    }
+  }
+
+  /**
+   * Number of burst connections currently open above max active
+   */
+  public int getOverflowConnections() {
+    return overflowConnections.get();
+  }
+
+  /**
+   * Number of burst connections opened since the pool was created
+   */
+  public long getOverflowOpened() {
+    return overflowOpened.get();
+  }
+
+  /**
+   * The most burst connections open at once since the pool was created
+   */
+  public int getOverflowPeak() {
+    return overflowPeak.get();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Closes all idle connections and stops the eviction runs. Borrowed connections
+   * are closed as they are returned.
+   */
+  public void close() {
+    closed = true;
+    filler.close();
+    failover.close();
+    breaker.close();
+    Housekeeper.getInstance().cancel(evictionRun);
+    bag.close();
+
+    for (Iterator iter = bag.values(ConcurrentBag.STATE_NOT_IN_USE).iterator(); iter
+        .hasNext();) {
+      PoolEntry entry = (PoolEntry) iter.next();
+      if (bag.reserve(entry)) {
+        destroy(entry);
+      }
+    }
+  }
+
+  public String toString() {
+    return "DbConConnectionPool[name=" + config.getName() + ", total="
+        + totalConnections.get() + ", active=" + getNumActive() + ", idle="
+        + getNumIdle() + ", waiting=" + bag.getWaitingThreadCount()
+        + ", handoffs=" + bag.getHandoffCount()
+        + ", overflow=" + getOverflowConnections() + ", overflowOpened="
+        + getOverflowOpened() + ", overflowPeak=" + getOverflowPeak()
+        + ", shedding=[" + shedder + "]]";
+  }
+}
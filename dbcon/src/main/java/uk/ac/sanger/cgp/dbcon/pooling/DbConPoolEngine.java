@@ -0,0 +1,136 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+
+/**
+ * Engine backed by the native lock-free {@link DbConConnectionPool}
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class DbConPoolEngine extends AbstractPoolEngine {
+
+  private DbConConnectionPool connectionPool = null;
+
+  private DataSource dataSource = null;
+
+  public DbConPoolEngine() {
+    super();
+  }
+
+  public String getName() {
+    return Config.ENGINE_DBCON;
+  }
+
+  public void createPool(Config config) {
+    connectionPool = new DbConConnectionPool(config);
+    dataSource = new DbConPoolingDataSource(connectionPool);
+  }
+
+  public DbConConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  public boolean addConnection(Connection connection) {
+    return connectionPool.addConnection(connection);
+  }
+
+  public int fillIdle(int target) throws SQLException {
+    return connectionPool.fillIdle(target);
+  }
+
+  public Connection getConnection() throws SQLException {
+    return connectionPool.getConnection();
+  }
+
+  public Connection getConnection(int priority) throws SQLException {
+    return connectionPool.getConnection(priority);
+  }
+
+  public RoundTripStatistics getRoundTripStatistics() {
+    return connectionPool.getRoundTripStatistics();
+  }
+
+  public ValidationStatistics getValidationStatistics() {
+    return connectionPool.getValidationStatistics();
+  }
+
+  public UrlFailover getUrlFailover() {
+    return connectionPool.getUrlFailover();
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return connectionPool.getCircuitBreaker();
+  }
+
+  public LoadShedder getLoadShedder() {
+    return connectionPool.getLoadShedder();
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  public int getActiveConnections() {
+    return connectionPool.getNumActive();
+  }
+
+  public int getIdleConnections() {
+    return connectionPool.getNumIdle();
+  }
+
+  public int getMaxActiveConnections() {
+    return connectionPool.getMaxActive();
+  }
+
+  public int getMaxIdleConnections() {
+    return connectionPool.getMaxIdle();
+  }
+
+  public boolean isResizable() {
+    return true;
+  }
+
+  public void setLimits(int maxActive, int maxIdle) {
+    connectionPool.setLimits(maxActive, maxIdle);
+  }
+
+  public String getStatus() {
+    return connectionPool.toString();
+  }
+
+  public void destroyPool() {
+    connectionPool.close();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * DataSource view of a {@link DbConConnectionPool}. Mirrors the DBCP
+ * PoolingDataSource in that only the no argument getConnection method and the
+ * log writer are supported.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class DbConPoolingDataSource implements DataSource {
+
+  private final DbConConnectionPool pool;
+
+  private PrintWriter logWriter = null;
+
+  public DbConPoolingDataSource(DbConConnectionPool pool) {
+    this.pool = pool;
+  }
+
+  public Connection getConnection() throws SQLException {
+    return pool.getConnection();
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  public Connection getConnection(String username, String password)
+      throws SQLException {
+    throw new UnsupportedOperationException();
+  }
+
+  public PrintWriter getLogWriter() throws SQLException {
+    return logWriter;
+  }
+
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    this.logWriter = out;
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  public int getLoginTimeout() throws SQLException {
+    throw new UnsupportedOperationException("Login timeout is not supported.");
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  public void setLoginTimeout(int seconds) throws SQLException {
+    throw new UnsupportedOperationException("Login timeout is not supported.");
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) {
+    return iface.isInstance(this);
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (!isWrapperFor(iface)) {
+      throw new SQLException("Cannot unwrap to " + iface.getName());
+    }
+    return iface.cast(this);
+  }
+}
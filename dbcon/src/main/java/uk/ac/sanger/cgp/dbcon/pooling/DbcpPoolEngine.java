@@ -0,0 +1,494 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.dbcp.SQLNestedException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+
+/**
+ * Engine backed by commons-pool's GenericObjectPool and commons-dbcp's
+ * PoolingDataSource. This is the default engine.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class DbcpPoolEngine extends AbstractPoolEngine {
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private GenericObjectPool underlyingConnectionPool = null;
+
+  private DataSource dataSource = null;
+
+  private final RoundTripStatistics roundTripStatistics = new RoundTripStatistics();
+
+  private IdleConnectionFiller filler = null;
+
+  private ConnectionValidator validator = null;
+
+  private UrlFailover failover = null;
+
+  private CircuitBreaker breaker = null;
+
+  private LoadShedder shedder = null;
+
+  private ScheduledFuture evictionRun = null;
+
+  /** Connection handed to the connection factory by addConnection */
+  private final AtomicReference adoptedConnection = new AtomicReference();
+
+  public DbcpPoolEngine() {
+    super();
+  }
+
+  public String getName() {
+    return Config.ENGINE_DBCP;
+  }
+
+  /**
+   * Creates the pool and the data source which provides the pooling ability
+   */
+  public void createPool(Config config) {
+    PoolableObjectFactory pof = null;
+
+    // Creation of the generic pool and linking a factory to it. Eviction is
+    // run by the shared Housekeeper so commons-pool's own evictor is off
+    byte exhausted = config.getExhausted();
+    if (exhausted == Config.BURST) {
+      if (log.isWarnEnabled())
+        log.warn("Burst connections are not supported by the dbcp engine; "
+            + config.getName() + " will block when exhausted");
+      exhausted = Config.BLOCK;
+    }
+    final LoadShedder shedder = new LoadShedder(config);
+    this.shedder = shedder;
+    underlyingConnectionPool = new GenericObjectPool(pof,
+        config.getMaxActive(), exhausted, config.getMaxWait(),
+        config.getMaxIdle(), config.isTestOnBorrow(), config.isTestOnReturn(),
+        -1, config.getNumTestsPerEvictionRun(),
+        config.getMinEvictTime(), config.isTestWhileIdle()) {
+      // Borrowers which are about to block are checked by the load shedder.
+      // Both data source and engine borrows come through here. Hold times
+      // are taken here rather than on activation and passivation, which the
+      // idle object tests also go through
+      public Object borrowObject() throws Exception {
+        int maxActive = getMaxActive();
+        if (getWhenExhaustedAction() != WHEN_EXHAUSTED_BLOCK
+            || maxActive <= 0 || getNumIdle() > 0
+            || getNumActive() < maxActive) {
+          return markBorrowed(super.borrowObject());
+        }
+        shedder.startWait(maxActive);
+        try {
+          return markBorrowed(super.borrowObject());
+        }
+        finally {
+          shedder.endWait();
+        }
+      }
+
+      public void returnObject(Object obj) throws Exception {
+        recordHold(obj);
+        super.returnObject(obj);
+      }
+
+      public void invalidateObject(Object obj) throws Exception {
+        recordHold(obj);
+        super.invalidateObject(obj);
+      }
+
+      private Object markBorrowed(Object obj) {
+        StateTrackingConnection tracker = StateTrackingConnection
+            .getTracker((Connection) obj);
+        if (tracker != null) {
+          tracker.markBorrowed();
+        }
+        return obj;
+      }
+
+      private void recordHold(Object obj) {
+        StateTrackingConnection tracker = StateTrackingConnection
+            .getTracker((Connection) obj);
+        if (tracker != null) {
+          shedder.recordHold(tracker.markReturned());
+        }
+      }
+    };
+    underlyingConnectionPool.setMinIdle(config.getMinIdle());
+    filler = new IdleConnectionFiller(config.getName(), config.getMinIdle()) {
+      protected int fill(int target) throws SQLException {
+        return fillIdle(target);
+      }
+
+      protected boolean isBelowMinIdle() {
+        return underlyingConnectionPool.getNumIdle() < getMinIdle();
+      }
+    };
+
+    // This section allows for PreparedStatements to be used
+    GenericKeyedObjectPoolFactory kopf = null;
+
+    if (config.getCachedPreparedStatements() != 0) {
+      kopf = new GenericKeyedObjectPoolFactory(null, -1, // unlimited maxActive
+          // (per key)
+          GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL, 0, // maxWait
+          1, // maxIdle (per key)
+          config.getCachedPreparedStatements());
+    }
+
+    // Creating the correct connection factory. Connections are wrapped so
+    // the auto-commit toggling done on every return and borrow stays local
+    final String resetPolicy = config.getResetPolicy();
+    final long validationInterval = config.getValidationInterval();
+    final long maxLifetime = config.getMaxLifetime();
+    final ConnectionValidator validator = new ConnectionValidator(config);
+    this.validator = validator;
+    final UrlFailover failover = new UrlFailover(config);
+    this.failover = failover;
+    final FatalErrorClassifier classifier = SqlStateFatalErrorClassifier
+        .forConfig(config);
+    // commons-pool cannot pick out the idle connections to the old URL, or
+    // those opened before a fatal error, so they all go; new ones are opened
+    // as needed
+    failover.setSwitchListener(new Runnable() {
+      public void run() {
+        underlyingConnectionPool.clear();
+        filler.request();
+      }
+    });
+    final CircuitBreaker breaker = new CircuitBreaker(config, failover,
+        validator);
+    this.breaker = breaker;
+    ConnectionFactory connectionFactory = new ConnectionFactory() {
+      public Connection createConnection() throws SQLException {
+        Connection conn = (Connection) adoptedConnection.getAndSet(null);
+        if (conn == null) {
+          try {
+            conn = failover.openConnection();
+            breaker.recordSuccess();
+          }
+          catch (SQLException e) {
+            breaker.recordFailure();
+            throw e;
+          }
+        }
+        try {
+          Connection tracked = StateTrackingConnection.wrap(conn,
+              roundTripStatistics, resetPolicy);
+          StateTrackingConnection tracker = StateTrackingConnection
+              .getTracker(tracked);
+          tracker.retireOnChange(failover.getGeneration());
+          tracker.purgeOnFatalError(classifier, failover);
+          if (maxLifetime > 0) {
+            tracker.retireAfter(maxLifetime);
+          }
+          return tracked;
+        }
+        catch (SQLException e) {
+          conn.close();
+          throw e;
+        }
+      }
+    };
+
+    // Final construction of the poolable connection factory from:
+    // PoolableConnectionFactory(ConnectionFactory connFactory, ObjectPool pool,
+    // KeyedObjectPoolFactory stmtPoolFactory, String validationQuery,
+    // boolean defaultReadOnly, boolean defaultAutoCommit)
+
+    PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(
+        connectionFactory, underlyingConnectionPool, kopf, null, false,
+        false) {
+      // Connections past their max lifetime or opened before a URL switch
+      // are destroyed by the pool when they fail activation, passivation or
+      // validation. Borrowing one makes
+      // the pool move on to the next idle connection.
+      public void activateObject(Object obj) throws Exception {
+        assertNotRetired((Connection) obj);
+        super.activateObject(obj);
+      }
+
+      // DBCP's rollback and auto-commit switch on return follow the
+      // synonym's reset policy. Isolation and catalog are put back as the
+      // dbcon engine does
+      public void passivateObject(Object obj) throws Exception {
+        assertNotRetired((Connection) obj);
+        StateTrackingConnection tracker = StateTrackingConnection
+            .getTracker((Connection) obj);
+        if (tracker != null) {
+          tracker.setReturning(true);
+        }
+        try {
+          super.passivateObject(obj);
+          if (tracker != null) {
+            tracker.restoreDefaults();
+            tracker.markVerified();
+          }
+        }
+        finally {
+          if (tracker != null) {
+            tracker.setReturning(false);
+          }
+        }
+      }
+
+      // Validation uses the synonym's validation mode against the tracked
+      // connection; those proven to work within the validation interval are
+      // not tested again
+      public boolean validateObject(Object obj) {
+        StateTrackingConnection tracker = StateTrackingConnection
+            .getTracker((Connection) obj);
+        if (tracker == null) {
+          return validator.validate((Connection) obj);
+        }
+        if (tracker.isRetired()) {
+          return false;
+        }
+        if (tracker.isVerifiedWithin(validationInterval)) {
+          return true;
+        }
+        boolean valid = validator.validate(tracker.getConnection());
+        if (valid) {
+          tracker.markVerified();
+          breaker.recordSuccess();
+        }
+        else {
+          breaker.recordFailure();
+        }
+        return valid;
+      }
+    };
+
+    // Creating the pooled datasource. Borrowers get the same handle as the
+    // dbcon engine gives out instead of DBCP's guard so the pool can find
+    // the tracked connection without opening up access to it
+    dataSource = new PoolingDataSource(underlyingConnectionPool) {
+      public Connection getConnection() throws SQLException {
+        try {
+          return ProxyConnection.newInstance((Connection) underlyingConnectionPool
+              .borrowObject());
+        }
+        catch (SQLException e) {
+          throw e;
+        }
+        catch (NoSuchElementException e) {
+          throw new SQLNestedException("Cannot get a connection, pool exhausted", e);
+        }
+        catch (RuntimeException e) {
+          throw e;
+        }
+        catch (Exception e) {
+          throw new SQLNestedException("Cannot get a connection, general error", e);
+        }
+      }
+    };
+
+    startEvictor(config);
+  }
+
+  /**
+   * Runs commons-pool's eviction and tops the pool up to min idle every
+   * eviction period
+   */
+  private void startEvictor(final Config config) {
+    long period = config.getTimeBetweenEvictRun();
+    if (period <= 0) {
+      return;
+    }
+    Runnable evictionTask = new Runnable() {
+      public void run() {
+        try {
+          underlyingConnectionPool.evict();
+          filler.request();
+        }
+        catch (Exception e) {
+          if (log.isErrorEnabled())
+            log.error("Eviction run failed for " + config.getName(), e);
+        }
+      }
+    };
+    evictionRun = Housekeeper.getInstance().scheduleWithFixedDelay(
+        config.getName(), Housekeeper.EVICTION, evictionTask, period, period);
+  }
+
+  private static void assertNotRetired(Connection conn) throws SQLException {
+    StateTrackingConnection tracker = StateTrackingConnection.getTracker(conn);
+    if (tracker != null && tracker.isRetired()) {
+      throw new SQLException("Connection has been retired");
+    }
+  }
+
+  /**
+   * Adds the connection through the pool's own addObject so it is wrapped
+   * and passivated like any other; the connection factory hands out the
+   * adopted connection instead of opening a new one
+   */
+  public boolean addConnection(Connection connection) {
+    int maxIdle = underlyingConnectionPool.getMaxIdle();
+    if (maxIdle >= 0 && underlyingConnectionPool.getNumIdle() >= maxIdle) {
+      return false;
+    }
+
+    adoptedConnection.set(connection);
+    try {
+      underlyingConnectionPool.addObject();
+    }
+    catch (Exception e) {
+      if (log.isDebugEnabled())
+        log.debug("Could not add connection to the pool", e);
+    }
+    // Still there means the factory never took it so the caller keeps it
+    return !adoptedConnection.compareAndSet(connection, null);
+  }
+
+  /**
+   * Uses addObject so new connections go through the normal factory and
+   * passivation. commons-pool's own minIdle support only runs from the
+   * evictor so it is not used here.
+   */
+  public int fillIdle(int target) throws SQLException {
+    int maxActive = underlyingConnectionPool.getMaxActive();
+    int maxIdle = underlyingConnectionPool.getMaxIdle();
+    if (maxIdle >= 0 && target > maxIdle) {
+      target = maxIdle;
+    }
+    int created = 0;
+    while (!breaker.isOpen() && underlyingConnectionPool.getNumIdle() < target
+        && (maxActive <= 0 || underlyingConnectionPool.getNumActive()
+            + underlyingConnectionPool.getNumIdle() < maxActive)) {
+      try {
+        underlyingConnectionPool.addObject();
+      }
+      catch (SQLException e) {
+        throw e;
+      }
+      catch (Exception e) {
+        SQLException sqle = new SQLException("Could not add connection to the pool");
+        sqle.initCause(e);
+        throw sqle;
+      }
+      created++;
+    }
+    return created;
+  }
+
+  public Connection getConnection() throws SQLException {
+    Connection conn = dataSource.getConnection();
+    filler.request();
+    return conn;
+  }
+
+  /**
+   * GenericObjectPool has no notion of priority so this is the same as
+   * {@link #getConnection()}
+   */
+  public Connection getConnection(int priority) throws SQLException {
+    return getConnection();
+  }
+
+  public RoundTripStatistics getRoundTripStatistics() {
+    return roundTripStatistics;
+  }
+
+  public ValidationStatistics getValidationStatistics() {
+    return validator.getStatistics();
+  }
+
+  public UrlFailover getUrlFailover() {
+    return failover;
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  public LoadShedder getLoadShedder() {
+    return shedder;
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  public int getActiveConnections() {
+    return underlyingConnectionPool.getNumActive();
+  }
+
+  public int getIdleConnections() {
+    return underlyingConnectionPool.getNumIdle();
+  }
+
+  public int getMaxActiveConnections() {
+    return underlyingConnectionPool.getMaxActive();
+  }
+
+  public int getMaxIdleConnections() {
+    return underlyingConnectionPool.getMaxIdle();
+  }
+
+  public boolean isResizable() {
+    return true;
+  }
+
+  /**
+   * GenericObjectPool wakes its waiting borrowers when either limit changes
+   */
+  public void setLimits(int maxActive, int maxIdle) {
+    underlyingConnectionPool.setMaxActive(maxActive);
+    underlyingConnectionPool.setMaxIdle(maxIdle);
+  }
+
+  public String getStatus() {
+    return underlyingConnectionPool.toString();
+  }
+
+  public void destroyPool() throws Exception {
+    Housekeeper.getInstance().cancel(evictionRun);
+    filler.close();
+    failover.close();
+    breaker.close();
+    underlyingConnectionPool.close();
+  }
+}
@@ -0,0 +1,57 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.SQLException;
+
+/**
+ * <p>
+ * Decides whether an error thrown by a borrowed connection means the
+ * database has gone away, in which case every other connection in the pool
+ * is assumed dead as well. The pool then retires all of its connections in
+ * one go rather than leaving each borrower to find a dead connection for
+ * itself.
+ * 
+ * <p>
+ * A synonym picks its classifier with the
+ * <code>&lt;fatalerrorclassifier&gt;</code> element of its pool definition
+ * which holds the name of the implementing class; it must have a public no
+ * argument constructor. Without one {@link SqlStateFatalErrorClassifier} is
+ * used.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public interface FatalErrorClassifier {
+
+  /**
+   * True if the exception shows the connection to the database, rather than
+   * just the statement, has failed. Called on the thread which caught the
+   * exception so should not block.
+   */
+  boolean isFatal(SQLException e);
+}
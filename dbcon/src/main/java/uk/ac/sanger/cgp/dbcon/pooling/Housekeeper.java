@@ -0,0 +1,481 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * The one scheduler for the background work of every pool: eviction and
+ * idle validation, min idle replenishment, max lifetime retirement, primary
+ * URL checks, standby upkeep and circuit breaker probes. All pools in
+ * {@link uk.ac.sanger.cgp.dbcon.pooling.Pools} and
+ * {@link uk.ac.sanger.cgp.dbcon.singletons.SingletonPools} share one timing
+ * thread and {@link #MAX_WORKERS} daemon worker threads however many
+ * synonyms are loaded.
+ * 
+ * <p>
+ * Each task is submitted for a synonym and no synonym runs more than
+ * {@link #POOL_WORKERS} tasks at once; its other tasks wait their turn
+ * without holding a worker. A pool whose database hangs on connect or
+ * validation therefore ties up at most that many workers and the rest carry
+ * on with the other pools. A periodic run which is due while the previous
+ * one is still going is skipped rather than queued behind it. Pools call
+ * {@link #release(String)} when they are destroyed.
+ * 
+ * <p>
+ * Each task is given a kind such as {@link #EVICTION} when it is submitted
+ * and the number of runs, failures and time spent are recorded per kind. A
+ * task which throws is logged and, if periodic, keeps its schedule.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class Housekeeper {
+
+  /** Upper limit on the housekeeping tasks running at once */
+  public static final int MAX_WORKERS = 8;
+
+  /** Upper limit on the housekeeping tasks of one synonym running at once */
+  public static final int POOL_WORKERS = 2;
+
+  /** Time in milliseconds an idle worker is kept */
+  public static final long WORKER_KEEP_ALIVE = 60000;
+
+  /** Eviction runs including idle validation */
+  public static final String EVICTION = "eviction";
+
+  /** Idle connection validation done alongside an eviction run */
+  public static final String VALIDATION = "validation";
+
+  /** Topping pools up to their min idle size and replacing evicted connections */
+  public static final String REPLENISHMENT = "replenishment";
+
+  /** Retiring connections at their max lifetime */
+  public static final String RETIREMENT = "retirement";
+
+  /** Primary URL checks and standby connection upkeep */
+  public static final String FAILOVER = "failover";
+
+  /** Circuit breaker probes */
+  public static final String BREAKER = "breaker";
+
+  /** Adaptive pool sizing decisions */
+  public static final String SIZING = "sizing";
+
+  /**
+   * Cancelled tasks are only removed from the queue when they are due, so
+   * the queue is purged after this many cancellations
+   */
+  private static final int PURGE_EVERY = 256;
+
+  private static final Housekeeper INSTANCE = new Housekeeper();
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private final ScheduledThreadPoolExecutor executor;
+
+  private final ThreadPoolExecutor workers;
+
+  /** Lanes keyed by synonym */
+  private final ConcurrentMap lanes = new ConcurrentHashMap();
+
+  private final ConcurrentMap statistics = new ConcurrentHashMap();
+
+  private final AtomicInteger cancellations = new AtomicInteger();
+
+  private Housekeeper() {
+    executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "dbcon-housekeeping-timer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final AtomicInteger threadCount = new AtomicInteger();
+    workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS,
+        WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "dbcon-housekeeping-"
+                + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    workers.allowCoreThreadTimeOut(true);
+  }
+
+  public static Housekeeper getInstance() {
+    return INSTANCE;
+  }
+
+  protected Log getLog() {
+    return log;
+  }
+
+  /**
+   * Runs the task once as soon as a worker is free and the synonym is under
+   * its limit
+   */
+  public void execute(String pool, String kind, Runnable task) {
+    getLane(pool).submit(new Task(kind, task));
+  }
+
+  /**
+   * Runs the task once after the given delay in milliseconds
+   */
+  public ScheduledFuture schedule(String pool, String kind, Runnable task,
+      long delay) {
+    Dispatch dispatch = new Dispatch(pool, new Task(kind, task));
+    dispatch.future = executor.schedule(dispatch, delay,
+        TimeUnit.MILLISECONDS);
+    return dispatch.future;
+  }
+
+  /**
+   * Runs the task repeatedly, handing it out every delay milliseconds. A run
+   * is skipped if the last one has not finished.
+   */
+  public ScheduledFuture scheduleWithFixedDelay(String pool, String kind,
+      Runnable task, long initialDelay, long delay) {
+    Dispatch dispatch = new Dispatch(pool, new Task(kind, task));
+    dispatch.future = executor.scheduleWithFixedDelay(dispatch, initialDelay,
+        delay, TimeUnit.MILLISECONDS);
+    return dispatch.future;
+  }
+
+  /**
+   * Cancels a scheduled task without interrupting it if it is running
+   */
+  public void cancel(Future future) {
+    if (future != null && future.cancel(false)
+        && cancellations.incrementAndGet() % PURGE_EVERY == 0) {
+      executor.purge();
+    }
+  }
+
+  /**
+   * Forgets a synonym whose pool has been destroyed. Its tasks already handed
+   * out or waiting their turn still run; a task submitted for the name
+   * afterwards starts it afresh.
+   */
+  public void release(String pool) {
+    lanes.remove(pool);
+  }
+
+  private Lane getLane(String pool) {
+    Lane lane = (Lane) lanes.get(pool);
+    if (lane == null) {
+      Lane created = new Lane();
+      lane = (Lane) lanes.putIfAbsent(pool, created);
+      if (lane == null) {
+        lane = created;
+      }
+    }
+    return lane;
+  }
+
+  private TaskStatistics getStatistics(String kind) {
+    TaskStatistics stats = (TaskStatistics) statistics.get(kind);
+    if (stats == null) {
+      TaskStatistics created = new TaskStatistics();
+      stats = (TaskStatistics) statistics.putIfAbsent(kind, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * The kinds of task which have run so far, sorted by name
+   */
+  public List getKinds() {
+    List kinds = new ArrayList(statistics.keySet());
+    Collections.sort(kinds);
+    return kinds;
+  }
+
+  /**
+   * Number of completed runs of the given kind
+   */
+  public long getRuns(String kind) {
+    return getStatistics(kind).runs.get();
+  }
+
+  /**
+   * Number of runs of the given kind which threw an exception
+   */
+  public long getFailures(String kind) {
+    return getStatistics(kind).failures.get();
+  }
+
+  /**
+   * Total time spent running tasks of the given kind in milliseconds
+   */
+  public long getTotalMillis(String kind) {
+    return getStatistics(kind).totalNanos.get() / 1000000;
+  }
+
+  /**
+   * Longest single run of the given kind in microseconds
+   */
+  public long getMaxMicros(String kind) {
+    return getStatistics(kind).maxNanos.get() / 1000;
+  }
+
+  /**
+   * Total time spent on housekeeping of every kind in milliseconds
+   */
+  public long getTotalMillis() {
+    long total = 0;
+    for (Iterator iter = statistics.values().iterator(); iter.hasNext();) {
+      total += ((TaskStatistics) iter.next()).totalNanos.get();
+    }
+    return total / 1000000;
+  }
+
+  /**
+   * Number of workers currently running a task, over every synonym
+   */
+  public int getActiveWorkers() {
+    return workers.getActiveCount();
+  }
+
+  /**
+   * Number of synonyms with housekeeping which have not been released
+   */
+  public int getPoolCount() {
+    return lanes.size();
+  }
+
+  /**
+   * Number of tasks currently running for the given synonym
+   */
+  public int getActiveWorkers(String pool) {
+    Lane lane = (Lane) lanes.get(pool);
+    return (lane == null) ? 0 : lane.running.get();
+  }
+
+  /**
+   * Number of tasks waiting to run, including periodic tasks between runs and
+   * tasks held back by their synonym's limit
+   */
+  public int getQueuedTasks() {
+    int queued = executor.getQueue().size() + workers.getQueue().size();
+    for (Iterator iter = lanes.values().iterator(); iter.hasNext();) {
+      queued += ((Lane) iter.next()).pending.size();
+    }
+    return queued;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    sb.append("workers=").append(MAX_WORKERS);
+    sb.append(", pools=").append(getPoolCount());
+    sb.append(", active=").append(getActiveWorkers());
+    sb.append(", queued=").append(getQueuedTasks());
+    sb.append(", totalMillis=").append(getTotalMillis());
+    for (Iterator iter = getKinds().iterator(); iter.hasNext();) {
+      String kind = (String) iter.next();
+      sb.append("; ").append(kind);
+      sb.append(" runs=").append(getRuns(kind));
+      sb.append(" failures=").append(getFailures(kind));
+      sb.append(" totalMillis=").append(getTotalMillis(kind));
+      sb.append(" maxMicros=").append(getMaxMicros(kind));
+    }
+    return sb.toString();
+  }
+
+  private static class TaskStatistics {
+
+    private final AtomicLong runs = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos, boolean failed) {
+      runs.incrementAndGet();
+      if (failed) {
+        failures.incrementAndGet();
+      }
+      totalNanos.addAndGet(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+    }
+  }
+
+  /**
+   * Hands a scheduled task to its synonym's workers on a timing thread
+   */
+  private class Dispatch implements Runnable {
+
+    private final String pool;
+
+    private final Runnable task;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private volatile ScheduledFuture future;
+
+    Dispatch(String pool, Runnable task) {
+      this.pool = pool;
+      this.task = task;
+    }
+
+    public void run() {
+      if (!running.compareAndSet(false, true)) {
+        return;
+      }
+      getLane(pool).submit(new Runnable() {
+        public void run() {
+          try {
+            if (future == null || !future.isCancelled()) {
+              task.run();
+            }
+          }
+          finally {
+            running.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * The tasks of one synonym. At most {@link #POOL_WORKERS} are handed to the
+   * shared workers at once; the rest wait here in order.
+   */
+  private class Lane {
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final Queue pending = new ConcurrentLinkedQueue();
+
+    void submit(Runnable task) {
+      pending.add(task);
+      drain();
+    }
+
+    /**
+     * Hands out waiting tasks while the synonym is under its limit. Called
+     * after every submission and every finished task so none is left behind.
+     */
+    void drain() {
+      while (!pending.isEmpty()) {
+        int current = running.get();
+        if (current >= POOL_WORKERS) {
+          return;
+        }
+        if (!running.compareAndSet(current, current + 1)) {
+          continue;
+        }
+        final Runnable task = (Runnable) pending.poll();
+        if (task == null) {
+          running.decrementAndGet();
+          continue;
+        }
+        try {
+          workers.execute(new Runnable() {
+            public void run() {
+              try {
+                task.run();
+              }
+              finally {
+                running.decrementAndGet();
+                drain();
+              }
+            }
+          });
+        }
+        catch (RejectedExecutionException e) {
+          running.decrementAndGet();
+          if (getLog().isErrorEnabled())
+            getLog().error("Could not hand out housekeeping task", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Times the task and keeps an exception from cancelling a periodic task
+   */
+  private class Task implements Runnable {
+
+    private final TaskStatistics stats;
+
+    private final Runnable task;
+
+    Task(String kind, Runnable task) {
+      this.stats = getStatistics(kind);
+      this.task = task;
+    }
+
+    public void run() {
+      boolean failed = false;
+      long start = System.nanoTime();
+      try {
+        task.run();
+      }
+      catch (RuntimeException e) {
+        failed = true;
+        if (getLog().isErrorEnabled())
+          getLog().error("Housekeeping task failed", e);
+      }
+      finally {
+        stats.record(System.nanoTime() - start, failed);
+      }
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Tops a pool's idle connections back up to its min idle size away from the
+ * borrowing threads. Pools call {@link #request()} whenever the idle count
+ * may have dropped; the request is cheap and at most one fill per pool is
+ * queued or running at any time so requests made while a fill is pending
+ * are absorbed by it.
+ * 
+ * <p>
+ * Fills run on the shared {@link Housekeeper}. This bounds the number of
+ * connections being opened at once however many pools run short together,
+ * e.g. after a database restart, and a pool whose database hangs on connect
+ * ties up no more than its share of the workers.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public abstract class IdleConnectionFiller implements Runnable {
+
+  private static final Log LOG = LogFactory.getLog(IdleConnectionFiller.class);
+
+  private final String name;
+
+  private final int minIdle;
+
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+  private volatile boolean closed = false;
+
+  /**
+   * @param name The pool's synonym; used for logging
+   * @param minIdle The idle count to keep; nothing is done when this is not
+   *          positive
+   */
+  protected IdleConnectionFiller(String name, int minIdle) {
+    this.name = name;
+    this.minIdle = minIdle;
+  }
+
+  /**
+   * Opens connections until the pool has the given number idle or reaches
+   * one of its limits
+   * 
+   * @return The number of connections opened
+   */
+  protected abstract int fill(int target) throws SQLException;
+
+  /**
+   * True if the pool currently holds fewer idle connections than it should.
+   * Called on the borrowing thread so must be cheap.
+   */
+  protected abstract boolean isBelowMinIdle();
+
+  public int getMinIdle() {
+    return minIdle;
+  }
+
+  /**
+   * Schedules a fill unless one is already pending or the pool is at its
+   * min idle size
+   */
+  public void request() {
+    if (minIdle <= 0 || closed || scheduled.get() || !isBelowMinIdle()) {
+      return;
+    }
+    if (scheduled.compareAndSet(false, true)) {
+      Housekeeper.getInstance().execute(name, Housekeeper.REPLENISHMENT, this);
+    }
+  }
+
+  public void run() {
+    try {
+      if (!closed) {
+        int opened = fill(minIdle);
+        if (opened > 0 && LOG.isDebugEnabled())
+          LOG.debug("Opened " + opened + " idle connection(s) for " + name);
+      }
+    }
+    catch (SQLException e) {
+      if (LOG.isWarnEnabled())
+        LOG.warn("Could not fill " + name + " to its min idle size", e);
+    }
+    catch (RuntimeException e) {
+      if (LOG.isErrorEnabled())
+        LOG.error("Idle connection fill failed for " + name, e);
+    }
+    finally {
+      scheduled.set(false);
+    }
+  }
+
+  /**
+   * Stops any further fills for the pool
+   */
+  public void close() {
+    closed = true;
+  }
+}
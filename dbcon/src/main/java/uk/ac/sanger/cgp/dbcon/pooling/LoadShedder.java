@@ -0,0 +1,209 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.ConnectionNotAvailableException;
+
+/**
+ * <p>
+ * Stops borrowers piling up behind a pool which cannot keep up. The pool
+ * engine asks {@link #startWait(int)} before a borrower blocks waiting for a
+ * connection and the borrower is refused straight away if either
+ * <ul>
+ * <li>{@link Config#getMaxWaiters()} borrowers are already waiting</li>
+ * <li>the expected wait is over {@link Config#getMaxExpectedWait()}
+ * milliseconds</li>
+ * </ul>
+ * 
+ * <p>
+ * The expected wait is the borrower's place in the queue times the mean
+ * time a connection is held for, shared out over the pool's max active
+ * connections. The mean is a moving average of the hold times reported by
+ * {@link #recordHold(long)} so it follows a database which is slowing down
+ * within a few returns. No estimate is made until the first connection has
+ * been returned.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class LoadShedder {
+
+  /** Weight of the newest hold time in the moving average is 1/WEIGHT */
+  private static final int WEIGHT = 8;
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private final Config config;
+
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  private final AtomicInteger peakWaiters = new AtomicInteger();
+
+  private final AtomicLong meanHold = new AtomicLong();
+
+  private final AtomicLong queueRejections = new AtomicLong();
+
+  private final AtomicLong waitRejections = new AtomicLong();
+
+  public LoadShedder(Config config) {
+    this.config = config;
+  }
+
+  protected Log getLog() {
+    return log;
+  }
+
+  /**
+   * Counts a borrower in to the wait unless it should be refused. Every
+   * successful call must be followed by {@link #endWait()}.
+   * 
+   * @param maxActive
+   *          The pool's current max active size
+   * @throws ConnectionNotAvailableException
+   *           If the borrower is refused
+   */
+  public void startWait(int maxActive) {
+    int maxWaiters = config.getMaxWaiters();
+    long maxExpectedWait = config.getMaxExpectedWait();
+    while (true) {
+      int waiting = waiters.get();
+      if (maxWaiters > 0 && waiting >= maxWaiters) {
+        queueRejections.incrementAndGet();
+        throw refused(waiting + " borrowers are already waiting");
+      }
+      long expected = getExpectedWait(waiting + 1, maxActive);
+      if (maxExpectedWait > 0 && expected > maxExpectedWait) {
+        waitRejections.incrementAndGet();
+        throw refused("expected wait of " + expected + "ms is over "
+            + maxExpectedWait + "ms");
+      }
+      if (waiters.compareAndSet(waiting, waiting + 1)) {
+        updatePeak(waiting + 1);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Counts a borrower out of the wait, whether or not it got a connection
+   */
+  public void endWait() {
+    waiters.decrementAndGet();
+  }
+
+  /**
+   * Adds how long a connection was held before being returned to the moving
+   * average. Negative times are ignored.
+   */
+  public void recordHold(long nanos) {
+    if (nanos < 0) {
+      return;
+    }
+    while (true) {
+      long mean = meanHold.get();
+      long next = (mean == 0) ? Math.max(1, nanos) : mean + (nanos - mean)
+          / WEIGHT;
+      if (meanHold.compareAndSet(mean, Math.max(1, next))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Milliseconds a borrower at the given place in the queue can expect to
+   * wait
+   */
+  long getExpectedWait(int position, int maxActive) {
+    long perConnection = meanHold.get() * position / Math.max(1, maxActive);
+    return TimeUnit.NANOSECONDS.toMillis(perConnection);
+  }
+
+  private ConnectionNotAvailableException refused(String reason) {
+    if (getLog().isDebugEnabled())
+      getLog().debug("Refused borrower for " + config.getName() + "; " + reason);
+    return new ConnectionNotAvailableException("Pool " + config.getName()
+        + " is shedding load; " + reason);
+  }
+
+  private void updatePeak(int waiting) {
+    while (true) {
+      int peak = peakWaiters.get();
+      if (waiting <= peak || peakWaiters.compareAndSet(peak, waiting)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Number of borrowers waiting for a connection
+   */
+  public int getWaiters() {
+    return waiters.get();
+  }
+
+  /**
+   * Most borrowers seen waiting at once
+   */
+  public int getPeakWaiters() {
+    return peakWaiters.get();
+  }
+
+  /**
+   * Moving average of how long connections are held, in milliseconds
+   */
+  public long getMeanHoldTime() {
+    return TimeUnit.NANOSECONDS.toMillis(meanHold.get());
+  }
+
+  /**
+   * Number of borrowers refused because too many were already waiting
+   */
+  public long getQueueRejections() {
+    return queueRejections.get();
+  }
+
+  /**
+   * Number of borrowers refused because their expected wait was too long
+   */
+  public long getWaitRejections() {
+    return waitRejections.get();
+  }
+
+  public String toString() {
+    return "waiters=" + getWaiters() + ", peakWaiters=" + getPeakWaiters()
+        + ", meanHold=" + getMeanHoldTime() + "ms, queueRejections="
+        + getQueueRejections() + ", waitRejections=" + getWaitRejections();
+  }
+}
@@ -27,22 +27,13 @@
 package uk.ac.sanger.cgp.dbcon.pooling;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 import javax.sql.DataSource;
 
-import org.apache.commons.dbcp.ConnectionFactory;
-import org.apache.commons.dbcp.DriverManagerConnectionFactory;
-import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.pool.PoolableObjectFactory;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
-import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
-import org.apache.commons.pool.impl.GenericObjectPool;
 
 import uk.ac.sanger.cgp.dbcon.config.Config;
 import uk.ac.sanger.cgp.dbcon.exceptions.ConnectionNotAvailableException;
@@ -52,7 +43,8 @@ import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
 
 /**
  * Main class controlling the lifecycle of the pool. This object gives access to
- * the basic pools, data sources and the ability to reset the contents.
+ * the basic pools, data sources and the ability to reset the contents. The
+ * pooling itself is done by the {@link PoolEngine} named in the config.
  * 
  * @author andrewyates
  * @author $Author$
@@ -64,7 +56,11 @@ public class Pool {
 
   private DataSource dataSource = null;
 
-  private GenericObjectPool underlyingConnectionPool = null;
+  private PoolEngine engine = null;
+
+  private ReadReplicas readReplicas = null;
+
+  private AdaptiveSizer adaptiveSizer = null;
 
   private Log log = LogFactory.getLog(this.getClass());
 
@@ -92,13 +88,41 @@ public class Pool {
     this.dataSource = dataSource;
   }
 
-  private GenericObjectPool getUnderlyingConnectionPool() {
-    return underlyingConnectionPool;
+  /**
+   * The engine doing the pooling. This is null until the pool has been
+   * initalised.
+   */
+  public PoolEngine getEngine() {
+    return engine;
+  }
+
+  private void setEngine(PoolEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * The engine as an {@link AbstractPoolEngine} or null if it only provides
+   * the {@link PoolEngine} interface
+   */
+  private AbstractPoolEngine getExtendedEngine() {
+    return (engine instanceof AbstractPoolEngine) ? (AbstractPoolEngine) engine
+        : null;
+  }
+
+  /**
+   * Resizes the pool from its borrow waits. This is null if the config has no
+   * adaptive ceiling or the pool has not been initalised.
+   */
+  public AdaptiveSizer getAdaptiveSizer() {
+    return adaptiveSizer;
   }
 
-  private void setUnderlyingConnectionPool(
-      GenericObjectPool underlyingConnectionPool) {
-    this.underlyingConnectionPool = underlyingConnectionPool;
+  /**
+   * The read replicas serving {@link #getReadOnlyConnection()}. This is null
+   * if the config has no read URLs or the pool has not been initalised.
+   */
+  public ReadReplicas getReadReplicas() {
+    return readReplicas;
   }
 
   public Log getLog() {
@@ -114,11 +138,38 @@ public class Pool {
 
       initaliseJdbcDriver();
 
-      setupConnection();
+      // The connection which proved the URL valid is reused for the vendor
+      // checks and then handed to the pool rather than being thrown away
+      Connection probe = setupConnection();
+      try {
+        boolean reusable = checkVendorSpecificBugs(probe);
 
-      createPool();
+        createPool();
+
+        AbstractPoolEngine extended = getExtendedEngine();
+        if (reusable && extended != null && extended.addConnection(probe)) {
+          probe = null;
+        }
+      }
+      finally {
+        DatabaseUtils.closeDbObject(probe);
+      }
+
+      if (!getConfig().getReadUrls().isEmpty()) {
+        readReplicas = new ReadReplicas(getConfig());
+      }
 
-      checkVendorSpecificBugs();
+      if (getConfig().getAdaptiveCeiling() > 0) {
+        AbstractPoolEngine extended = getExtendedEngine();
+        if (extended != null && extended.isResizable()) {
+          adaptiveSizer = new AdaptiveSizer(getConfig(), extended);
+        }
+        else if (getLog().isWarnEnabled()) {
+          getLog().warn("The " + getEngine().getName() + " engine cannot "
+              + "resize a running pool; ignoring the adaptive ceiling of "
+              + getConfig().getName());
+        }
+      }
     }
   }
 
@@ -126,7 +177,7 @@ public class Pool {
    * Asserts that initalisation can proceed
    */
   public boolean isPoolInitalised() {
-    return (getUnderlyingConnectionPool() != null);
+    return (getEngine() != null);
   }
 
   /**
@@ -185,9 +236,9 @@ public class Pool {
       getLog().info("Driver " + getConfig().getDriver() + " found");
   }
 
-  private void setupConnection() {
+  private Connection setupConnection() {
     try {
-      DatabaseUtils.getValidConnectionURL(config);
+      return DatabaseUtils.getValidConnection(config);
     }
     catch (DbConException e) {
       throw new PoolingException(
@@ -197,83 +248,166 @@ public class Pool {
 
   /**
    * Creates the pool and the data source which provides the pooling ability
+   * using the engine named in the config
    */
   private void createPool() {
-    PoolableObjectFactory pof = null;
-
-    // Creation of the generic pool and linking a factory to it
-    GenericObjectPool underlyingConnectionPool = new GenericObjectPool(pof,
-        config.getMaxActive(), config.getExhausted(), config.getMaxWait(),
-        config.getMaxIdle(), config.isTestOnBorrow(), config.isTestOnReturn(),
-        config.getTimeBetweenEvictRun(), config.getNumTestsPerEvictionRun(),
-        config.getMinEvictTime(), config.isTestWhileIdle());
+    PoolEngine poolEngine = PoolEngines.createEngine(getConfig().getEngine());
+    poolEngine.createPool(getConfig());
+    setEngine(poolEngine);
+    setDataSource(poolEngine.getDataSource());
 
-    setUnderlyingConnectionPool(underlyingConnectionPool);
-
-    // This section allows for PreparedStatements to be used
-    GenericKeyedObjectPoolFactory kopf = null;
+    if (getLog().isInfoEnabled())
+      getLog().info("Created pool " + getConfig().getName() + " using the "
+          + poolEngine.getName() + " engine");
+  }
 
-    if (config.getCachedPreparedStatements() != 0) {
-      kopf = new GenericKeyedObjectPoolFactory(null, -1, // unlimited maxActive
-          // (per key)
-          GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL, 0, // maxWait
-          1, // maxIdle (per key)
-          config.getCachedPreparedStatements());
+  /**
+   * Uses the connection opened while finding a valid URL, before any pooled
+   * connection exists, to see if there are any issues with the Driver and if
+   * any fixes need to be implemented. A problem found here is therefore never
+   * kept in the pool.
+   * 
+   * @return True if the connection can be added to the pool; false if the
+   *         checks failed or changed a setting which only applies to
+   *         connections opened afterwards
+   */
+  private boolean checkVendorSpecificBugs(Connection conn) {
+    try {
+      return !DatabaseUtils.setOraclePropertyForBugFix(conn);
+    }
+    catch (SQLException e) {
+      if (getLog().isErrorEnabled())
+        getLog().error("Error occured whilst testing connection for settings", e);
+      return false;
     }
-
-    // Creating the correct connection factory
-    ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(
-        config.getWorkingUrl(), config.getUsername(), config.getPassword());
-
-    // Final construction of the poolable connection factory from:
-    // PoolableConnectionFactory(ConnectionFactory connFactory, ObjectPool pool,
-    // KeyedObjectPoolFactory stmtPoolFactory, String validationQuery,
-    // boolean defaultReadOnly, boolean defaultAutoCommit)
-
-    PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(
-        connectionFactory, getUnderlyingConnectionPool(), kopf, null, false,
-        false);
-
-    // Setting the validation query
-    poolableConnectionFactory.setValidationQuery(config.getValidationQuery());
-
-    // Creating the pooled datasource
-    setDataSource(new PoolingDataSource(getUnderlyingConnectionPool()));
   }
-
+  
   /**
-   * This method uses a new blank connection and not the pool to see if there
-   * are any issues with the Driver and if any fixes need to be implemented. If
-   * we used a Pool Connection then any problems with the Connection/Driver
-   * would be kept in the pool. This way we check a potential Connection and
-   * modify settings accordingly.
+   * Opens connections until the pool holds the configured min idle number of
+   * idle connections or a pool limit is reached. Engines which do not
+   * extend {@link AbstractPoolEngine} open nothing.
+   * 
+   * @return The number of connections opened
    */
-  private void checkVendorSpecificBugs() {
+  public int fillToMinIdle() {
+    AbstractPoolEngine extended = getExtendedEngine();
+    if (extended == null) {
+      return 0;
+    }
+    try {
+      return extended.fillIdle(getConfig().getMinIdle());
+    }
+    catch (SQLException e) {
+      throw new PoolingException("Could not fill pool " + getConfig().getName()
+          + " to its min idle size", e);
+    }
+  }
 
-    Connection conn = null;
+  /**
+   * Borrows a connection with auto-commit off
+   * 
+   * @throws ConnectionNotAvailableException
+   *           If no connection could be borrowed or the pool's circuit breaker
+   *           is open
+   */
+  public Connection getConnection() {
+    return getConnection(Config.PRIORITY_NORMAL);
+  }
 
+  /**
+   * Borrows a connection with auto-commit off at the given priority, one of
+   * the Config.PRIORITY constants. Under contention higher priorities are
+   * served first and may have connections reserved for them; engines which
+   * do not support priorities treat every borrow the same.
+   * 
+   * @throws ConnectionNotAvailableException
+   *           If no connection could be borrowed, the pool's circuit breaker
+   *           is open or the pool's {@link LoadShedder} refused to let the
+   *           borrower wait
+   */
+  public Connection getConnection(int priority) {
     try {
-      conn = DriverManager.getConnection(config.getWorkingUrl(), config
-          .getUsername(), config.getPassword());
-      DatabaseUtils.setOraclePropertyForBugFix(conn);
+      return borrowConnection(priority);
     }
     catch (SQLException e) {
-      if (getLog().isErrorEnabled())
-        getLog().error("Error occured whilst testing connection for settings", e);
+      throw new ConnectionNotAvailableException("Detected SQLException when retriving connection", e);
+    }
+  }
+
+  /**
+   * The one borrowing path behind {@link #getConnection(int)} and the dbcon
+   * data sources: checks the circuit breaker, borrows from the engine at the
+   * given priority, records the wait for adaptive sizing and switches
+   * auto-commit off.
+   * 
+   * @throws ConnectionNotAvailableException
+   *           If the pool's circuit breaker is open or its
+   *           {@link LoadShedder} refused to let the borrower wait
+   * @throws SQLException
+   *           If the engine could not provide a connection
+   */
+  public Connection borrowConnection(int priority) throws SQLException {
+    AbstractPoolEngine extended = getExtendedEngine();
+    CircuitBreaker breaker = (extended == null) ? null : extended
+        .getCircuitBreaker();
+    if (breaker != null) {
+      breaker.assertClosed();
+    }
+    // Failed borrows are recorded too; a timeout is the longest wait
+    long start = System.nanoTime();
+    Connection conn = null;
+    try {
+      conn = (extended == null) ? getEngine().getConnection() : extended
+          .getConnection(priority);
     }
     finally {
-      DatabaseUtils.closeDbObject(conn);
+      recordBorrowWait(start);
     }
+    DatabaseUtils.connectionSettings(conn);
+    return conn;
   }
-  
-  public Connection getConnection() {
+
+  /**
+   * Passes the time since startNanos, a System.nanoTime() reading, to the
+   * adaptive sizer, if there is one, as a borrow wait
+   */
+  private void recordBorrowWait(long startNanos) {
+    AdaptiveSizer sizer = adaptiveSizer;
+    if (sizer != null) {
+      sizer.recordWait(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Returns a read-only connection from one of the config's read URLs, chosen
+   * by its read balancing. Falls back to a connection from the main pool if
+   * there are no read URLs or none of them can provide a connection; that
+   * connection is switched to read-only too, so a caller cannot write to the
+   * primary by accident, and goes back to read-write when returned.
+   * 
+   * @throws ConnectionNotAvailableException
+   *           If no connection could be borrowed or made read-only
+   */
+  public Connection getReadOnlyConnection() {
+    if (readReplicas != null) {
+      Connection conn = readReplicas.getConnection();
+      if (conn != null) {
+        return conn;
+      }
+      if (getLog().isWarnEnabled())
+        getLog().warn("No read URL of " + getConfig().getName()
+            + " could provide a connection; reading from the main pool");
+    }
+    Connection conn = getConnection();
     try {
-      Connection conn = getDataSource().getConnection();
-      DatabaseUtils.connectionSettings(conn);
+      conn.setReadOnly(true);
       return conn;
     }
     catch (SQLException e) {
-      throw new ConnectionNotAvailableException("Detected SQLException when retriving connection", e);
+      DatabaseUtils.closeDbObject(conn);
+      throw new ConnectionNotAvailableException(
+          "Could not make a main pool connection read-only for "
+              + getConfig().getName(), e);
     }
   }
 
@@ -282,8 +416,14 @@ public class Pool {
    * the provided data source object.
    */
   public void destroyPool() {
+    if (adaptiveSizer != null) {
+      adaptiveSizer.close();
+    }
+    if (readReplicas != null) {
+      readReplicas.destroy();
+    }
     try {
-      getUnderlyingConnectionPool().close();
+      getEngine().destroyPool();
     }
     catch (Exception e) {
       if (getLog().isErrorEnabled()) {
@@ -293,6 +433,7 @@ public class Pool {
     }
     finally {
       setDataSource(null);
+      Housekeeper.getInstance().release(getConfig().getName());
     }
   }
   
@@ -300,28 +441,77 @@ public class Pool {
    * Returns the current number of active connections in the pool.
    */
   public int getActiveConnections() {
-    return getUnderlyingConnectionPool().getNumActive();
+    return getEngine().getActiveConnections();
   }
 
   /**
    * Returns the current number of idle connections in the pool.
    */
   public int getIdleConnections() {
-    return getUnderlyingConnectionPool().getNumIdle();
+    return getEngine().getIdleConnections();
   }
 
   /**
    * Returns the max number of idle connections in the pool.
    */
   public int getMaxIdleConnections() {
-    return getUnderlyingConnectionPool().getMaxIdle();
+    return getEngine().getMaxIdleConnections();
   }
 
   /**
    * Returns the max number of idle connections in the pool.
    */
   public int getMaxActiveConnections() {
-    return getUnderlyingConnectionPool().getMaxActive();
+    return getEngine().getMaxActiveConnections();
+  }
+
+
+  /**
+   * Returns the counts of transaction control calls made on this pool's
+   * connections and how many round-trips to the database were avoided. Null
+   * if the engine does not count them.
+   */
+  public RoundTripStatistics getRoundTripStatistics() {
+    AbstractPoolEngine extended = getExtendedEngine();
+    return (extended == null) ? null : extended.getRoundTripStatistics();
+  }
+
+
+  /**
+   * Returns the counts and timings of connection validations for each
+   * validation mode. Null if the engine does not count them.
+   */
+  public ValidationStatistics getValidationStatistics() {
+    AbstractPoolEngine extended = getExtendedEngine();
+    return (extended == null) ? null : extended.getValidationStatistics();
+  }
+  
+  /**
+   * Returns the URL new connections are opened against and the number of
+   * switches between the primary and backup URL. Null if the engine does not
+   * fail over.
+   */
+  public UrlFailover getUrlFailover() {
+    AbstractPoolEngine extended = getExtendedEngine();
+    return (extended == null) ? null : extended.getUrlFailover();
+  }
+  
+  /**
+   * Returns the breaker which refuses borrowers while the database cannot be
+   * reached. Null if the engine has none.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    AbstractPoolEngine extended = getExtendedEngine();
+    return (extended == null) ? null : extended.getCircuitBreaker();
+  }
+
+  /**
+   * Returns the shedder which refuses borrowers that would join too long a
+   * wait for a connection. Null if the engine has none.
+   */
+  public LoadShedder getLoadShedder() {
+    AbstractPoolEngine extended = getExtendedEngine();
+    return (extended == null) ? null : extended.getLoadShedder();
   }
   
   /**
@@ -337,27 +527,52 @@ public class Pool {
     sb.append(nl);
     sb.append("====================");
     sb.append(nl);
+    sb.append("Pool engine: ");
+    sb.append(getConfig().getEngine());
+    sb.append(nl);
     sb.append("Current number of active connections: ");
-    sb.append(getUnderlyingConnectionPool().getNumActive());
+    sb.append(getActiveConnections());
     sb.append(nl);
 
     sb.append("Current number of idle connections: ");
-    sb.append(getUnderlyingConnectionPool().getNumIdle());
+    sb.append(getIdleConnections());
     sb.append(nl);
 
     sb.append("Max number of active connections: ");
-    sb.append(getUnderlyingConnectionPool().getMaxActive());
+    sb.append(getMaxActiveConnections());
     sb.append(nl);
 
     sb.append("Max number of idle connections: ");
-    sb.append(getUnderlyingConnectionPool().getMaxIdle());
+    sb.append(getMaxIdleConnections());
     sb.append(nl);
 
     sb.append("Dump of current pool object: ");
     sb.append(nl);
-    sb.append(getUnderlyingConnectionPool().toString());
+    sb.append(getEngine().getStatus());
     sb.append(nl);
 
+    appendIfPresent(sb, "Transaction calls: ", getRoundTripStatistics());
+    appendIfPresent(sb, "Validations: ", getValidationStatistics());
+    appendIfPresent(sb, "Connection URL: ", getUrlFailover());
+    appendIfPresent(sb, "Circuit breaker: ", getCircuitBreaker());
+    appendIfPresent(sb, "Load shedding: ", getLoadShedder());
+
+    appendIfPresent(sb, "Adaptive sizing: ", adaptiveSizer);
+    appendIfPresent(sb, "Read replicas: ", readReplicas);
+
     return sb.toString();
   }
+
+  /**
+   * Adds a status line for a part of the pool which the engine or config may
+   * leave out
+   */
+  private static void appendIfPresent(StringBuffer sb, String label,
+      Object part) {
+    if (part != null) {
+      sb.append(label);
+      sb.append(part);
+      sb.append(System.getProperty("line.separator"));
+    }
+  }
 }
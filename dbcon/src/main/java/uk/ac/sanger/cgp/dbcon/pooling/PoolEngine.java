@@ -0,0 +1,102 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+
+/**
+ * <p>
+ * Service interface for the code which actually pools connections on behalf
+ * of a {@link Pool}. The Pool looks after driver loading and URL selection and
+ * then hands creation, borrowing, statistics and shutdown over to an engine.
+ * 
+ * <p>
+ * Engines are found using {@link java.util.ServiceLoader} so any jar with a
+ * <code>META-INF/services/uk.ac.sanger.cgp.dbcon.pooling.PoolEngine</code>
+ * entry can provide one. A synonym picks its engine with the
+ * <code>&lt;engine&gt;</code> element of its pool definition which is matched
+ * against {@link #getName()}. A new engine instance is created for every Pool
+ * so implementations must have a public no argument constructor.
+ * 
+ * <p>
+ * This interface is all an engine has to provide. Engines which also want
+ * borrow priorities, URL failover, the circuit breaker, load shedding,
+ * adaptive sizing or the extra statistics extend {@link AbstractPoolEngine}
+ * and override the parts they support; the Pool does without them for any
+ * other engine.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ * @see PoolEngines
+ */
+public interface PoolEngine {
+
+  /**
+   * The name this engine is selected by in the config
+   */
+  String getName();
+
+  /**
+   * Creates the underlying pool. The config's working URL has already been
+   * resolved when this is called.
+   */
+  void createPool(Config config);
+
+  /**
+   * Borrows a connection from the pool. Closing the connection must return it
+   * to the pool.
+   */
+  Connection getConnection() throws SQLException;
+
+  /**
+   * DataSource view of the pool
+   */
+  DataSource getDataSource();
+
+  int getActiveConnections();
+
+  int getIdleConnections();
+
+  int getMaxActiveConnections();
+
+  int getMaxIdleConnections();
+
+  /**
+   * Engine specific description of the current state of the pool
+   */
+  String getStatus();
+
+  /**
+   * Shuts the pool down and releases its connections
+   */
+  void destroyPool() throws Exception;
+}
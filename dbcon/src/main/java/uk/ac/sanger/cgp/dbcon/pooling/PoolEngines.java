@@ -0,0 +1,117 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+
+/**
+ * Finds the available {@link PoolEngine} implementations using
+ * {@link ServiceLoader} and creates new instances of them by name. The lookup
+ * is done once and the engine classes are remembered.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class PoolEngines {
+
+  private static final Log LOG = LogFactory.getLog(PoolEngines.class);
+
+  private static Map engineClasses = null;
+
+  private PoolEngines() {
+    super();
+  }
+
+  private static synchronized Map getEngineClasses() {
+    if (engineClasses == null) {
+      Map classes = new HashMap();
+      ServiceLoader loader = ServiceLoader.load(PoolEngine.class, PoolEngines.class
+          .getClassLoader());
+      for (Iterator iter = loader.iterator(); iter.hasNext();) {
+        PoolEngine engine = (PoolEngine) iter.next();
+        String name = engine.getName().toLowerCase();
+        if (classes.containsKey(name)) {
+          if (LOG.isWarnEnabled())
+            LOG.warn("Ignoring " + engine.getClass().getName()
+                + " as an engine called " + name + " is already registered");
+          continue;
+        }
+        classes.put(name, engine.getClass());
+        if (LOG.isInfoEnabled())
+          LOG.info("Registered pool engine " + name + " ("
+              + engine.getClass().getName() + ")");
+      }
+      engineClasses = classes;
+    }
+    return engineClasses;
+  }
+
+  /**
+   * Returns the sorted names of all available engines
+   */
+  public static List getEngineNames() {
+    List names = new ArrayList(getEngineClasses().keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  /**
+   * Creates a new instance of the named engine. Names are not case sensitive.
+   * 
+   * @throws PoolingException
+   *           If no engine has the given name or it cannot be created
+   */
+  public static PoolEngine createEngine(String name) {
+    Class engineClass = (name == null) ? null : (Class) getEngineClasses().get(
+        name.trim().toLowerCase());
+    if (engineClass == null) {
+      throw new PoolingException("No pool engine called " + name
+          + " could be found. Available engines are " + getEngineNames());
+    }
+
+    try {
+      return (PoolEngine) engineClass.newInstance();
+    }
+    catch (InstantiationException e) {
+      throw new PoolingException("Could not create pool engine " + name, e);
+    }
+    catch (IllegalAccessException e) {
+      throw new PoolingException("Could not create pool engine " + name, e);
+    }
+  }
+}
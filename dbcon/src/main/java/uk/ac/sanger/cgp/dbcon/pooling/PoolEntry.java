@@ -0,0 +1,129 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.util.concurrent.Future;
+
+/**
+ * Holds a single physical connection inside a {@link DbConConnectionPool}
+ * along with the timestamps needed to decide when it should be tested or
+ * evicted.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class PoolEntry extends ConcurrentBag.Entry {
+
+  private final Connection connection;
+
+  private final StateTrackingConnection tracker;
+
+  private final long creationTime;
+
+  private volatile long lastAccessed;
+
+  private volatile Future retirement = null;
+
+  private final boolean overflow;
+
+  public PoolEntry(Connection connection) {
+    this(connection, false);
+  }
+
+  /**
+   * @param overflow
+   *          True if the connection is a temporary one opened above max
+   *          active
+   * @see uk.ac.sanger.cgp.dbcon.config.Config#BURST
+   */
+  public PoolEntry(Connection connection, boolean overflow) {
+    super();
+    this.connection = connection;
+    this.overflow = overflow;
+    this.tracker = StateTrackingConnection.getTracker(connection);
+    this.creationTime = System.currentTimeMillis();
+    this.lastAccessed = creationTime;
+  }
+
+  public Connection getConnection() {
+    return connection;
+  }
+
+  /**
+   * The state tracker behind the connection or null if it is not tracked
+   */
+  public StateTrackingConnection getTracker() {
+    return tracker;
+  }
+
+  /**
+   * True if the connection was opened above max active and should be closed
+   * once it is no longer needed
+   */
+  public boolean isOverflow() {
+    return overflow;
+  }
+
+  public long getCreationTime() {
+    return creationTime;
+  }
+
+  public long getLastAccessed() {
+    return lastAccessed;
+  }
+
+  /**
+   * The task scheduled to retire the connection at its max lifetime
+   */
+  public Future getRetirement() {
+    return retirement;
+  }
+
+  public void setRetirement(Future retirement) {
+    this.retirement = retirement;
+  }
+
+  /**
+   * Records that the connection has just been used
+   */
+  public void touch() {
+    lastAccessed = System.currentTimeMillis();
+  }
+
+  /**
+   * Number of milliseconds since the connection was last used
+   */
+  public long getIdleTime() {
+    return System.currentTimeMillis() - lastAccessed;
+  }
+
+  public String toString() {
+    return "PoolEntry[connection=" + connection + ", state=" + getState()
+        + ", overflow=" + overflow + ", created=" + creationTime + ", lastAccessed=" + lastAccessed + "]";
+  }
+}
@@ -45,6 +45,14 @@ public class PooledDataSource extends AbstractDbConDataSource {
     super(name);
   }
 
+  /**
+   * Creates a data source whose connections are borrowed at the given
+   * priority, one of the Config.PRIORITY constants
+   */
+  public PooledDataSource(String name, int priority) {
+    super(name, priority);
+  }
+
   protected AbstractPools getBackingAbstractPoolsInstance() {
     return Pools.getInstance();
   }
@@ -0,0 +1,376 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+
+/**
+ * <p>
+ * The handler behind every Connection handed out by either pool engine.
+ * Calling close on the Connection returns the physical connection to the
+ * pool and closes any statements the borrower left open; every other call is
+ * passed straight to the pooled connection. The DBCP engine hands out these
+ * in place of DBCP's own guard so the pool can reach the connection's
+ * {@link StateTrackingConnection} without borrowers being able to.
+ * 
+ * <p>
+ * Statements, database metadata and result sets are wrapped too, in the same
+ * way as DBCP's delegating classes, so their getConnection and getStatement
+ * methods lead back to the pooled Connection rather than the physical one.
+ * Closing a statement drops it from the list closed on return so a
+ * connection held for a long time does not keep every statement it ran.
+ * Unwrapping to an interface the pooled Connection implements returns the
+ * pooled Connection itself; only driver specific interfaces reach the
+ * physical connection.
+ * 
+ * <p>
+ * This is built on {@link java.lang.reflect.Proxy} rather than a delegating
+ * class so the same code works against whichever version of the JDBC
+ * Connection interface the runtime provides.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ProxyConnection implements InvocationHandler {
+
+  private static final Log LOG = LogFactory.getLog(ProxyConnection.class);
+
+  private static final Constructor PROXY_CONSTRUCTOR = proxyConstructor(Connection.class);
+
+  private static final Constructor STATEMENT_CONSTRUCTOR = proxyConstructor(Statement.class);
+
+  private static final Constructor PREPARED_STATEMENT_CONSTRUCTOR = proxyConstructor(PreparedStatement.class);
+
+  private static final Constructor CALLABLE_STATEMENT_CONSTRUCTOR = proxyConstructor(CallableStatement.class);
+
+  private static final Constructor METADATA_CONSTRUCTOR = proxyConstructor(DatabaseMetaData.class);
+
+  private static final Constructor RESULT_SET_CONSTRUCTOR = proxyConstructor(ResultSet.class);
+
+  private final DbConConnectionPool pool;
+
+  private final PoolEntry entry;
+
+  private final Connection delegate;
+
+  private final Set openStatements = new HashSet();
+
+  private Connection proxy;
+
+  private volatile boolean closed = false;
+
+  private ProxyConnection(DbConConnectionPool pool, PoolEntry entry,
+      Connection delegate) {
+    this.pool = pool;
+    this.entry = entry;
+    this.delegate = delegate;
+  }
+
+  private static Constructor proxyConstructor(Class iface) {
+    try {
+      Class proxyClass = Proxy.getProxyClass(ProxyConnection.class
+          .getClassLoader(), new Class[] { iface });
+      return proxyClass.getConstructor(new Class[] { InvocationHandler.class });
+    }
+    catch (NoSuchMethodException e) {
+      throw new PoolingException("Cannot create proxy class for "
+          + iface.getName(), e);
+    }
+  }
+
+  private static Object newProxy(Constructor constructor,
+      InvocationHandler handler) {
+    try {
+      return constructor.newInstance(new Object[] { handler });
+    }
+    catch (Exception e) {
+      throw new PoolingException("Cannot create JDBC proxy", e);
+    }
+  }
+
+  /**
+   * Creates the Connection handed to a borrower of the given entry
+   */
+  public static Connection newInstance(DbConConnectionPool pool, PoolEntry entry) {
+    return newInstance(new ProxyConnection(pool, entry, entry.getConnection()));
+  }
+
+  /**
+   * Creates the Connection handed to a borrower of a connection whose own
+   * close method returns it to its pool, such as DBCP's PoolableConnection
+   */
+  public static Connection newInstance(Connection pooled) {
+    return newInstance(new ProxyConnection(null, null, pooled));
+  }
+
+  private static Connection newInstance(ProxyConnection handler) {
+    handler.proxy = (Connection) newProxy(PROXY_CONSTRUCTOR, handler);
+    StateTrackingConnection tracker = StateTrackingConnection
+        .getTracker(handler.delegate);
+    if (tracker != null) {
+      tracker.setHandle(handler.proxy);
+    }
+    return handler.proxy;
+  }
+
+  /**
+   * The pooled physical connection behind this handle
+   */
+  Connection getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * Number of statements created through this handle and not yet closed
+   */
+  int getOpenStatementCount() {
+    synchronized (openStatements) {
+      return openStatements.size();
+    }
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable {
+    String name = method.getName();
+
+    if ("close".equals(name)) {
+      close();
+      return null;
+    }
+    else if ("isClosed".equals(name)) {
+      return Boolean.valueOf(closed || delegate.isClosed());
+    }
+    else if ("equals".equals(name)) {
+      return Boolean.valueOf(proxy == args[0]);
+    }
+    else if ("hashCode".equals(name)) {
+      return new Integer(System.identityHashCode(proxy));
+    }
+    else if ("toString".equals(name)) {
+      return "Pooled connection for " + delegate;
+    }
+
+    assertOpen();
+
+    Object wrapped = unwrapTo(proxy, delegate, name, args);
+    if (wrapped != null) {
+      return wrapped;
+    }
+
+    Object result = invokeDelegate(delegate, method, args);
+
+    if (result instanceof CallableStatement) {
+      result = track(CALLABLE_STATEMENT_CONSTRUCTOR, (Statement) result);
+    }
+    else if (result instanceof PreparedStatement) {
+      result = track(PREPARED_STATEMENT_CONSTRUCTOR, (Statement) result);
+    }
+    else if (result instanceof Statement) {
+      result = track(STATEMENT_CONSTRUCTOR, (Statement) result);
+    }
+    else if (result instanceof DatabaseMetaData) {
+      result = newProxy(METADATA_CONSTRUCTOR, new Child(result, null));
+    }
+
+    return result;
+  }
+
+  private Object track(Constructor constructor, Statement statement) {
+    Object tracked = newProxy(constructor, new Child(statement, null));
+    synchronized (openStatements) {
+      openStatements.add(tracked);
+    }
+    return tracked;
+  }
+
+  private void assertOpen() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection has already been returned to the pool");
+    }
+  }
+
+  /**
+   * Answers unwrap and isWrapperFor, here as pre JDBC 4 drivers do not
+   * implement them. Interfaces the proxy implements unwrap to the proxy so
+   * the physical object is only reachable through driver specific
+   * interfaces.
+   * 
+   * @return The answer or null if the call should go to the delegate
+   */
+  private static Object unwrapTo(Object proxy, Object delegate, String name,
+      Object[] args) {
+    if ("unwrap".equals(name)) {
+      Class iface = (Class) args[0];
+      if (iface.isInstance(proxy)) {
+        return proxy;
+      }
+      else if (iface.isInstance(delegate)) {
+        return delegate;
+      }
+    }
+    else if ("isWrapperFor".equals(name)) {
+      Class iface = (Class) args[0];
+      if (iface.isInstance(proxy) || iface.isInstance(delegate)) {
+        return Boolean.TRUE;
+      }
+    }
+    return null;
+  }
+
+  private static Object invokeDelegate(Object target, Method method,
+      Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    }
+    catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Closes any statements left open and returns the connection to the pool.
+   * Only the first call has any effect.
+   */
+  private void close() throws SQLException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    List statements = null;
+    synchronized (openStatements) {
+      statements = new ArrayList(openStatements);
+      openStatements.clear();
+    }
+    for (Iterator iter = statements.iterator(); iter.hasNext();) {
+      try {
+        ((Statement) iter.next()).close();
+      }
+      catch (SQLException e) {
+        if (LOG.isDebugEnabled())
+          LOG.debug("Could not close statement left open by borrower", e);
+      }
+    }
+
+    StateTrackingConnection tracker = StateTrackingConnection
+        .getTracker(delegate);
+    if (tracker != null) {
+      tracker.setHandle(null);
+    }
+
+    if (pool != null) {
+      pool.recycle(entry);
+    }
+    else {
+      delegate.close();
+    }
+  }
+
+  /**
+   * Handler behind the statements, metadata and result sets created through
+   * the pooled connection. getConnection leads back to the pooled connection
+   * and a result set's getStatement to the wrapped statement which made it.
+   */
+  private class Child implements InvocationHandler {
+
+    private final Object target;
+
+    private final Object parent;
+
+    Child(Object target, Object parent) {
+      this.target = target;
+      this.parent = parent;
+    }
+
+    public Object invoke(Object childProxy, Method method, Object[] args)
+        throws Throwable {
+      String name = method.getName();
+
+      if ("equals".equals(name)) {
+        return Boolean.valueOf(childProxy == args[0]);
+      }
+      else if ("hashCode".equals(name)) {
+        return new Integer(System.identityHashCode(childProxy));
+      }
+      else if ("toString".equals(name)) {
+        return target.toString();
+      }
+      else if ("close".equals(name)) {
+        synchronized (openStatements) {
+          openStatements.remove(childProxy);
+        }
+        return invokeDelegate(target, method, args);
+      }
+      else if ("isClosed".equals(name)) {
+        return invokeDelegate(target, method, args);
+      }
+
+      assertOpen();
+
+      if ("getConnection".equals(name)) {
+        return proxy;
+      }
+      else if ("getStatement".equals(name) && target instanceof ResultSet) {
+        return parent;
+      }
+
+      Object wrapped = unwrapTo(childProxy, target, name, args);
+      if (wrapped != null) {
+        return wrapped;
+      }
+
+      Object result = invokeDelegate(target, method, args);
+      if (result instanceof ResultSet) {
+        // Metadata result sets have no statement of their own
+        Object statement = (target instanceof Statement) ? childProxy : null;
+        result = newProxy(RESULT_SET_CONSTRUCTOR, new Child(result, statement));
+      }
+      return result;
+    }
+  }
+}
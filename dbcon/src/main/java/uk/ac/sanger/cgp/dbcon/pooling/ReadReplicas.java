@@ -0,0 +1,293 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.ConnectionNotAvailableException;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * <p>
+ * Serves the read-only connections of a {@link Pool} from its read URLs. Each
+ * read URL gets its own {@link Pool}, built from a copy of the synonym's
+ * config the first time that URL is picked. Which one is picked depends on
+ * {@link Config#getReadBalancing()}:
+ * <ul>
+ * <li>{@link Config#READ_LEAST_ACTIVE} picks the replica with the fewest
+ * borrowed connections</li>
+ * <li>{@link Config#READ_LATENCY} picks the replica with the lowest average
+ * borrow plus validation time, multiplied by its borrowed connections plus
+ * one</li>
+ * </ul>
+ * Ties go to each replica in turn.
+ * 
+ * <p>
+ * A replica which cannot be initialised or cannot hand out a connection is
+ * skipped for {@link Config#getFailbackInterval()} milliseconds.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ReadReplicas {
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private final Config config;
+
+  private final Replica[] replicas;
+
+  private final boolean latencyWeighted;
+
+  private final AtomicInteger next = new AtomicInteger();
+
+  public ReadReplicas(Config config) {
+    this.config = config;
+
+    String balancing = config.getReadBalancing();
+    if (Config.READ_LATENCY.equalsIgnoreCase(balancing)) {
+      latencyWeighted = true;
+    }
+    else if (Config.READ_LEAST_ACTIVE.equalsIgnoreCase(balancing)) {
+      latencyWeighted = false;
+    }
+    else {
+      throw new PoolingException("Unknown read balancing " + balancing
+          + " for " + config.getName());
+    }
+
+    List urls = config.getReadUrls();
+    replicas = new Replica[urls.size()];
+    for (int i = 0; i < replicas.length; i++) {
+      Config replicaConfig = (Config) config.clone();
+      replicaConfig.setName(config.getName() + "-read-" + (i + 1));
+      replicaConfig.setUrl((String) urls.get(i));
+      replicaConfig.setBackupUrl(null);
+      replicaConfig.setStandbyConnections(0);
+      replicaConfig.setReadUrls(new ArrayList());
+      replicas[i] = new Replica(replicaConfig);
+    }
+  }
+
+  protected Log getLog() {
+    return log;
+  }
+
+  /**
+   * Borrows a read-only connection from the best replica, trying the others
+   * in turn if it fails
+   * 
+   * @return The connection or null if no replica could provide one
+   */
+  public Connection getConnection() {
+    for (int attempt = 0; attempt < replicas.length; attempt++) {
+      Replica replica = choose();
+      if (replica == null) {
+        return null;
+      }
+
+      Pool pool = replica.getPool();
+      if (pool == null) {
+        continue;
+      }
+
+      Connection conn = null;
+      long start = System.nanoTime();
+      try {
+        conn = pool.getConnection();
+        replica.recordBorrow(System.nanoTime() - start);
+        conn.setReadOnly(true);
+        return conn;
+      }
+      catch (ConnectionNotAvailableException e) {
+        replica.markDown(e);
+      }
+      catch (SQLException e) {
+        DatabaseUtils.closeDbObject(conn);
+        replica.markDown(e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Picks the replica with the lowest score which is not marked down
+   */
+  private Replica choose() {
+    int start = next.getAndIncrement() & Integer.MAX_VALUE;
+    Replica best = null;
+    long bestScore = Long.MAX_VALUE;
+    for (int i = 0; i < replicas.length; i++) {
+      Replica replica = replicas[(start + i) % replicas.length];
+      if (replica.isDown()) {
+        continue;
+      }
+      long score = replica.getScore(latencyWeighted);
+      if (best == null || score < bestScore) {
+        best = replica;
+        bestScore = score;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Total number of connections borrowed from all replicas
+   */
+  public int getActiveConnections() {
+    int active = 0;
+    for (int i = 0; i < replicas.length; i++) {
+      active += replicas[i].getActive();
+    }
+    return active;
+  }
+
+  /**
+   * Shuts down the pools of every replica which was used
+   */
+  public void destroy() {
+    for (int i = 0; i < replicas.length; i++) {
+      replicas[i].destroy();
+    }
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    sb.append("balancing=").append(config.getReadBalancing());
+    for (int i = 0; i < replicas.length; i++) {
+      sb.append("; ").append(replicas[i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A read URL and the pool serving it
+   */
+  private class Replica {
+
+    private final Config replicaConfig;
+
+    private volatile Pool pool = null;
+
+    private volatile long downUntil = 0;
+
+    /** Moving average of the time taken to borrow from this replica */
+    private volatile long borrowNanos = 0;
+
+    Replica(Config replicaConfig) {
+      this.replicaConfig = replicaConfig;
+    }
+
+    boolean isDown() {
+      return System.currentTimeMillis() < downUntil;
+    }
+
+    void markDown(Exception e) {
+      downUntil = System.currentTimeMillis() + config.getFailbackInterval();
+      if (getLog().isWarnEnabled())
+        getLog().warn("Read replica " + replicaConfig.getUrl() + " of "
+            + config.getName() + " is unavailable", e);
+    }
+
+    /**
+     * The replica's pool, created on first use. Null if it could not be
+     * created, in which case the replica is marked down.
+     */
+    Pool getPool() {
+      Pool current = pool;
+      if (current != null) {
+        return current;
+      }
+      synchronized (this) {
+        if (pool == null && !isDown()) {
+          Pool created = new Pool(replicaConfig);
+          try {
+            created.init();
+            pool = created;
+          }
+          catch (RuntimeException e) {
+            markDown(e);
+          }
+        }
+        return pool;
+      }
+    }
+
+    void recordBorrow(long nanos) {
+      long average = borrowNanos;
+      borrowNanos = (average == 0) ? nanos : average + (nanos - average) / 8;
+    }
+
+    int getActive() {
+      Pool current = pool;
+      return (current == null) ? 0 : current.getActiveConnections();
+    }
+
+    long getScore(boolean latency) {
+      int active = getActive();
+      if (!latency) {
+        return active;
+      }
+      return (active + 1) * (borrowNanos / 1000 + getValidationMicros());
+    }
+
+    private long getValidationMicros() {
+      Pool current = pool;
+      if (current == null) {
+        return 0;
+      }
+      ValidationStatistics statistics = current.getValidationStatistics();
+      String mode = replicaConfig.getValidationMode();
+      if (statistics.getCount(mode) == 0) {
+        mode = Config.VALIDATION_QUERY;
+      }
+      return statistics.getMeanMicros(mode);
+    }
+
+    void destroy() {
+      Pool current = pool;
+      if (current != null) {
+        current.destroyPool();
+      }
+    }
+
+    public String toString() {
+      return replicaConfig.getUrl() + " active=" + getActive() + " borrowMicros="
+          + (borrowNanos / 1000) + " validationMicros=" + getValidationMicros()
+          + (isDown() ? " down" : "");
+    }
+  }
+}
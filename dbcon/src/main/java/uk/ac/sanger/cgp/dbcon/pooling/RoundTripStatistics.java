@@ -0,0 +1,155 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Counts the transaction control calls made on the connections of one pool
+ * against those which actually reached the driver. The difference is the
+ * number of round-trips saved by {@link StateTrackingConnection}.
+ * 
+ * <p>
+ * Each connection keeps its own counts so borrowing does not write to any
+ * shared counter. The live connections are summed when the statistics are
+ * read and a connection's counts are folded into the totals here when it is
+ * closed.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class RoundTripStatistics {
+
+  static final int AUTO_COMMIT = 0;
+  static final int ROLLBACK = 1;
+  static final int COMMIT = 2;
+  static final int READ_ONLY = 3;
+  static final int TYPES = 4;
+
+  private static final String[] NAMES = new String[] { "setAutoCommit",
+      "rollback", "commit", "setReadOnly" };
+
+  private final Set live = java.util.Collections
+      .newSetFromMap(new ConcurrentHashMap());
+
+  private final AtomicLong[] retiredRequested = newCounters();
+
+  private final AtomicLong[] retiredSent = newCounters();
+
+  public RoundTripStatistics() {
+    super();
+  }
+
+  private static AtomicLong[] newCounters() {
+    AtomicLong[] counters = new AtomicLong[TYPES];
+    for (int i = 0; i < TYPES; i++) {
+      counters[i] = new AtomicLong();
+    }
+    return counters;
+  }
+
+  void register(StateTrackingConnection connection) {
+    live.add(connection);
+  }
+
+  void retire(StateTrackingConnection connection) {
+    if (live.remove(connection)) {
+      for (int i = 0; i < TYPES; i++) {
+        retiredRequested[i].addAndGet(connection.getRequested(i));
+        retiredSent[i].addAndGet(connection.getSent(i));
+      }
+    }
+  }
+
+  private long total(int type, boolean sent) {
+    long count = (sent) ? retiredSent[type].get() : retiredRequested[type].get();
+    for (Iterator iter = live.iterator(); iter.hasNext();) {
+      StateTrackingConnection connection = (StateTrackingConnection) iter.next();
+      count += (sent) ? connection.getSent(type) : connection.getRequested(type);
+    }
+    return count;
+  }
+
+  public long getAutoCommitCalls() {
+    return total(AUTO_COMMIT, false);
+  }
+
+  public long getAutoCommitCallsSent() {
+    return total(AUTO_COMMIT, true);
+  }
+
+  public long getRollbackCalls() {
+    return total(ROLLBACK, false);
+  }
+
+  public long getRollbackCallsSent() {
+    return total(ROLLBACK, true);
+  }
+
+  public long getCommitCalls() {
+    return total(COMMIT, false);
+  }
+
+  public long getCommitCallsSent() {
+    return total(COMMIT, true);
+  }
+
+  public long getReadOnlyCalls() {
+    return total(READ_ONLY, false);
+  }
+
+  public long getReadOnlyCallsSent() {
+    return total(READ_ONLY, true);
+  }
+
+  /**
+   * Total number of calls which were answered locally instead of being sent
+   * to the driver
+   */
+  public long getRoundTripsAvoided() {
+    long avoided = 0;
+    for (int i = 0; i < TYPES; i++) {
+      avoided += total(i, false) - total(i, true);
+    }
+    return avoided;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < TYPES; i++) {
+      long requested = total(i, false);
+      sb.append(NAMES[i]).append(": ").append(requested).append(" calls, ");
+      sb.append(requested - total(i, true)).append(" avoided; ");
+    }
+    sb.append("round-trips avoided: ").append(getRoundTripsAvoided());
+    return sb.toString();
+  }
+}
@@ -0,0 +1,170 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.SQLException;
+
+import org.apache.commons.lang.StringUtils;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+
+/**
+ * <p>
+ * The default {@link FatalErrorClassifier}. An exception is fatal if its
+ * SQLState is in class 08 (connection exception) or is one of PostgreSQL's
+ * shutdown states (57P01 to 57P03), or if its vendor error code is one of
+ * the known "server gone" codes for the database the URL points at:
+ * <ul>
+ * <li>Oracle: ORA-00028, ORA-01012, ORA-01033, ORA-01034, ORA-01089,
+ * ORA-03113, ORA-03114 and the thin driver's 17002, 17008 and 17410</li>
+ * <li>MySQL: 2006 (server has gone away) and 2013 (lost connection)</li>
+ * </ul>
+ * Vendor codes are only checked for the matching URL as the same number
+ * means different things to different databases. Chained exceptions and
+ * causes are checked as well.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class SqlStateFatalErrorClassifier implements FatalErrorClassifier {
+
+  private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+  private static final String[] SHUTDOWN_STATES = new String[] { "57P01",
+      "57P02", "57P03" };
+
+  private static final int[] ORACLE_CODES = new int[] { 28, 1012, 1033, 1034,
+      1089, 3113, 3114, 17002, 17008, 17410 };
+
+  private static final int[] MYSQL_CODES = new int[] { 2006, 2013 };
+
+  private static final int[] NO_CODES = new int[0];
+
+  private final int[] vendorCodes;
+
+  /**
+   * Creates a classifier which only looks at SQLStates
+   */
+  public SqlStateFatalErrorClassifier() {
+    this(null);
+  }
+
+  /**
+   * Creates a classifier which also knows the vendor codes of the database
+   * the URL points at
+   */
+  public SqlStateFatalErrorClassifier(String url) {
+    if (url != null && url.startsWith("jdbc:oracle:")) {
+      vendorCodes = ORACLE_CODES;
+    }
+    else if (url != null && url.startsWith("jdbc:mysql:")) {
+      vendorCodes = MYSQL_CODES;
+    }
+    else {
+      vendorCodes = NO_CODES;
+    }
+  }
+
+  /**
+   * Creates the classifier named by the config or the default one for its URL
+   * 
+   * @throws PoolingException
+   *           If the named class cannot be created
+   * @see Config#getFatalErrorClassifier()
+   */
+  public static FatalErrorClassifier forConfig(Config config) {
+    String className = config.getFatalErrorClassifier();
+    if (StringUtils.isEmpty(className)) {
+      return new SqlStateFatalErrorClassifier(config.getUrl());
+    }
+
+    try {
+      Class classifierClass = Class.forName(className, true,
+          SqlStateFatalErrorClassifier.class.getClassLoader());
+      return (FatalErrorClassifier) classifierClass.newInstance();
+    }
+    catch (ClassNotFoundException e) {
+      throw new PoolingException("Could not find fatal error classifier "
+          + className + " for " + config.getName(), e);
+    }
+    catch (InstantiationException e) {
+      throw new PoolingException("Could not create fatal error classifier "
+          + className + " for " + config.getName(), e);
+    }
+    catch (IllegalAccessException e) {
+      throw new PoolingException("Could not create fatal error classifier "
+          + className + " for " + config.getName(), e);
+    }
+    catch (ClassCastException e) {
+      throw new PoolingException(className + " is not a "
+          + FatalErrorClassifier.class.getName(), e);
+    }
+  }
+
+  public boolean isFatal(SQLException e) {
+    for (Throwable current = e; current != null;) {
+      if (current instanceof SQLException) {
+        SQLException sqlException = (SQLException) current;
+        if (isFatalState(sqlException.getSQLState())
+            || isVendorCode(sqlException.getErrorCode())) {
+          return true;
+        }
+        if (sqlException.getNextException() != null) {
+          current = sqlException.getNextException();
+          continue;
+        }
+      }
+      current = (current.getCause() == current) ? null : current.getCause();
+    }
+    return false;
+  }
+
+  private boolean isFatalState(String state) {
+    if (state == null) {
+      return false;
+    }
+    if (state.startsWith(CONNECTION_EXCEPTION_CLASS)) {
+      return true;
+    }
+    for (int i = 0; i < SHUTDOWN_STATES.length; i++) {
+      if (SHUTDOWN_STATES[i].equals(state)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isVendorCode(int code) {
+    for (int i = 0; i < vendorCodes.length; i++) {
+      if (vendorCodes[i] == code) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
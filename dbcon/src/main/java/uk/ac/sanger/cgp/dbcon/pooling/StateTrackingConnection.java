@@ -0,0 +1,633 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+
+/**
+ * <p>
+ * Wraps a physical connection for its whole life in a pool and keeps the
+ * auto-commit, read-only and transaction state locally so that calls which
+ * would not change anything are never sent to the driver. Every borrow runs
+ * {@link uk.ac.sanger.cgp.dbcon.util.DatabaseUtils#connectionSettings(Connection)}
+ * and DBCP flips auto-commit on every return and borrow; on most drivers each
+ * of those calls is a round-trip to the server.
+ * 
+ * <p>
+ * The rules are:
+ * <ul>
+ * <li>setAutoCommit is recorded and only applied to the driver before the
+ * next call which needs it, so a toggle which is undone before any work is
+ * done is never sent. It is applied straight away when it would commit
+ * outstanding work</li>
+ * <li>the connection is dirty once a statement has been executed outside
+ * auto-commit mode or the database metadata has been requested;
+ * commit and rollback are skipped when it is clean</li>
+ * <li>getAutoCommit and isReadOnly are answered locally and setReadOnly is
+ * skipped when the value is unchanged</li>
+ * </ul>
+ * 
+ * <p>
+ * When the pool takes a connection back it calls {@link #reset()} which
+ * applies the synonym's reset policy (see {@link Config#getResetPolicy()}).
+ * Under {@link Config#RESET_NEVER} outstanding work is left in place and is
+ * rolled back by the rollback every borrow performs.
+ * 
+ * <p>
+ * Statements are wrapped so executing one can apply any pending auto-commit
+ * change and mark the connection dirty. SQLExceptions thrown through the
+ * connection or its statements are passed to the pool's
+ * {@link FatalErrorClassifier}, if one has been set, and a fatal one purges
+ * the whole pool. Calls made through objects the
+ * wrapper cannot see, such as a ResultSet's getStatement(), bypass the
+ * tracking so the wrapper should only be used by the pools.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class StateTrackingConnection implements InvocationHandler {
+
+  private static final Random JITTER = new Random();
+
+  private static final Constructor CONNECTION_CONSTRUCTOR = proxyConstructor(Connection.class);
+
+  private static final Constructor STATEMENT_CONSTRUCTOR = proxyConstructor(Statement.class);
+
+  private static final Constructor PREPARED_STATEMENT_CONSTRUCTOR = proxyConstructor(PreparedStatement.class);
+
+  private static final Constructor CALLABLE_STATEMENT_CONSTRUCTOR = proxyConstructor(CallableStatement.class);
+
+  private final Connection delegate;
+
+  private final RoundTripStatistics statistics;
+
+  private final String resetPolicy;
+
+  private Connection proxy;
+
+  private volatile Connection handle = null;
+
+  private boolean driverAutoCommit;
+
+  private boolean autoCommit;
+
+  private boolean readOnly;
+
+  private final int defaultIsolation;
+
+  private int isolation;
+
+  private final String defaultCatalog;
+
+  private String catalog;
+
+  private boolean dirty = false;
+
+  private boolean returning = false;
+
+  private volatile long lastVerified = System.currentTimeMillis();
+
+  private volatile long retireTime = Long.MAX_VALUE;
+
+  private volatile long borrowedAt = 0;
+
+  private volatile AtomicInteger generation = null;
+
+  private int createdGeneration;
+
+  private volatile FatalErrorClassifier classifier = null;
+
+  private volatile UrlFailover failover = null;
+
+  /*
+   * Only ever written by the thread using the connection; read racily by
+   * RoundTripStatistics
+   */
+  private final long[] requested = new long[RoundTripStatistics.TYPES];
+
+  private final long[] sent = new long[RoundTripStatistics.TYPES];
+
+  private StateTrackingConnection(Connection delegate,
+      RoundTripStatistics statistics, String resetPolicy) throws SQLException {
+    this.delegate = delegate;
+    this.statistics = statistics;
+    this.resetPolicy = resetPolicy;
+    this.driverAutoCommit = delegate.getAutoCommit();
+    this.autoCommit = driverAutoCommit;
+    this.readOnly = delegate.isReadOnly();
+    this.defaultIsolation = delegate.getTransactionIsolation();
+    this.isolation = defaultIsolation;
+    this.defaultCatalog = delegate.getCatalog();
+    this.catalog = defaultCatalog;
+  }
+
+  private static Constructor proxyConstructor(Class iface) {
+    try {
+      Class proxyClass = Proxy.getProxyClass(StateTrackingConnection.class
+          .getClassLoader(), new Class[] { iface });
+      return proxyClass.getConstructor(new Class[] { InvocationHandler.class });
+    }
+    catch (NoSuchMethodException e) {
+      throw new PoolingException("Cannot create proxy class for "
+          + iface.getName(), e);
+    }
+  }
+
+  private static Object newProxy(Constructor constructor,
+      InvocationHandler handler) {
+    try {
+      return constructor.newInstance(new Object[] { handler });
+    }
+    catch (Exception e) {
+      throw new PoolingException("Cannot create JDBC proxy", e);
+    }
+  }
+
+  /**
+   * Wraps a newly opened physical connection. The connection's current
+   * auto-commit and read-only settings are read once here.
+   * 
+   * @param connection The physical connection
+   * @param statistics Where the wrapper's counts are reported
+   * @param resetPolicy The reset policy applied by {@link #reset()}
+   * @return The tracking connection
+   * @throws SQLException Thrown if the initial state cannot be read
+   */
+  public static Connection wrap(Connection connection,
+      RoundTripStatistics statistics, String resetPolicy) throws SQLException {
+    StateTrackingConnection handler = new StateTrackingConnection(connection,
+        statistics, resetPolicy);
+    handler.proxy = (Connection) newProxy(CONNECTION_CONSTRUCTOR, handler);
+    statistics.register(handler);
+    return handler.proxy;
+  }
+
+  /**
+   * Returns the tracker behind a connection created by
+   * {@link #wrap(Connection, RoundTripStatistics, String)}, looking through
+   * the connections handed out by either pool engine, or null if the
+   * connection is not tracked
+   */
+  public static StateTrackingConnection getTracker(Connection connection) {
+    if (connection instanceof DelegatingConnection) {
+      connection = ((DelegatingConnection) connection).getInnermostDelegate();
+    }
+    if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+      InvocationHandler handler = Proxy.getInvocationHandler(connection);
+      if (handler instanceof StateTrackingConnection) {
+        return (StateTrackingConnection) handler;
+      }
+      else if (handler instanceof ProxyConnection) {
+        return getTracker(((ProxyConnection) handler).getDelegate());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The tracking connection this handler sits behind
+   */
+  public Connection getConnection() {
+    return proxy;
+  }
+
+  /**
+   * Sets the pooled handle the current borrower holds, or null once it has
+   * been returned. Statements created through the tracker lead back to the
+   * handle so closing their connection returns it to the pool rather than
+   * closing the physical connection.
+   */
+  public void setHandle(Connection handle) {
+    this.handle = handle;
+  }
+
+  /**
+   * True if a statement has run outside auto-commit mode since the last
+   * commit or rollback
+   */
+  public boolean isDirty() {
+    return dirty;
+  }
+
+  /**
+   * Resets the transaction of a connection being returned to the pool
+   * according to the reset policy
+   * 
+   * @throws SQLException Thrown if the rollback fails; the connection should
+   *           then be discarded
+   */
+  public void reset() throws SQLException {
+    requested[RoundTripStatistics.ROLLBACK]++;
+    if (autoCommit || Config.RESET_NEVER.equals(resetPolicy)) {
+      return;
+    }
+    if (dirty || Config.RESET_ALWAYS.equals(resetPolicy)) {
+      flush();
+      sent[RoundTripStatistics.ROLLBACK]++;
+      delegate.rollback();
+      dirty = false;
+    }
+  }
+
+  /**
+   * Puts back the settings a borrower may have changed, as DBCP does when
+   * it activates a connection: read-only is switched off and the transaction
+   * isolation and catalog go back to the values the connection was opened
+   * with. Only settings which differ are sent to the driver.
+   * 
+   * @throws SQLException Thrown if a setting cannot be restored; the
+   *           connection should then be discarded
+   */
+  public void restoreDefaults() throws SQLException {
+    if (readOnly) {
+      setReadOnly(false);
+    }
+    if (isolation != defaultIsolation) {
+      delegate.setTransactionIsolation(defaultIsolation);
+      isolation = defaultIsolation;
+    }
+    if (defaultCatalog != null && !defaultCatalog.equals(catalog)) {
+      delegate.setCatalog(defaultCatalog);
+      catalog = defaultCatalog;
+    }
+  }
+
+  /**
+   * Marks the connection as being returned to the pool. While set, rollback
+   * calls apply the reset policy and, under {@link Config#RESET_NEVER},
+   * auto-commit changes are ignored so outstanding work is not committed by
+   * the pool's own clean up.
+   */
+  public void setReturning(boolean returning) {
+    this.returning = returning;
+  }
+
+  /**
+   * Records that the connection has just been shown to work, either by
+   * passing validation or by being returned after use
+   */
+  public void markVerified() {
+    lastVerified = System.currentTimeMillis();
+  }
+
+  /**
+   * Records that the connection has just been handed to a borrower
+   */
+  public void markBorrowed() {
+    borrowedAt = System.nanoTime();
+  }
+
+  /**
+   * Records that the connection has been given back
+   * 
+   * @return Nanoseconds since {@link #markBorrowed()} or -1 if the
+   *         connection was not marked as borrowed
+   */
+  public long markReturned() {
+    long since = borrowedAt;
+    borrowedAt = 0;
+    return (since == 0) ? -1 : System.nanoTime() - since;
+  }
+
+  /**
+   * True if the connection was shown to work within the last interval
+   * milliseconds. Always false when the interval is not positive.
+   * 
+   * @see Config#getValidationInterval()
+   */
+  public boolean isVerifiedWithin(long interval) {
+    return interval > 0 && System.currentTimeMillis() - lastVerified <= interval;
+  }
+
+  /**
+   * Sets the connection to retire the given lifetime from now less a random
+   * jitter of up to a tenth of the lifetime
+   * 
+   * @return The number of milliseconds until the connection retires
+   * @see Config#getMaxLifetime()
+   */
+  public long retireAfter(long maxLifetime) {
+    long jitter = (long) (JITTER.nextDouble() * (maxLifetime / 10));
+    long lifetime = maxLifetime - jitter;
+    retireTime = System.currentTimeMillis() + lifetime;
+    return lifetime;
+  }
+
+  /**
+   * Ties the connection to the given generation counter; the connection is
+   * retired as soon as the counter moves on from its current value
+   * 
+   * @see UrlFailover
+   */
+  public void retireOnChange(AtomicInteger generation) {
+    this.createdGeneration = generation.get();
+    this.generation = generation;
+  }
+
+  /**
+   * Purges the pool through the failover whenever a SQLException thrown
+   * through this connection or its statements is fatal according to the
+   * classifier. Only has an effect once
+   * {@link #retireOnChange(AtomicInteger)} has been given the failover's
+   * generation; a connection already retired never purges.
+   * 
+   * @see UrlFailover#purge(int)
+   */
+  public void purgeOnFatalError(FatalErrorClassifier classifier,
+      UrlFailover failover) {
+    this.classifier = classifier;
+    this.failover = failover;
+  }
+
+  /**
+   * True once the connection has passed the time set by
+   * {@link #retireAfter(long)} or the generation given to
+   * {@link #retireOnChange(AtomicInteger)} has moved on
+   */
+  public boolean isRetired() {
+    AtomicInteger current = generation;
+    return System.currentTimeMillis() >= retireTime
+        || (current != null && current.get() != createdGeneration);
+  }
+
+  long getRequested(int type) {
+    return requested[type];
+  }
+
+  long getSent(int type) {
+    return sent[type];
+  }
+
+  /**
+   * Sends any pending auto-commit change to the driver
+   */
+  private void flush() throws SQLException {
+    if (autoCommit != driverAutoCommit) {
+      sent[RoundTripStatistics.AUTO_COMMIT]++;
+      delegate.setAutoCommit(autoCommit);
+      driverAutoCommit = autoCommit;
+    }
+  }
+
+  private void setAutoCommit(boolean value) throws SQLException {
+    requested[RoundTripStatistics.AUTO_COMMIT]++;
+    if (value == autoCommit
+        || (returning && Config.RESET_NEVER.equals(resetPolicy))) {
+      return;
+    }
+    autoCommit = value;
+    // Switching auto-commit on commits outstanding work so do it now
+    if (dirty) {
+      flush();
+      dirty = false;
+    }
+  }
+
+  private void endTransaction(int type, Method method, Object[] args)
+      throws Throwable {
+    requested[type]++;
+    if (!dirty) {
+      return;
+    }
+    flush();
+    sent[type]++;
+    invokeDelegate(delegate, method, args);
+    dirty = false;
+  }
+
+  private void setReadOnly(boolean value) throws SQLException {
+    requested[RoundTripStatistics.READ_ONLY]++;
+    if (value == readOnly) {
+      return;
+    }
+    flush();
+    sent[RoundTripStatistics.READ_ONLY]++;
+    delegate.setReadOnly(value);
+    readOnly = value;
+  }
+
+  private void close() throws SQLException {
+    try {
+      delegate.close();
+    }
+    finally {
+      statistics.retire(this);
+    }
+  }
+
+  private static Object invokeDelegate(Object target, Method method,
+      Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    }
+    catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Purges the pool if the exception is fatal
+   */
+  private void checkFatal(SQLException e) {
+    FatalErrorClassifier currentClassifier = classifier;
+    UrlFailover currentFailover = failover;
+    if (currentClassifier != null && currentFailover != null
+        && currentClassifier.isFatal(e)) {
+      currentFailover.purge(createdGeneration);
+    }
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return invokeTracked(method, args);
+    }
+    catch (SQLException e) {
+      checkFatal(e);
+      throw e;
+    }
+  }
+
+  private Object invokeTracked(Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+
+    if ("setAutoCommit".equals(name)) {
+      setAutoCommit(((Boolean) args[0]).booleanValue());
+      return null;
+    }
+    else if ("getAutoCommit".equals(name)) {
+      return Boolean.valueOf(autoCommit);
+    }
+    else if ("rollback".equals(name) && args == null) {
+      if (returning) {
+        reset();
+      }
+      else {
+        endTransaction(RoundTripStatistics.ROLLBACK, method, args);
+      }
+      return null;
+    }
+    else if ("commit".equals(name)) {
+      endTransaction(RoundTripStatistics.COMMIT, method, args);
+      return null;
+    }
+    else if ("setReadOnly".equals(name)) {
+      setReadOnly(((Boolean) args[0]).booleanValue());
+      return null;
+    }
+    else if ("isReadOnly".equals(name)) {
+      return Boolean.valueOf(readOnly);
+    }
+    else if ("close".equals(name)) {
+      close();
+      return null;
+    }
+    else if ("isClosed".equals(name)) {
+      return Boolean.valueOf(delegate.isClosed());
+    }
+    else if ("equals".equals(name)) {
+      return Boolean.valueOf(proxy == args[0]);
+    }
+    else if ("hashCode".equals(name)) {
+      return new Integer(System.identityHashCode(proxy));
+    }
+    else if ("toString".equals(name)) {
+      return "State tracking connection for " + delegate;
+    }
+    // Answered here as pre JDBC 4 drivers do not implement these methods
+    else if ("unwrap".equals(name) && ((Class) args[0]).isInstance(delegate)) {
+      return delegate;
+    }
+    else if ("isWrapperFor".equals(name)
+        && ((Class) args[0]).isInstance(delegate)) {
+      return Boolean.TRUE;
+    }
+
+    flush();
+    Object result = invokeDelegate(delegate, method, args);
+
+    // Remembered so restoreDefaults knows what a borrower changed
+    if ("setTransactionIsolation".equals(name)) {
+      isolation = ((Integer) args[0]).intValue();
+    }
+    else if ("setCatalog".equals(name)) {
+      catalog = (String) args[0];
+    }
+    else if ("getMetaData".equals(name)) {
+      // Metadata lookups can run queries inside the current transaction
+      markDirty();
+    }
+    else if (result instanceof CallableStatement) {
+      result = newProxy(CALLABLE_STATEMENT_CONSTRUCTOR, new TrackedStatement(
+          (Statement) result));
+    }
+    else if (result instanceof PreparedStatement) {
+      result = newProxy(PREPARED_STATEMENT_CONSTRUCTOR, new TrackedStatement(
+          (Statement) result));
+    }
+    else if (result instanceof Statement) {
+      result = newProxy(STATEMENT_CONSTRUCTOR, new TrackedStatement(
+          (Statement) result));
+    }
+
+    return result;
+  }
+
+  private void markDirty() {
+    if (!autoCommit) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Applies pending state and marks the connection dirty whenever the
+   * wrapped statement is executed
+   */
+  private class TrackedStatement implements InvocationHandler {
+
+    private final Statement statement;
+
+    TrackedStatement(Statement statement) {
+      this.statement = statement;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      String name = method.getName();
+
+      if ("getConnection".equals(name)) {
+        Connection current = handle;
+        return (current == null) ? StateTrackingConnection.this.proxy : current;
+      }
+      else if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]);
+      }
+      else if ("hashCode".equals(name)) {
+        return new Integer(System.identityHashCode(proxy));
+      }
+      else if ("toString".equals(name)) {
+        return statement.toString();
+      }
+      else if ("unwrap".equals(name)
+          && ((Class) args[0]).isInstance(statement)) {
+        return statement;
+      }
+      else if ("isWrapperFor".equals(name)
+          && ((Class) args[0]).isInstance(statement)) {
+        return Boolean.TRUE;
+      }
+
+      try {
+        if (name.startsWith("execute")) {
+          flush();
+          markDirty();
+        }
+        return invokeDelegate(statement, method, args);
+      }
+      catch (SQLException e) {
+        checkFatal(e);
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,410 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * <p>
+ * Chooses the URL a pool opens its physical connections against. A pool
+ * starts on the URL found to work when it was created. After
+ * {@link Config#getFailoverThreshold()} consecutive failures to connect to
+ * the primary URL new connections are opened against the backup URL and the
+ * primary is checked every {@link Config#getFailbackInterval()}
+ * milliseconds on the shared {@link Housekeeper}. The first
+ * successful check switches the pool back.
+ * 
+ * <p>
+ * Every switch moves the generation on. Connections given to
+ * {@link StateTrackingConnection#retireOnChange(AtomicInteger)} are then
+ * retired so the pool drains connections to the old URL, and the switch
+ * listener is run so the pool can close its idle ones straight away.
+ * 
+ * <p>
+ * The generation is also moved on by {@link #purge(int)} when a borrower
+ * hits an error its pool's {@link FatalErrorClassifier} says means the
+ * database has gone away. The URL stays the same but every connection
+ * opened before the error is retired in the same way.
+ * 
+ * <p>
+ * If {@link Config#getStandbyConnections()} is set, connections to the backup
+ * URL are opened in the background and kept open while the pool is on its
+ * primary. The housekeeper validates and tops them up every failback
+ * interval. They are handed out first after a failover so the pool does not
+ * have to wait for connections to be made. They are not counted by the pool
+ * until they are handed out.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class UrlFailover {
+
+  private final Log log = LogFactory.getLog(this.getClass());
+
+  private final Config config;
+
+  private final String primaryUrl;
+
+  private final String backupUrl;
+
+  private final AtomicInteger generation = new AtomicInteger();
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+  private final AtomicLong failovers = new AtomicLong();
+
+  private final AtomicLong failbacks = new AtomicLong();
+
+  private final AtomicLong standbyUsed = new AtomicLong();
+
+  private final AtomicLong purges = new AtomicLong();
+
+  private final Queue standby = new ConcurrentLinkedQueue();
+
+  private final ConnectionValidator validator;
+
+  private volatile boolean onBackup;
+
+  private volatile Runnable switchListener = null;
+
+  private ScheduledFuture monitor = null;
+
+  private volatile boolean closed = false;
+
+  public UrlFailover(Config config) {
+    this.config = config;
+    this.primaryUrl = config.getUrl();
+    this.backupUrl = config.getBackupUrl();
+    this.onBackup = hasBackup() && backupUrl.equals(config.getWorkingUrl());
+    this.validator = new ConnectionValidator(config);
+    if (onBackup || isStandbyEnabled()) {
+      synchronized (this) {
+        startMonitor();
+      }
+    }
+  }
+
+  protected Log getLog() {
+    return log;
+  }
+
+  /**
+   * Run after every switch between the primary and backup URL
+   */
+  public void setSwitchListener(Runnable switchListener) {
+    this.switchListener = switchListener;
+  }
+
+  /**
+   * The counter moved on by every switch
+   */
+  AtomicInteger getGeneration() {
+    return generation;
+  }
+
+  /**
+   * The URL new connections are currently opened against
+   */
+  public String getCurrentUrl() {
+    return onBackup ? backupUrl : primaryUrl;
+  }
+
+  /**
+   * True while new connections are opened against the backup URL
+   */
+  public boolean isFailedOver() {
+    return onBackup;
+  }
+
+  /**
+   * Number of times the pool has switched to the backup URL
+   */
+  public long getFailovers() {
+    return failovers.get();
+  }
+
+  /**
+   * Number of times the pool has switched back to the primary URL
+   */
+  public long getFailbacks() {
+    return failbacks.get();
+  }
+
+  /**
+   * Number of times the pool's connections were purged after a fatal error
+   */
+  public long getPurges() {
+    return purges.get();
+  }
+
+  /**
+   * Number of standby connections currently open to the backup URL
+   */
+  public int getStandbyConnections() {
+    return standby.size();
+  }
+
+  /**
+   * Number of standby connections handed out after a failover
+   */
+  public long getStandbyUsed() {
+    return standbyUsed.get();
+  }
+
+  /**
+   * The config parsers give an empty backup URL when none is configured
+   */
+  private boolean hasBackup() {
+    return StringUtils.isNotEmpty(backupUrl) && !backupUrl.equals(primaryUrl);
+  }
+
+  private boolean isStandbyEnabled() {
+    return hasBackup() && config.getStandbyConnections() > 0;
+  }
+
+  /**
+   * Opens a physical connection against the current URL. A failure against
+   * the primary URL which reaches the failover threshold switches to the
+   * backup URL and the connection is tried once more against it. Against
+   * the backup URL standby connections are used before new ones are opened.
+   */
+  public Connection openConnection() throws SQLException {
+    boolean backup = onBackup;
+    if (backup) {
+      return openBackupConnection();
+    }
+    try {
+      Connection conn = DriverManager.getConnection(primaryUrl, config
+          .getUsername(), config.getPassword());
+      consecutiveFailures.set(0);
+      return conn;
+    }
+    catch (SQLException e) {
+      if (!hasBackup() || config.getFailoverThreshold() <= 0
+          || consecutiveFailures.incrementAndGet() < config.getFailoverThreshold()) {
+        throw e;
+      }
+      if (getLog().isWarnEnabled())
+        getLog().warn("Could not connect to the primary URL for "
+            + config.getName() + "; switching to the backup URL", e);
+      switchTo(true);
+      return openBackupConnection();
+    }
+  }
+
+  /**
+   * Hands out a standby connection if one is still open otherwise opens a
+   * new connection to the backup URL
+   */
+  private Connection openBackupConnection() throws SQLException {
+    Connection conn;
+    while ((conn = (Connection) standby.poll()) != null) {
+      if (!conn.isClosed()) {
+        standbyUsed.incrementAndGet();
+        return conn;
+      }
+    }
+    return DriverManager.getConnection(backupUrl, config.getUsername(), config
+        .getPassword());
+  }
+
+  /**
+   * Moves new connection creation to the given URL, moving the generation on
+   * and telling the listener if this was a change
+   */
+  private void switchTo(boolean backup) {
+    synchronized (this) {
+      if (closed || onBackup == backup) {
+        return;
+      }
+      onBackup = backup;
+      generation.incrementAndGet();
+      consecutiveFailures.set(0);
+      config.setWorkingUrl(getCurrentUrl());
+      if (backup) {
+        failovers.incrementAndGet();
+        startMonitor();
+      }
+      else {
+        failbacks.incrementAndGet();
+        if (!isStandbyEnabled()) {
+          stopMonitor();
+        }
+      }
+    }
+
+    Runnable listener = switchListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Retires every connection of the given generation and runs the switch
+   * listener so idle ones are closed at once. Only the first call for a
+   * generation has any effect so a burst of borrowers failing together
+   * causes one purge.
+   * 
+   * @param expectedGeneration
+   *          The generation of the connection which hit the fatal error
+   * @return True if this call moved the generation on
+   */
+  boolean purge(int expectedGeneration) {
+    if (closed
+        || !generation.compareAndSet(expectedGeneration, expectedGeneration + 1)) {
+      return false;
+    }
+    purges.incrementAndGet();
+    if (getLog().isWarnEnabled())
+      getLog().warn("Fatal connection error for " + config.getName()
+          + "; retiring all connections");
+
+    Runnable listener = switchListener;
+    if (listener != null) {
+      listener.run();
+    }
+    return true;
+  }
+
+  /**
+   * Checks the primary URL and switches back to it if a connection can be
+   * made
+   */
+  void checkPrimary() {
+    if (onBackup
+        && DatabaseUtils.isUrlValid(primaryUrl, config.getUsername(), config
+            .getPassword(), config.getDriver())) {
+      if (getLog().isInfoEnabled())
+        getLog().info("Primary URL for " + config.getName()
+            + " is available again; switching back");
+      switchTo(false);
+    }
+  }
+
+  /**
+   * Closes standby connections which fail validation and opens new ones
+   * until there are as many as configured. Does nothing while failed over;
+   * the pool's own connections are then to the backup URL.
+   */
+  void maintainStandby() {
+    for (Iterator iter = standby.iterator(); iter.hasNext();) {
+      Connection conn = (Connection) iter.next();
+      if (!validator.validate(conn) && standby.remove(conn)) {
+        DatabaseUtils.closeDbObject(conn);
+      }
+    }
+
+    while (!onBackup && !closed
+        && standby.size() < config.getStandbyConnections()) {
+      try {
+        standby.add(DriverManager.getConnection(backupUrl, config
+            .getUsername(), config.getPassword()));
+      }
+      catch (SQLException e) {
+        if (getLog().isDebugEnabled())
+          getLog().debug("Could not open standby connection for "
+              + config.getName(), e);
+        break;
+      }
+    }
+
+    if (closed) {
+      closeStandby();
+    }
+  }
+
+  private void startMonitor() {
+    if (monitor != null || closed) {
+      return;
+    }
+    long interval = Math.max(1, config.getFailbackInterval());
+    Runnable monitorTask = new Runnable() {
+      public void run() {
+        try {
+          if (onBackup) {
+            checkPrimary();
+          }
+          else {
+            maintainStandby();
+          }
+        }
+        catch (RuntimeException e) {
+          if (getLog().isErrorEnabled())
+            getLog().error("Primary URL check failed for " + config.getName(), e);
+        }
+      }
+    };
+    monitor = Housekeeper.getInstance().scheduleWithFixedDelay(
+        config.getName(), Housekeeper.FAILOVER, monitorTask,
+        onBackup ? interval : 0, interval);
+  }
+
+  private void stopMonitor() {
+    Housekeeper.getInstance().cancel(monitor);
+    monitor = null;
+  }
+
+  /**
+   * Stops checking the primary URL and closes the standby connections
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      stopMonitor();
+    }
+    closeStandby();
+  }
+
+  private void closeStandby() {
+    Connection conn;
+    while ((conn = (Connection) standby.poll()) != null) {
+      DatabaseUtils.closeDbObject(conn);
+    }
+  }
+
+  public String toString() {
+    return "url=" + getCurrentUrl() + ", failedOver=" + onBackup
+        + ", failovers=" + getFailovers() + ", failbacks=" + getFailbacks()
+        + ", standby=" + getStandbyConnections() + ", standbyUsed="
+        + getStandbyUsed() + ", purges=" + getPurges();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.sanger.cgp.dbcon.config.Config;
+
+/**
+ * Counts and times the connection validations run by a pool, kept separately
+ * for each validation mode so the cost of the validation query can be
+ * compared with the driver's isValid ping.
+ * 
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ValidationStatistics {
+
+  static final int QUERY = 0;
+  static final int IS_VALID = 1;
+
+  private static final String[] MODES = new String[] {
+      Config.VALIDATION_QUERY, Config.VALIDATION_ISVALID };
+
+  private final AtomicLong[] counts = newCounters();
+
+  private final AtomicLong[] failures = newCounters();
+
+  private final AtomicLong[] totalNanos = newCounters();
+
+  private final AtomicLong[] maxNanos = newCounters();
+
+  public ValidationStatistics() {
+    super();
+  }
+
+  private static AtomicLong[] newCounters() {
+    AtomicLong[] counters = new AtomicLong[MODES.length];
+    for (int i = 0; i < MODES.length; i++) {
+      counters[i] = new AtomicLong();
+    }
+    return counters;
+  }
+
+  void record(int mode, long nanos, boolean valid) {
+    counts[mode].incrementAndGet();
+    totalNanos[mode].addAndGet(nanos);
+    if (!valid) {
+      failures[mode].incrementAndGet();
+    }
+    long max = maxNanos[mode].get();
+    while (nanos > max && !maxNanos[mode].compareAndSet(max, nanos)) {
+      max = maxNanos[mode].get();
+    }
+  }
+
+  private static int index(String mode) {
+    for (int i = 0; i < MODES.length; i++) {
+      if (MODES[i].equalsIgnoreCase(mode)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Unknown validation mode " + mode);
+  }
+
+  /**
+   * Number of validations run in the given mode
+   * 
+   * @param mode {@link Config#VALIDATION_QUERY} or
+   *          {@link Config#VALIDATION_ISVALID}
+   */
+  public long getCount(String mode) {
+    return counts[index(mode)].get();
+  }
+
+  /**
+   * Number of validations in the given mode which found the connection
+   * unusable
+   */
+  public long getFailures(String mode) {
+    return failures[index(mode)].get();
+  }
+
+  /**
+   * Mean validation time in microseconds for the given mode or 0 if none
+   * have run
+   */
+  public long getMeanMicros(String mode) {
+    int i = index(mode);
+    long count = counts[i].get();
+    return (count == 0) ? 0 : (totalNanos[i].get() / count) / 1000;
+  }
+
+  /**
+   * Longest validation time in microseconds for the given mode
+   */
+  public long getMaxMicros(String mode) {
+    return maxNanos[index(mode)].get() / 1000;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < MODES.length; i++) {
+      if (i > 0) {
+        sb.append("; ");
+      }
+      sb.append(MODES[i]).append(": ").append(counts[i].get()).append(
+          " run, ").append(failures[i].get()).append(" failed, mean ").append(
+          getMeanMicros(MODES[i])).append("us, max ").append(
+          getMaxMicros(MODES[i])).append("us");
+    }
+    return sb.toString();
+  }
+}
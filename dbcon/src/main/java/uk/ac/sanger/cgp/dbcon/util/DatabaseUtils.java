@@ -37,6 +37,7 @@ import org.apache.commons.logging.LogFactory;
 
 import uk.ac.sanger.cgp.dbcon.config.Config;
 import uk.ac.sanger.cgp.dbcon.exceptions.DbConException;
+import uk.ac.sanger.cgp.dbcon.pooling.StateTrackingConnection;
 
 /**
  * Set of utilities created to be used with the pool and singleton classes
@@ -69,12 +70,17 @@ public class DatabaseUtils {
    * with the ability to log any problems out to this class' logger. It also
    * performs a rollback on the given connection. Once close is called there
    * should be no need for any other transactional operations to be performed
-   * on a connection.
+   * on a connection. Connections borrowed from a dbcon pool are not rolled
+   * back here; the pool resets them on close according to the synonym's
+   * reset policy, skipping the rollback by default when no statement has run
+   * since the last commit or rollback.
    */
   public static void closeDbObject(Connection conn) {
     if(conn != null) {
       try {
-        conn.rollback();
+        if(StateTrackingConnection.getTracker(conn) == null) {
+          conn.rollback();
+        }
       }
       catch(SQLException e) {
         LOG.warn("Could not rollback java.sql.Connection", e);
@@ -169,24 +175,33 @@ public class DatabaseUtils {
 	 * the working URL into the config object
 	 */
 	public static String getValidConnectionURL(Config config) throws DbConException {
+		Connection conn = getValidConnection(config);
+		DatabaseUtils.closeDbObject(conn);
+		return config.getWorkingUrl();
+	}
+
+	/**
+	 * Works the same way as {@link #getValidConnectionURL(Config)} but hands
+	 * back the connection which proved the URL valid rather than closing it.
+	 * The caller is responsible for closing the returned connection.
+	 */
+	public static Connection getValidConnection(Config config) throws DbConException {
 
-		String validUrl = "";
+		String validUrl = config.getUrl();
+		Connection conn = openConnection(validUrl, config.getUsername(), config.getPassword(), config.getDriver());
 
-		if(isUrlValid(config.getUrl(), config.getUsername(), config.getPassword(), config.getDriver())) {
-			validUrl = config.getUrl();
+		if(conn == null && config.getBackupUrl() != null) {
+			validUrl = config.getBackupUrl();
+			conn = openConnection(validUrl, config.getUsername(), config.getPassword(), config.getDriver());
 		}
-		else {
-			if(config.getBackupUrl() != null && isUrlValid(config.getBackupUrl(), config.getUsername(), config.getPassword(), config.getDriver())) {
-				validUrl = config.getBackupUrl();
-			}
-			else {
-				throw new DbConException("No valid URL could be found for DB "+config.getName());
-			}
+
+		if(conn == null) {
+			throw new DbConException("No valid URL could be found for DB "+config.getName());
 		}
 
 		config.setWorkingUrl(validUrl);
 
-		return validUrl;
+		return conn;
 	}
 
 	/**
@@ -194,27 +209,30 @@ public class DatabaseUtils {
 	 * It does not run any SQL, it just attempts a connection.
 	 */
 	public static boolean isUrlValid(String url, String username, String password, String driver) {
+		Connection conn = openConnection(url, username, password, driver);
+		DatabaseUtils.closeDbObject(conn);
+		return (conn != null);
+	}
+
+	/**
+	 * Opens a connection to the URL using the given driver returning null if
+	 * the driver cannot be found or the connection fails
+	 */
+	private static Connection openConnection(String url, String username, String password, String driver) {
 
-		boolean okay = false;
 		Connection conn = null;
 		try {
 			Class.forName(driver);
 			conn = DriverManager.getConnection(url, username, password);
-			okay = true;
 		}
 		catch(ClassNotFoundException e) {
 			if(LOG.isDebugEnabled()) LOG.debug("Cannot find class", e);
-			okay = false;
 		}
 		catch(SQLException e) {
 			if(LOG.isDebugEnabled()) LOG.debug("SQLException issue", e);
-			okay = false;
-		}
-		finally {
-			DatabaseUtils.closeDbObject(conn);
 		}
 
-		return okay;
+		return conn;
 	}
 
 }
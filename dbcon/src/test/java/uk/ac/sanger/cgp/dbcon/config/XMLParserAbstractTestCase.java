@@ -26,6 +26,8 @@
 
 package uk.ac.sanger.cgp.dbcon.config;
 
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 import uk.ac.sanger.cgp.dbcon.support.Constants;
 
@@ -104,4 +106,108 @@ public class XMLParserAbstractTestCase extends TestCase {
 		assertFalse("Pool was attempting to test the connection on return", config.isTestOnReturn());
 		assertTrue("Pool was not testing the connection when it was idle", config.isTestWhileIdle());
 	}
+
+	public void testEngineParsing() {
+		assertEquals("Engine should default to DBCP", Config.ENGINE_DBCP, parser.getConfig(Constants.DB_SYNONYM).getEngine());
+		assertEquals("Engine was not the configured dbcon engine", Config.ENGINE_DBCON, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getEngine());
+	}
+
+	public void testMinIdleParsing() {
+		assertEquals("Min idle should default to 0", 0, parser.getConfig(Constants.DB_SYNONYM).getMinIdle());
+		assertEquals("Min idle was not the configured value", 2, parser.getConfig("anotherTestDb").getMinIdle());
+	}
+
+	public void testValidationIntervalParsing() {
+		assertEquals("Validation interval should default to 0", 0, parser.getConfig(Constants.DB_SYNONYM).getValidationInterval());
+		assertEquals("Validation interval was not the configured value", 500, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getValidationInterval());
+	}
+
+	public void testValidationModeParsing() {
+		assertEquals("Validation mode should default to query", Config.VALIDATION_QUERY, parser.getConfig(Constants.DB_SYNONYM).getValidationMode());
+		assertEquals("Validation mode was not the configured value", Config.VALIDATION_ISVALID, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getValidationMode());
+		assertEquals("Validation timeout was not the configured value", 2, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getValidationTimeout());
+	}
+
+	public void testMaxLifetimeParsing() {
+		assertEquals("Max lifetime should default to 0", 0, parser.getConfig(Constants.DB_SYNONYM).getMaxLifetime());
+		assertEquals("Max lifetime was not the configured value", 600000, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getMaxLifetime());
+	}
+
+	public void testReadReplicaParsing() {
+		assertTrue("Read URLs should default to none", parser.getConfig(Constants.DB_SYNONYM).getReadUrls().isEmpty());
+		assertEquals("Read balancing should default to least active", Config.READ_LEAST_ACTIVE, parser.getConfig(Constants.DB_SYNONYM).getReadBalancing());
+		assertEquals("Read URLs were not the configured values", Arrays.asList(new String[] {"jdbc:hsqldb:mem:replica1", "jdbc:hsqldb:mem:replica2"}), parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getReadUrls());
+		assertEquals("Read balancing was not the configured value", Config.READ_LATENCY, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getReadBalancing());
+	}
+
+	public void testCircuitBreakerParsing() {
+		assertEquals("Breaker threshold should default to 0", 0, parser.getConfig(Constants.DB_SYNONYM).getBreakerThreshold());
+		assertEquals("Breaker probe interval should default to 5000", 5000, parser.getConfig(Constants.DB_SYNONYM).getBreakerProbeInterval());
+		assertEquals("Breaker threshold was not the configured value", 4, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getBreakerThreshold());
+		assertEquals("Breaker probe interval was not the configured value", 2000, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getBreakerProbeInterval());
+	}
+
+	public void testConcurrentEvictionParsing() {
+		assertEquals("Concurrent evict tests should default to 1", 1, parser.getConfig(Constants.DB_SYNONYM).getConcurrentEvictTests());
+		assertEquals("Evict budget should default to a bounded value", Config.DEFAULT_EVICT_BUDGET, parser.getConfig(Constants.DB_SYNONYM).getEvictBudget());
+		assertEquals("Concurrent evict tests was not the configured value", 3, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getConcurrentEvictTests());
+		assertEquals("Evict budget was not the configured value", 1500, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getEvictBudget());
+	}
+
+	public void testFatalErrorClassifierParsing() {
+		assertNull("Fatal error classifier should default to null", parser.getConfig(Constants.DB_SYNONYM).getFatalErrorClassifier());
+		assertEquals("Fatal error classifier was not the configured value", "uk.ac.sanger.cgp.dbcon.pooling.SqlStateFatalErrorClassifier", parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getFatalErrorClassifier());
+	}
+
+	public void testBurstConnectionsParsing() {
+		assertEquals("Burst connections should default to 0", 0, parser.getConfig(Constants.DB_SYNONYM).getBurstConnections());
+		assertEquals("Burst connections was not the configured value", 2, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getBurstConnections());
+	}
+
+	public void testPriorityParsing() {
+		Config defaults = parser.getConfig(Constants.DB_SYNONYM);
+		assertEquals("Reserved high should default to 0", 0, defaults.getReservedHigh());
+		assertEquals("Reserved normal should default to 0", 0, defaults.getReservedNormal());
+		assertEquals("Priority aging should default to 1000", 1000, defaults.getPriorityAging());
+		Config configured = parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM);
+		assertEquals("Reserved high should default to 0", 0, configured.getReservedHigh());
+		assertEquals("Reserved normal was not the configured value", 1, configured.getReservedNormal());
+		assertEquals("Priority aging was not the configured value", 500, configured.getPriorityAging());
+	}
+
+	public void testLoadSheddingParsing() {
+		Config defaults = parser.getConfig(Constants.DB_SYNONYM);
+		assertEquals("Max waiters should default to 0", 0, defaults.getMaxWaiters());
+		assertEquals("Max expected wait should default to 0", 0, defaults.getMaxExpectedWait());
+		Config configured = parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM);
+		assertEquals("Max waiters was not the configured value", 50, configured.getMaxWaiters());
+		assertEquals("Max expected wait was not the configured value", 60000, configured.getMaxExpectedWait());
+	}
+
+	public void testAdaptiveSizingParsing() {
+		Config defaults = parser.getConfig(Constants.DB_SYNONYM);
+		assertEquals("Adaptive ceiling should default to 0", 0, defaults.getAdaptiveCeiling());
+		assertEquals("Adaptive floor should default to 1", 1, defaults.getAdaptiveFloor());
+		assertEquals("Target wait should default to 50", 50, defaults.getTargetWait());
+		assertEquals("Resize interval should default to 10000", 10000, defaults.getResizeInterval());
+		Config configured = parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM);
+		assertEquals("Adaptive ceiling was not the configured value", 20, configured.getAdaptiveCeiling());
+		assertEquals("Adaptive floor was not the configured value", 2, configured.getAdaptiveFloor());
+		assertEquals("Target wait was not the configured value", 25, configured.getTargetWait());
+		assertEquals("Resize interval was not the configured value", 3600000, configured.getResizeInterval());
+	}
+
+	public void testFailoverParsing() {
+		assertEquals("Failover threshold should default to 3", 3, parser.getConfig(Constants.DB_SYNONYM).getFailoverThreshold());
+		assertEquals("Failback interval should default to 30000", 30000, parser.getConfig(Constants.DB_SYNONYM).getFailbackInterval());
+		assertEquals("Failover threshold was not the configured value", 5, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getFailoverThreshold());
+		assertEquals("Failback interval was not the configured value", 10000, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getFailbackInterval());
+		assertEquals("Standby connections should default to 0", 0, parser.getConfig(Constants.DB_SYNONYM).getStandbyConnections());
+		assertEquals("Standby connections was not the configured value", 1, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getStandbyConnections());
+	}
+
+	public void testResetPolicyParsing() {
+		assertEquals("Reset policy should default to if-dirty", Config.RESET_IF_DIRTY, parser.getConfig(Constants.DB_SYNONYM).getResetPolicy());
+		assertEquals("Reset policy was not the configured value", Config.RESET_ALWAYS, parser.getConfig(Constants.DBCON_ENGINE_DB_SYNONYM).getResetPolicy());
+	}
 }
@@ -0,0 +1,176 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Checks the grow and shrink decisions of a pool's {@link AdaptiveSizer}.
+ * Decisions are made by hand rather than on the housekeeper.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class AdaptiveSizerTest extends TestCase {
+
+  private static final long SLOW = 200L * 1000 * 1000;
+
+  private static final long BORDERLINE = 40L * 1000 * 1000;
+
+  private static final long FAST = 1000;
+
+  private Pool pool = null;
+
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    if (pool != null) {
+      pool.destroyPool();
+    }
+  }
+
+  private Pool createPool(String engine, int maxActive) {
+    Config config = Config.createEmptyConfig();
+    config.setName("adaptiveTest");
+    config.setEngine(engine);
+    config.setDriver("org.hsqldb.jdbcDriver");
+    config.setUsername("sa");
+    config.setPassword("");
+    config.setUrl("jdbc:hsqldb:mem:adaptive");
+    config.setValidationQuery("");
+    config.setMaxActive(maxActive);
+    config.setMaxIdle(maxActive);
+    config.setAdaptiveFloor(2);
+    config.setAdaptiveCeiling(6);
+    config.setTargetWait(50);
+    config.setResizeInterval(0);
+    pool = new Pool(config);
+    pool.init();
+    return pool;
+  }
+
+  private void recordWaits(AdaptiveSizer sizer, long nanos) {
+    for (int i = 0; i < 20; i++) {
+      sizer.recordWait(nanos);
+    }
+  }
+
+  public void testStartsWithinCeiling() {
+    createPool(Config.ENGINE_DBCON, 10);
+    assertEquals(6, pool.getMaxActiveConnections());
+    assertEquals("Max idle should follow max active", 6, pool
+        .getMaxIdleConnections());
+  }
+
+  public void testGrowsToCeiling() {
+    createPool(Config.ENGINE_DBCON, 4);
+    AdaptiveSizer sizer = pool.getAdaptiveSizer();
+
+    recordWaits(sizer, SLOW);
+    sizer.resize();
+    assertEquals("Slow borrows should grow the pool", 5, pool
+        .getMaxActiveConnections());
+    assertEquals(5, pool.getMaxIdleConnections());
+    assertEquals(1, sizer.getGrows());
+
+    for (int i = 0; i < 5; i++) {
+      recordWaits(sizer, SLOW);
+      sizer.resize();
+    }
+    assertEquals("Pool should stop at its ceiling", 6, pool
+        .getMaxActiveConnections());
+  }
+
+  public void testShrinksAfterCalmIntervals() throws Exception {
+    createPool(Config.ENGINE_DBCP, 6);
+    AdaptiveSizer sizer = pool.getAdaptiveSizer();
+    DatabaseUtils.closeDbObject(pool.getConnection());
+    assertTrue(pool.getIdleConnections() > 0);
+
+    for (int i = 1; i < AdaptiveSizer.CALM_INTERVALS; i++) {
+      recordWaits(sizer, FAST);
+      sizer.resize();
+    }
+    recordWaits(sizer, BORDERLINE);
+    sizer.resize();
+    assertEquals("A wait inside the dead band should restart the count", 6,
+        pool.getMaxActiveConnections());
+
+    for (int i = 1; i < AdaptiveSizer.CALM_INTERVALS; i++) {
+      recordWaits(sizer, FAST);
+      sizer.resize();
+      assertEquals(6, pool.getMaxActiveConnections());
+    }
+    recordWaits(sizer, FAST);
+    sizer.resize();
+    assertEquals("Pool should shrink by half its unused connections", 3, pool
+        .getMaxActiveConnections());
+    assertEquals(1, sizer.getShrinks());
+
+    for (int i = 0; i < AdaptiveSizer.CALM_INTERVALS * 3; i++) {
+      sizer.resize();
+    }
+    assertEquals("Pool should stop at its floor", 2, pool
+        .getMaxActiveConnections());
+  }
+
+  public void testGrowWakesWaitingBorrower() throws Exception {
+    final Pool waitingPool = createPool(Config.ENGINE_DBCON, 2);
+    waitingPool.getConfig().setExhausted(Config.BLOCK);
+    Connection first = waitingPool.getConnection();
+    Connection second = waitingPool.getConnection();
+    final Connection[] borrowed = new Connection[1];
+    Thread waiter = new Thread() {
+      public void run() {
+        borrowed[0] = waitingPool.getConnection();
+      }
+    };
+    try {
+      waiter.start();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (waiter.getState() != Thread.State.WAITING
+          && waiter.getState() != Thread.State.TIMED_WAITING
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      recordWaits(pool.getAdaptiveSizer(), SLOW);
+      pool.getAdaptiveSizer().resize();
+      waiter.join(5000);
+      assertNotNull("Waiting borrower should have been given a connection",
+          borrowed[0]);
+    }
+    finally {
+      DatabaseUtils.closeDbObject(first);
+      DatabaseUtils.closeDbObject(second);
+      DatabaseUtils.closeDbObject(borrowed[0]);
+    }
+  }
+}
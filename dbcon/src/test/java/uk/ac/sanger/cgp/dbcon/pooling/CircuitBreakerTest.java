@@ -0,0 +1,145 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.ConnectionNotAvailableException;
+
+/**
+ * Checks the opening and closing of a pool's {@link CircuitBreaker}
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class CircuitBreakerTest extends TestCase {
+
+  private static final String GOOD_URL = "jdbc:hsqldb:mem:breaker";
+
+  private static final String BAD_URL = "jdbc:nosuchdriver:breaker";
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    Class.forName("org.hsqldb.jdbcDriver");
+  }
+
+  private Config createConfig(String url) {
+    Config config = Config.createEmptyConfig();
+    config.setName("breakerTest");
+    config.setDriver("org.hsqldb.jdbcDriver");
+    config.setUsername("sa");
+    config.setPassword("");
+    config.setUrl(url);
+    config.setWorkingUrl(url);
+    config.setValidationQuery("");
+    config.setMaxActive(2);
+    config.setBreakerThreshold(2);
+    config.setBreakerProbeInterval(50);
+    return config;
+  }
+
+  private CircuitBreaker createBreaker(Config config) {
+    return new CircuitBreaker(config, new UrlFailover(config),
+        new ConnectionValidator(config));
+  }
+
+  public void testOpensAtThreshold() {
+    CircuitBreaker breaker = createBreaker(createConfig(BAD_URL));
+    try {
+      breaker.recordFailure();
+      assertFalse("One failure should not open the breaker", breaker.isOpen());
+      breaker.recordSuccess();
+      breaker.recordFailure();
+      assertFalse("A success should reset the failure count", breaker.isOpen());
+      breaker.recordFailure();
+      assertTrue("Breaker should open at the threshold", breaker.isOpen());
+
+      try {
+        breaker.assertClosed();
+        fail("Open breaker should refuse borrowers");
+      }
+      catch (ConnectionNotAvailableException e) {
+        // Expected
+      }
+      assertEquals(1, breaker.getTrips());
+      assertEquals(1, breaker.getRejections());
+
+      breaker.recordSuccess();
+      assertTrue("Only the probe should close the breaker", breaker.isOpen());
+    }
+    finally {
+      breaker.close();
+    }
+  }
+
+  public void testDisabledByDefault() {
+    Config config = createConfig(BAD_URL);
+    config.setBreakerThreshold(0);
+    CircuitBreaker breaker = createBreaker(config);
+    for (int i = 0; i < 10; i++) {
+      breaker.recordFailure();
+    }
+    assertFalse(breaker.isOpen());
+  }
+
+  public void testProbeClosesBreaker() throws Exception {
+    CircuitBreaker breaker = createBreaker(createConfig(GOOD_URL));
+    try {
+      breaker.recordFailure();
+      breaker.recordFailure();
+      assertTrue(breaker.isOpen());
+      Thread.sleep(500);
+      assertFalse("Probe should have closed the breaker", breaker.isOpen());
+      breaker.assertClosed();
+    }
+    finally {
+      breaker.close();
+    }
+  }
+
+  public void testPoolOpensBreakerOnCreationFailures() throws Exception {
+    DbConConnectionPool pool = new DbConConnectionPool(createConfig(BAD_URL));
+    try {
+      for (int i = 0; i < 2; i++) {
+        try {
+          pool.getConnection();
+          fail("Connection to a bad URL should fail");
+        }
+        catch (SQLException e) {
+          // Expected
+        }
+      }
+      assertTrue("Creation failures should open the breaker", pool
+          .getCircuitBreaker().isOpen());
+    }
+    finally {
+      pool.close();
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the state handling of the lock-free bag behind the dbcon pool engine
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ConcurrentBagTest extends TestCase {
+
+  private static class TestEntry extends ConcurrentBag.Entry {
+  }
+
+  public void testBorrowAndRequite() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    TestEntry entry = new TestEntry();
+    bag.add(entry);
+
+    assertSame(entry, bag.borrow(0, TimeUnit.MILLISECONDS));
+    assertEquals(ConcurrentBag.STATE_IN_USE, entry.getState());
+    assertNull("Only entry is in use", bag.borrow(10, TimeUnit.MILLISECONDS));
+
+    bag.requite(entry);
+    assertEquals(ConcurrentBag.STATE_NOT_IN_USE, entry.getState());
+    assertSame(entry, bag.borrow(0, TimeUnit.MILLISECONDS));
+  }
+
+  public void testReservedEntriesCannotBeBorrowed() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    TestEntry entry = new TestEntry();
+    bag.add(entry);
+
+    assertTrue(bag.reserve(entry));
+    assertNull(bag.borrow(0, TimeUnit.MILLISECONDS));
+    bag.unreserve(entry);
+    assertSame(entry, bag.borrow(0, TimeUnit.MILLISECONDS));
+  }
+
+  public void testInUseCountKept() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    TestEntry first = new TestEntry();
+    TestEntry second = new TestEntry();
+    second.setState(ConcurrentBag.STATE_IN_USE);
+    bag.add(first);
+    bag.add(second);
+    assertEquals(1, bag.getCount(ConcurrentBag.STATE_IN_USE));
+
+    assertSame(first, bag.borrow(0, TimeUnit.MILLISECONDS));
+    assertEquals(2, bag.getCount(ConcurrentBag.STATE_IN_USE));
+    bag.requite(first);
+    assertTrue(bag.reserve(first));
+    assertEquals(1, bag.getCount(ConcurrentBag.STATE_IN_USE));
+    bag.unreserve(first);
+    assertTrue(bag.remove(second));
+    assertEquals(0, bag.getCount(ConcurrentBag.STATE_IN_USE));
+    assertEquals(1, bag.getCount(ConcurrentBag.STATE_NOT_IN_USE));
+  }
+
+  public void testTimedOutWaitersNotServed() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    TestEntry entry = new TestEntry();
+    bag.add(entry);
+    assertSame(entry, bag.borrow(0, TimeUnit.MILLISECONDS));
+    for (int i = 0; i < 5; i++) {
+      assertNull(bag.borrow(1, TimeUnit.MILLISECONDS, i % 2));
+    }
+    assertEquals(0, bag.getWaitingThreadCount());
+
+    bag.requite(entry);
+    assertEquals("Entry was handed to a waiter which had given up",
+        ConcurrentBag.STATE_NOT_IN_USE, entry.getState());
+    assertEquals(0, bag.getHandoffCount());
+  }
+
+  public void testHandOffToWaiterWhichTimedOut() throws Exception {
+    final ConcurrentBag bag = new ConcurrentBag();
+    TestEntry entry = new TestEntry();
+    bag.add(entry);
+    bag.borrow(0, TimeUnit.MILLISECONDS);
+
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          bag.borrow(50, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+          // Gives up either way
+        }
+      }
+    };
+    waiter.start();
+    while (bag.getWaitingThreadCount() == 0) {
+      Thread.sleep(1);
+    }
+    // The waiter was seen but gives up before the hand off
+    waiter.join();
+
+    assertFalse("Nobody was left to take the entry", bag.handOff(entry));
+    assertEquals("Entry should stay with the caller rather than be freed",
+        ConcurrentBag.STATE_IN_USE, entry.getState());
+    assertTrue(bag.remove(entry));
+  }
+
+  public void testRemove() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    TestEntry entry = new TestEntry();
+    bag.add(entry);
+
+    assertFalse("Free entries cannot be removed", bag.remove(entry));
+    bag.borrow(0, TimeUnit.MILLISECONDS);
+    assertTrue(bag.remove(entry));
+    assertEquals(0, bag.size());
+    assertEquals(ConcurrentBag.STATE_REMOVED, entry.getState());
+  }
+
+  public void testHandoffToWaitingThread() throws Exception {
+    final ConcurrentBag bag = new ConcurrentBag();
+    final TestEntry entry = new TestEntry();
+    bag.add(entry);
+    bag.borrow(0, TimeUnit.MILLISECONDS);
+
+    final Object[] received = new Object[1];
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          received[0] = bag.borrow(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+          // Leaves received empty
+        }
+      }
+    };
+    waiter.start();
+
+    while (bag.getWaitingThreadCount() == 0) {
+      Thread.sleep(1);
+    }
+    bag.requite(entry);
+    waiter.join();
+
+    assertSame("Waiting thread did not receive the returned entry", entry,
+        received[0]);
+    assertEquals(ConcurrentBag.STATE_IN_USE, entry.getState());
+    assertEquals(1, bag.getHandoffCount());
+  }
+
+  /**
+   * Starts a thread which borrows, records its number, returns the entry and
+   * waits until the thread is parked in the bag's queue
+   */
+  private Thread startWaiter(ConcurrentBag bag, int number, List served)
+      throws InterruptedException {
+    return startWaiter(bag, number, 0, served);
+  }
+
+  private Thread startWaiter(final ConcurrentBag bag, final int number,
+      final int priority, final List served) throws InterruptedException {
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          ConcurrentBag.Entry entry = bag.borrow(5, TimeUnit.SECONDS, priority);
+          served.add(new Integer(number));
+          bag.requite(entry);
+        }
+        catch (InterruptedException e) {
+          // Leaves served without this waiter
+        }
+      }
+    };
+    waiter.start();
+    while (waiter.getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(1);
+    }
+    return waiter;
+  }
+
+  public void testWaitersServedInOrder() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    TestEntry entry = new TestEntry();
+    bag.add(entry);
+    bag.borrow(0, TimeUnit.MILLISECONDS);
+
+    List served = Collections.synchronizedList(new ArrayList());
+    List waiters = new ArrayList();
+    for (int i = 0; i < 3; i++) {
+      waiters.add(startWaiter(bag, i, served));
+    }
+
+    bag.requite(entry);
+    for (int i = 0; i < waiters.size(); i++) {
+      ((Thread) waiters.get(i)).join(5000);
+    }
+
+    assertEquals("Waiters should be served longest waiting first", 3, served
+        .size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(new Integer(i), served.get(i));
+    }
+    assertEquals(3, bag.getHandoffCount());
+  }
+
+  public void testHigherPriorityServedFirst() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    bag.setAgingInterval(1, TimeUnit.HOURS);
+    TestEntry entry = new TestEntry();
+    bag.add(entry);
+    bag.borrow(0, TimeUnit.MILLISECONDS);
+
+    List served = Collections.synchronizedList(new ArrayList());
+    List waiters = new ArrayList();
+    waiters.add(startWaiter(bag, 0, 0, served));
+    waiters.add(startWaiter(bag, 1, 2, served));
+    waiters.add(startWaiter(bag, 2, 1, served));
+
+    bag.requite(entry);
+    for (int i = 0; i < waiters.size(); i++) {
+      ((Thread) waiters.get(i)).join(5000);
+    }
+
+    assertEquals(3, served.size());
+    assertEquals(new Integer(1), served.get(0));
+    assertEquals(new Integer(2), served.get(1));
+    assertEquals(new Integer(0), served.get(2));
+  }
+
+  public void testAgingPromotesLongWaiters() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    bag.setAgingInterval(10, TimeUnit.MILLISECONDS);
+    TestEntry entry = new TestEntry();
+    bag.add(entry);
+    bag.borrow(0, TimeUnit.MILLISECONDS);
+
+    List served = Collections.synchronizedList(new ArrayList());
+    Thread low = startWaiter(bag, 0, 0, served);
+    Thread.sleep(100);
+    Thread high = startWaiter(bag, 1, 2, served);
+
+    bag.requite(entry);
+    low.join(5000);
+    high.join(5000);
+
+    assertEquals(2, served.size());
+    assertEquals("Aged low priority waiter should be served first",
+        new Integer(0), served.get(0));
+  }
+
+  public void testAdmissionHoldsBackFreeEntries() throws Exception {
+    ConcurrentBag bag = new ConcurrentBag();
+    bag.setAdmission(new ConcurrentBag.Admission() {
+      public boolean admits(int priority, int inUse) {
+        return priority > 0 || inUse < 1;
+      }
+    });
+    bag.add(new TestEntry());
+    bag.add(new TestEntry());
+
+    assertNotNull(bag.borrow(0, TimeUnit.MILLISECONDS, 0));
+    assertNull("Low priority should not take the reserved entry", bag.borrow(
+        0, TimeUnit.MILLISECONDS, 0));
+    assertNotNull(bag.borrow(0, TimeUnit.MILLISECONDS, 1));
+  }
+
+  public void testCloseWakesWaiters() throws Exception {
+    final ConcurrentBag bag = new ConcurrentBag();
+    final boolean[] gaveUp = new boolean[1];
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          gaveUp[0] = (bag.borrow(60, TimeUnit.SECONDS) == null);
+        }
+        catch (InterruptedException e) {
+          // Leaves gaveUp false
+        }
+      }
+    };
+    waiter.start();
+    while (waiter.getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(1);
+    }
+
+    bag.close();
+    waiter.join(5000);
+    assertTrue("Waiter should have given up when the bag closed", gaveUp[0]);
+  }
+}
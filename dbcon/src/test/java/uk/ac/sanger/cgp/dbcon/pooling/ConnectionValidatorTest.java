@@ -0,0 +1,109 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Checks the validation modes of {@link ConnectionValidator}
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ConnectionValidatorTest extends TestCase {
+
+  private Connection conn;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    Class.forName("org.hsqldb.jdbcDriver");
+    conn = DriverManager.getConnection("jdbc:hsqldb:mem:validator", "sa", "");
+  }
+
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    DatabaseUtils.closeDbObject(conn);
+  }
+
+  private Config createConfig(String mode, String query) {
+    Config config = Config.createEmptyConfig();
+    config.setName("validatorTest");
+    config.setValidationMode(mode);
+    config.setValidationQuery(query);
+    return config;
+  }
+
+  public void testQueryMode() {
+    ConnectionValidator validator = new ConnectionValidator(createConfig(
+        Config.VALIDATION_QUERY, "select 1 from INFORMATION_SCHEMA.SYSTEM_USERS"));
+    assertTrue(validator.validate(conn));
+
+    ValidationStatistics statistics = validator.getStatistics();
+    assertEquals(1, statistics.getCount(Config.VALIDATION_QUERY));
+    assertEquals(0, statistics.getFailures(Config.VALIDATION_QUERY));
+    assertEquals(0, statistics.getCount(Config.VALIDATION_ISVALID));
+  }
+
+  public void testFailedQueryIsCounted() {
+    ConnectionValidator validator = new ConnectionValidator(createConfig(
+        Config.VALIDATION_QUERY, "select no_such_column from no_such_table"));
+    assertFalse(validator.validate(conn));
+    assertEquals(1, validator.getStatistics().getFailures(
+        Config.VALIDATION_QUERY));
+  }
+
+  /**
+   * The HSQLDB driver used in the tests predates JDBC 4 so the validator
+   * must fall back to the query
+   */
+  public void testIsValidFallsBackForOldDrivers() {
+    ConnectionValidator validator = new ConnectionValidator(createConfig(
+        Config.VALIDATION_ISVALID, null));
+    assertTrue(validator.isUsingIsValid());
+    assertTrue(validator.validate(conn));
+    assertFalse("Validator should have fallen back to query mode", validator
+        .isUsingIsValid());
+    assertEquals(1, validator.getStatistics().getCount(
+        Config.VALIDATION_QUERY));
+  }
+
+  public void testUnknownMode() {
+    try {
+      new ConnectionValidator(createConfig("ping", null));
+      fail("Unknown validation mode was accepted");
+    }
+    catch (PoolingException e) {
+      // Expected
+    }
+  }
+}
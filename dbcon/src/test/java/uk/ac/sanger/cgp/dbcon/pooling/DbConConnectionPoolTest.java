@@ -0,0 +1,653 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.ConnectionNotAvailableException;
+import uk.ac.sanger.cgp.dbcon.support.Constants;
+import uk.ac.sanger.cgp.dbcon.support.DatabaseSupport;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Exercises the native dbcon pool engine through the normal Pools API
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class DbConConnectionPoolTest extends TestCase {
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    DatabaseSupport.createDatabase();
+  }
+
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    DatabaseSupport.destroyDatabase();
+  }
+
+  private Pool getPool() {
+    return Pools.getInstance().getPool(Constants.DBCON_ENGINE_DB_SYNONYM);
+  }
+
+  private static ProxyConnection handler(Connection conn) {
+    return (ProxyConnection) Proxy.getInvocationHandler(conn);
+  }
+
+  /**
+   * The physical connection behind a borrowed one
+   */
+  private static Connection physical(Connection conn) {
+    return handler(conn).getDelegate();
+  }
+
+  public void testEngineSelected() {
+    assertTrue("Pool was not using the dbcon engine",
+        getPool().getEngine() instanceof DbConPoolEngine);
+    assertTrue("Pool did not provide the dbcon data source",
+        getPool().getDataSource() instanceof DbConPoolingDataSource);
+  }
+
+  public void testConnectionRetrieval() throws Exception {
+    Connection conn = getPool().getConnection();
+    Statement st = null;
+    ResultSet rs = null;
+    try {
+      st = conn.createStatement();
+      rs = st.executeQuery("select first_name from person");
+      assertTrue("Expected a row back from the test table", rs.next());
+      assertEquals("Andy", rs.getString(1).trim());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(rs);
+      DatabaseUtils.closeDbObject(st);
+      DatabaseUtils.closeDbObject(conn);
+    }
+    assertTrue("Proxy should report closed once returned", conn.isClosed());
+  }
+
+  public void testResetPolicyAppliedOnReturn() throws Exception {
+    RoundTripStatistics statistics = getPool().getRoundTripStatistics();
+    long sent = statistics.getRollbackCallsSent();
+    Connection conn = getPool().getConnection();
+    DatabaseUtils.closeDbObject(conn);
+    assertEquals("The always policy should roll back on every return",
+        sent + 1, statistics.getRollbackCallsSent());
+  }
+
+  public void testMinIdleReplenished() throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setWorkingUrl(config.getUrl());
+    config.setMaxIdle(3);
+    config.setMinIdle(2);
+    config.setTimeBetweenEvictRun(0);
+
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    Connection first = null;
+    Connection second = null;
+    try {
+      first = pool.getConnection();
+      second = pool.getConnection();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (pool.getNumIdle() < 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+      assertEquals("Filler should have topped up to max active", 1, pool
+          .getNumIdle());
+      assertEquals(2, pool.getNumActive());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(first);
+      DatabaseUtils.closeDbObject(second);
+      pool.close();
+    }
+  }
+
+  /**
+   * A query which always fails validation shows whether the check ran
+   */
+  public void testValidationInterval() throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setWorkingUrl(config.getUrl());
+    config.setTimeBetweenEvictRun(0);
+    config.setTestOnBorrow(true);
+    config.setValidationQuery("select no_such_column from person");
+
+    config.setValidationInterval(60000);
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    try {
+      for (int i = 0; i < 3; i++) {
+        DatabaseUtils.closeDbObject(pool.getConnection());
+      }
+      assertEquals("Recently used connection should have been reused", 1, pool
+          .getNumIdle());
+    }
+    finally {
+      pool.close();
+    }
+
+    config.setValidationInterval(0);
+    pool = new DbConConnectionPool(config);
+    try {
+      pool.getConnection();
+      fail("Validation should run on every borrow without an interval");
+    }
+    catch (SQLException e) {
+      // Expected
+    }
+    finally {
+      pool.close();
+    }
+  }
+
+  public void testMaxLifetime() throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setWorkingUrl(config.getUrl());
+    config.setTimeBetweenEvictRun(0);
+    config.setMaxLifetime(200);
+
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    try {
+      DatabaseUtils.closeDbObject(pool.getConnection());
+      assertEquals("Returned connection should be idle", 1, pool.getNumIdle());
+      Thread.sleep(500);
+      assertEquals("Connection should have been retired", 0, pool.getNumIdle());
+      DatabaseUtils.closeDbObject(pool.getConnection());
+      assertEquals("Replacement connection should be idle", 1, pool
+          .getNumIdle());
+    }
+    finally {
+      pool.close();
+    }
+  }
+
+  public void testFailbackDrainsConnections() throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setBackupUrl("jdbc:hsqldb:mem:backup");
+    config.setWorkingUrl(config.getBackupUrl());
+    config.setTimeBetweenEvictRun(0);
+    config.setFailbackInterval(100);
+
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    try {
+      Connection borrowed = pool.getConnection();
+      DatabaseUtils.closeDbObject(pool.getConnection());
+      assertEquals(1, pool.getNumIdle());
+
+      Thread.sleep(500);
+      assertFalse("Pool should be back on the primary URL", pool
+          .getUrlFailover().isFailedOver());
+      assertEquals("Idle backup connection should have been closed", 0, pool
+          .getNumIdle());
+
+      DatabaseUtils.closeDbObject(borrowed);
+      assertEquals("Returned backup connection should have been closed", 0,
+          pool.getNumIdle());
+
+      Connection conn = pool.getConnection();
+      assertEquals(config.getUrl(), conn.getMetaData().getURL());
+      DatabaseUtils.closeDbObject(conn);
+    }
+    finally {
+      pool.close();
+    }
+  }
+
+  /**
+   * Every idle connection fails the validation query so an eviction run should
+   * close them all at once and open replacements in bulk
+   */
+  public void testConcurrentEvictionValidation() throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setWorkingUrl(config.getUrl());
+    config.setTimeBetweenEvictRun(0);
+    config.setBreakerThreshold(0);
+    config.setMaxActive(4);
+    config.setMaxIdle(4);
+    config.setNumTestsPerEvictionRun(4);
+    config.setTestOnBorrow(false);
+    config.setTestOnReturn(false);
+    config.setTestWhileIdle(true);
+    config.setConcurrentEvictTests(3);
+    config.setEvictBudget(5000);
+    config.setValidationQuery("select no_such_column from person");
+
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    try {
+      List borrowed = new ArrayList();
+      for (int i = 0; i < 4; i++) {
+        borrowed.add(pool.getConnection());
+      }
+      List original = new ArrayList();
+      for (int i = 0; i < 4; i++) {
+        Connection conn = (Connection) borrowed.get(i);
+        original.add(physical(conn));
+        DatabaseUtils.closeDbObject(conn);
+      }
+      assertEquals(4, pool.getNumIdle());
+
+      pool.evict();
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (pool.getNumIdle() < 4 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+      assertEquals("Failed connections should have been replaced", 4, pool
+          .getNumIdle());
+      assertEquals(0, pool.getNumActive());
+
+      for (int i = 0; i < 4; i++) {
+        Connection conn = pool.getConnection();
+        assertFalse("Connection which failed validation was still pooled",
+            original.contains(physical(conn)));
+        borrowed.set(i, conn);
+      }
+      for (int i = 0; i < 4; i++) {
+        DatabaseUtils.closeDbObject((Connection) borrowed.get(i));
+      }
+    }
+    finally {
+      pool.close();
+    }
+  }
+
+  /**
+   * Every pool shares one synonym name and so one housekeeper limit, with
+   * more pools evicting than there are workers. Eviction runs must keep
+   * completing rather than waiting on validation helpers which cannot start.
+   */
+  public void testEvictionWithMorePoolsThanWorkers() throws Exception {
+    int count = Housekeeper.MAX_WORKERS + Housekeeper.POOL_WORKERS;
+    List pools = new ArrayList();
+    try {
+      for (int i = 0; i < count; i++) {
+        Config config = (Config) Pools.getInstance().getConfig(
+            Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+        config.setName("evictionWorkersTest");
+        config.setWorkingUrl(config.getUrl());
+        config.setBreakerThreshold(0);
+        config.setMaxActive(3);
+        config.setMaxIdle(3);
+        config.setNumTestsPerEvictionRun(3);
+        config.setTestWhileIdle(true);
+        config.setConcurrentEvictTests(3);
+        config.setEvictBudget(0);
+        config.setTimeBetweenEvictRun(10);
+
+        DbConConnectionPool pool = new DbConConnectionPool(config);
+        pools.add(pool);
+        Connection[] borrowed = new Connection[3];
+        for (int j = 0; j < borrowed.length; j++) {
+          borrowed[j] = pool.getConnection();
+        }
+        for (int j = 0; j < borrowed.length; j++) {
+          DatabaseUtils.closeDbObject(borrowed[j]);
+        }
+      }
+
+      Housekeeper housekeeper = Housekeeper.getInstance();
+      Thread.sleep(200);
+      long runs = housekeeper.getRuns(Housekeeper.EVICTION);
+      Thread.sleep(500);
+      assertTrue("Eviction runs stalled", housekeeper
+          .getRuns(Housekeeper.EVICTION) > runs + count);
+    }
+    finally {
+      for (int i = 0; i < pools.size(); i++) {
+        ((DbConConnectionPool) pools.get(i)).close();
+      }
+    }
+  }
+
+  /**
+   * Any error is fatal to this classifier so a bad query stands in for the
+   * database going away
+   */
+  public void testFatalErrorPurgesPool() throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setWorkingUrl(config.getUrl());
+    config.setTimeBetweenEvictRun(0);
+    config.setMaxActive(3);
+    config.setMaxIdle(3);
+    config.setFatalErrorClassifier(AlwaysFatal.class.getName());
+
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    try {
+      Connection failing = pool.getConnection();
+      Connection other = pool.getConnection();
+      DatabaseUtils.closeDbObject(pool.getConnection());
+      assertEquals(1, pool.getNumIdle());
+
+      assertBadQueryFails(failing);
+      assertEquals(1, pool.getUrlFailover().getPurges());
+      assertEquals("Idle connection should have been purged", 0, pool
+          .getNumIdle());
+
+      assertBadQueryFails(other);
+      assertEquals("Connections from before the purge should not purge again",
+          1, pool.getUrlFailover().getPurges());
+
+      DatabaseUtils.closeDbObject(failing);
+      DatabaseUtils.closeDbObject(other);
+      assertEquals("Returned connections should have been retired", 0, pool
+          .getNumIdle());
+
+      Connection conn = pool.getConnection();
+      DatabaseUtils.closeDbObject(conn);
+      assertEquals(1, pool.getNumIdle());
+    }
+    finally {
+      pool.close();
+    }
+  }
+
+  private void assertBadQueryFails(Connection conn) {
+    Statement st = null;
+    try {
+      st = conn.createStatement();
+      st.executeQuery("select no_such_column from person");
+      fail("Query should have failed");
+    }
+    catch (SQLException e) {
+      // Expected
+    }
+    finally {
+      DatabaseUtils.closeDbObject(st);
+    }
+  }
+
+  public static class AlwaysFatal implements FatalErrorClassifier {
+    public boolean isFatal(SQLException e) {
+      return true;
+    }
+  }
+
+  public void testBurstConnections() throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setWorkingUrl(config.getUrl());
+    config.setTimeBetweenEvictRun(0);
+    config.setMaxActive(2);
+    config.setMaxIdle(2);
+    config.setExhausted(Config.BURST);
+    config.setBurstConnections(2);
+    config.setMaxWait(100);
+
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    List borrowed = new ArrayList();
+    try {
+      for (int i = 0; i < 4; i++) {
+        borrowed.add(pool.getConnection());
+      }
+      assertEquals(4, pool.getNumActive());
+      assertEquals(2, pool.getOverflowConnections());
+
+      try {
+        pool.getConnection();
+        fail("Pool should wait and then fail beyond its burst limit");
+      }
+      catch (SQLException e) {
+        // Expected
+      }
+
+      DatabaseUtils.closeDbObject((Connection) borrowed.remove(3));
+      assertEquals("Burst connection should be closed on return", 1, pool
+          .getOverflowConnections());
+      assertEquals(0, pool.getNumIdle());
+
+      DatabaseUtils.closeDbObject((Connection) borrowed.remove(0));
+      assertEquals("Pooled connection should be kept", 1, pool.getNumIdle());
+
+      assertEquals(2, pool.getOverflowOpened());
+      assertEquals(2, pool.getOverflowPeak());
+    }
+    finally {
+      for (int i = 0; i < borrowed.size(); i++) {
+        DatabaseUtils.closeDbObject((Connection) borrowed.get(i));
+      }
+      pool.close();
+    }
+    assertEquals(0, pool.getOverflowConnections());
+  }
+
+  public void testBurstConnectionNotKeptWhenWaiterTimesOut()
+      throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setWorkingUrl(config.getUrl());
+    config.setTimeBetweenEvictRun(0);
+    config.setMinIdle(0);
+    config.setMaxActive(1);
+    config.setMaxIdle(1);
+    config.setExhausted(Config.BURST);
+    config.setBurstConnections(1);
+    config.setMaxWait(2);
+
+    final DbConConnectionPool pool = new DbConConnectionPool(config);
+    Connection held = pool.getConnection();
+    try {
+      // Each waiter gives up at about the time the burst connection is
+      // returned; whichever wins the burst connection must not stay idle
+      for (int i = 0; i < 200; i++) {
+        Connection burst = pool.getConnection();
+        assertEquals(1, pool.getOverflowConnections());
+        final Connection[] served = new Connection[1];
+        Thread waiter = new Thread() {
+          public void run() {
+            try {
+              served[0] = pool.getConnection();
+            }
+            catch (SQLException e) {
+              // Timed out
+            }
+          }
+        };
+        waiter.start();
+        Thread.sleep(0, i % 2 == 0 ? 0 : 500000);
+        DatabaseUtils.closeDbObject(burst);
+        waiter.join();
+        DatabaseUtils.closeDbObject(served[0]);
+
+        assertEquals("Burst connection was kept idle", 0, pool.getNumIdle());
+        assertEquals(0, pool.getOverflowConnections());
+      }
+    }
+    finally {
+      DatabaseUtils.closeDbObject(held);
+      pool.close();
+    }
+  }
+
+  public void testReservedConnections() throws Exception {
+    Config config = (Config) Pools.getInstance().getConfig(
+        Constants.DBCON_ENGINE_DB_SYNONYM).clone();
+    config.setWorkingUrl(config.getUrl());
+    config.setTimeBetweenEvictRun(0);
+    config.setMaxActive(3);
+    config.setMaxIdle(3);
+    config.setExhausted(Config.BLOCK);
+    config.setMaxWait(100);
+    config.setReservedHigh(1);
+    config.setReservedNormal(1);
+
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    List borrowed = new ArrayList();
+    try {
+      borrowed.add(pool.getConnection(Config.PRIORITY_LOW));
+      assertLowPriorityRefused(pool);
+
+      borrowed.add(pool.getConnection(Config.PRIORITY_NORMAL));
+      try {
+        pool.getConnection(Config.PRIORITY_NORMAL);
+        fail("Normal priority should not take the high priority reservation");
+      }
+      catch (SQLException e) {
+        // Expected
+      }
+      borrowed.add(pool.getConnection(Config.PRIORITY_HIGH));
+      assertEquals(3, pool.getNumActive());
+
+      // Idle connections are held back from low priority borrowers too
+      DatabaseUtils.closeDbObject((Connection) borrowed.remove(2));
+      DatabaseUtils.closeDbObject((Connection) borrowed.remove(1));
+      assertEquals(2, pool.getNumIdle());
+      assertLowPriorityRefused(pool);
+    }
+    finally {
+      for (int i = 0; i < borrowed.size(); i++) {
+        DatabaseUtils.closeDbObject((Connection) borrowed.get(i));
+      }
+      pool.close();
+    }
+  }
+
+  private void assertLowPriorityRefused(DbConConnectionPool pool) {
+    try {
+      pool.getConnection(Config.PRIORITY_LOW);
+      fail("Low priority should not take reserved connections");
+    }
+    catch (SQLException e) {
+      // Expected
+    }
+  }
+
+  public void testSettingsRestoredOnReturn() throws Exception {
+    Connection first = getPool().getConnection();
+    Connection physical = physical(first);
+    int isolation = physical.getTransactionIsolation();
+    first.setReadOnly(true);
+    first.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    DatabaseUtils.closeDbObject(first);
+
+    Connection second = getPool().getConnection();
+    try {
+      assertSame(physical, physical(second));
+      assertFalse("Read-only should not leak to the next borrower", second
+          .isReadOnly());
+      assertEquals("Isolation should not leak to the next borrower",
+          isolation, second.getTransactionIsolation());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(second);
+    }
+  }
+
+  public void testChildrenLeadBackToPooledConnection() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      Connection conn = getPool().getConnection();
+      Statement st = conn.createStatement();
+      assertSame(conn, st.getConnection());
+      st.getConnection().close();
+      assertTrue(conn.isClosed());
+    }
+    assertEquals("Closing through a statement should return the connection",
+        0, getPool().getActiveConnections());
+
+    Connection conn = getPool().getConnection();
+    try {
+      assertSame(conn, conn.getMetaData().getConnection());
+      assertSame(conn, conn.unwrap(Connection.class));
+      PreparedStatement ps = conn.prepareStatement("select * from person");
+      ResultSet rs = ps.executeQuery();
+      assertSame(ps, rs.getStatement());
+      assertSame(conn, rs.getStatement().getConnection());
+      rs.close();
+      ps.close();
+      assertEquals("Closed statements should not be kept", 0, handler(conn)
+          .getOpenStatementCount());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(conn);
+    }
+  }
+
+  public void testUseAfterReturnFails() throws Exception {
+    Connection conn = getPool().getConnection();
+    conn.close();
+    try {
+      conn.createStatement();
+      fail("Connection could still be used after it was returned");
+    }
+    catch (SQLException e) {
+      // Expected
+    }
+  }
+
+  public void testPoolConnectionLimit() {
+    List connections = new ArrayList();
+    try {
+      for (int i = 0; i < 4; i++) {
+        connections.add(getPool().getConnection());
+      }
+      fail("Retrieved more connections than maxconnections allows");
+    }
+    catch (ConnectionNotAvailableException e) {
+      assertEquals("All connections should be active", 3, getPool()
+          .getActiveConnections());
+    }
+    finally {
+      for (int i = 0; i < connections.size(); i++) {
+        DatabaseUtils.closeDbObject((Connection) connections.get(i));
+      }
+    }
+    assertEquals("No connections should be active", 0, getPool()
+        .getActiveConnections());
+    assertEquals("Max idle should have limited the idle connections", 1,
+        getPool().getIdleConnections());
+  }
+
+  public void testConnectionReuse() throws Exception {
+    Connection first = getPool().getConnection();
+    Object physical = physical(first);
+    DatabaseUtils.closeDbObject(first);
+
+    Connection second = getPool().getConnection();
+    try {
+      assertSame("Thread should get its last physical connection back",
+          physical, physical(second));
+    }
+    finally {
+      DatabaseUtils.closeDbObject(second);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+
+/**
+ * Checks the shared {@link Housekeeper} runs, times and cancels tasks
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class HousekeeperTest extends TestCase {
+
+  private final Housekeeper housekeeper = Housekeeper.getInstance();
+
+  public void testTaskTimed() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    long runs = housekeeper.getRuns("timedTest");
+    housekeeper.execute("test", "timedTest", new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(20);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        latch.countDown();
+      }
+    });
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Thread.sleep(50);
+
+    assertEquals(runs + 1, housekeeper.getRuns("timedTest"));
+    assertTrue("Run time was not recorded",
+        housekeeper.getTotalMillis("timedTest") >= 20);
+    assertTrue(housekeeper.getMaxMicros("timedTest") >= 20000);
+    assertTrue(housekeeper.getKinds().contains("timedTest"));
+  }
+
+  public void testFailingPeriodicTaskKeepsRunning() throws Exception {
+    final AtomicInteger count = new AtomicInteger();
+    ScheduledFuture future = housekeeper.scheduleWithFixedDelay("test",
+        "failingTest", new Runnable() {
+          public void run() {
+            count.incrementAndGet();
+            throw new IllegalStateException("Expected by the test");
+          }
+        }, 0, 10);
+    try {
+      Thread.sleep(200);
+      assertTrue("Periodic task stopped after failing", count.get() > 1);
+      assertTrue(housekeeper.getFailures("failingTest") > 1);
+    }
+    finally {
+      housekeeper.cancel(future);
+    }
+
+    Thread.sleep(50);
+    int stopped = count.get();
+    Thread.sleep(100);
+    assertEquals("Cancelled task should not run again", stopped, count.get());
+  }
+
+  public void testHungPoolDoesNotHoldUpOthers() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable hung = new Runnable() {
+      public void run() {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    try {
+      int tasks = Housekeeper.MAX_WORKERS + Housekeeper.POOL_WORKERS;
+      for (int i = 0; i < tasks; i++) {
+        housekeeper.execute("hungTest", "hungTest", hung);
+      }
+      Thread.sleep(50);
+      assertEquals(Housekeeper.POOL_WORKERS, housekeeper
+          .getActiveWorkers("hungTest"));
+
+      final CountDownLatch ran = new CountDownLatch(2);
+      Runnable task = new Runnable() {
+        public void run() {
+          ran.countDown();
+        }
+      };
+      housekeeper.execute("otherTest", "otherTest", task);
+      housekeeper.schedule("otherTest", "otherTest", task, 10);
+      assertTrue("Another pool's tasks waited for the hung pool", ran.await(2,
+          TimeUnit.SECONDS));
+    }
+    finally {
+      release.countDown();
+    }
+  }
+
+  public void testReleaseForgetsPool() throws Exception {
+    final CountDownLatch ran = new CountDownLatch(1);
+    housekeeper.execute("releaseTest", "releaseTest", new Runnable() {
+      public void run() {
+        ran.countDown();
+      }
+    });
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    int before = housekeeper.getPoolCount();
+    housekeeper.release("releaseTest");
+    assertEquals(before - 1, housekeeper.getPoolCount());
+    assertEquals(0, housekeeper.getActiveWorkers("releaseTest"));
+  }
+
+  public void testPoolEvictionRunsOnHousekeeper() throws Exception {
+    Class.forName("org.hsqldb.jdbcDriver");
+    Config config = Config.createEmptyConfig();
+    config.setName("housekeeperTest");
+    config.setDriver("org.hsqldb.jdbcDriver");
+    config.setUsername("sa");
+    config.setPassword("");
+    config.setUrl("jdbc:hsqldb:mem:housekeeper");
+    config.setWorkingUrl(config.getUrl());
+    config.setValidationQuery("");
+    config.setMaxActive(2);
+    config.setTimeBetweenEvictRun(20);
+
+    long runs = housekeeper.getRuns(Housekeeper.EVICTION);
+    DbConConnectionPool pool = new DbConConnectionPool(config);
+    try {
+      Thread.sleep(200);
+      assertTrue("Eviction should run on the housekeeper", housekeeper
+          .getRuns(Housekeeper.EVICTION) > runs);
+    }
+    finally {
+      pool.close();
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.ConnectionNotAvailableException;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Checks that a {@link LoadShedder} refuses borrowers beyond its limits and
+ * that both engines consult it before a borrower blocks
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class LoadShedderTest extends TestCase {
+
+  private static final long MILLISECOND = 1000L * 1000;
+
+  private Pool pool = null;
+
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    if (pool != null) {
+      pool.destroyPool();
+    }
+  }
+
+  private Config createConfig() {
+    Config config = Config.createEmptyConfig();
+    config.setName("sheddingTest");
+    config.setDriver("org.hsqldb.jdbcDriver");
+    config.setUsername("sa");
+    config.setPassword("");
+    config.setUrl("jdbc:hsqldb:mem:shedding");
+    config.setValidationQuery("");
+    config.setMaxActive(1);
+    config.setMaxIdle(1);
+    config.setExhausted(Config.BLOCK);
+    config.setMaxWait(10000);
+    return config;
+  }
+
+  public void testMaxWaiters() throws Exception {
+    Config config = createConfig();
+    config.setMaxWaiters(2);
+    LoadShedder shedder = new LoadShedder(config);
+
+    shedder.startWait(1);
+    shedder.startWait(1);
+    assertRefused(shedder, 1);
+    assertEquals(1, shedder.getQueueRejections());
+
+    shedder.endWait();
+    shedder.startWait(1);
+    assertEquals(2, shedder.getWaiters());
+    assertEquals(2, shedder.getPeakWaiters());
+  }
+
+  public void testMaxExpectedWait() throws Exception {
+    Config config = createConfig();
+    config.setMaxExpectedWait(100);
+    LoadShedder shedder = new LoadShedder(config);
+
+    // Nothing is refused until there is a hold time to estimate from
+    shedder.startWait(1);
+    shedder.endWait();
+
+    shedder.recordHold(60 * MILLISECOND);
+    assertEquals(60, shedder.getMeanHoldTime());
+    assertEquals(60, shedder.getExpectedWait(1, 1));
+    assertEquals(30, shedder.getExpectedWait(1, 2));
+
+    shedder.startWait(1);
+    assertRefused(shedder, 1);
+    assertEquals(1, shedder.getWaitRejections());
+
+    // More connections to share the queue between brings the wait down
+    shedder.startWait(2);
+    assertEquals(2, shedder.getWaiters());
+  }
+
+  public void testMovingAverage() {
+    LoadShedder shedder = new LoadShedder(createConfig());
+    shedder.recordHold(80 * MILLISECOND);
+    shedder.recordHold(-1);
+    assertEquals(80, shedder.getMeanHoldTime());
+    shedder.recordHold(0);
+    assertEquals("Newest hold should count for an eighth", 70, shedder
+        .getMeanHoldTime());
+  }
+
+  public void testDbConEngineShedsWaiters() throws Exception {
+    assertPoolShedsWaiters(Config.ENGINE_DBCON);
+  }
+
+  public void testDbcpEngineShedsWaiters() throws Exception {
+    assertPoolShedsWaiters(Config.ENGINE_DBCP);
+  }
+
+  public void testDbcpIdleTestsAreNotHolds() throws Exception {
+    Config config = createConfig();
+    config.setEngine(Config.ENGINE_DBCP);
+    config.setTestWhileIdle(true);
+    config.setNumTestsPerEvictionRun(1);
+    config.setTimeBetweenEvictRun(10);
+    pool = new Pool(config);
+    pool.init();
+
+    Connection conn = pool.getConnection();
+    Thread.sleep(80);
+    DatabaseUtils.closeDbObject(conn);
+    long mean = pool.getLoadShedder().getMeanHoldTime();
+    assertTrue("Hold time was not recorded on return", mean >= 80);
+
+    Thread.sleep(300);
+    assertEquals("Idle tests by the evictor were counted as holds", mean, pool
+        .getLoadShedder().getMeanHoldTime());
+  }
+
+  private void assertPoolShedsWaiters(String engine) throws Exception {
+    Config config = createConfig();
+    config.setEngine(engine);
+    config.setMaxWaiters(1);
+    pool = new Pool(config);
+    pool.init();
+
+    Connection held = pool.getConnection();
+    final Connection[] served = new Connection[1];
+    Thread waiter = new Thread() {
+      public void run() {
+        served[0] = pool.getConnection();
+      }
+    };
+    waiter.start();
+    while (pool.getLoadShedder().getWaiters() == 0) {
+      Thread.sleep(1);
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      pool.getConnection();
+      fail("Borrower beyond max waiters should have been refused");
+    }
+    catch (ConnectionNotAvailableException e) {
+      assertNull("Refusal should come from the shedder, not a wrapped "
+          + "SQLException", e.getCause());
+      assertTrue("Borrower should be refused straight away", System
+          .currentTimeMillis()
+          - start < 5000);
+    }
+    assertEquals(1, pool.getLoadShedder().getQueueRejections());
+
+    DatabaseUtils.closeDbObject(held);
+    waiter.join(5000);
+    assertNotNull("Waiting borrower should still be served", served[0]);
+    DatabaseUtils.closeDbObject(served[0]);
+    assertEquals(0, pool.getLoadShedder().getWaiters());
+    assertTrue("Hold times should be recorded on return", pool
+        .getLoadShedder().getMeanHoldTime() >= 0);
+  }
+
+  private void assertRefused(LoadShedder shedder, int maxActive) {
+    try {
+      shedder.startWait(maxActive);
+      fail("Borrower should have been refused");
+    }
+    catch (ConnectionNotAvailableException e) {
+      // Expected
+    }
+  }
+}
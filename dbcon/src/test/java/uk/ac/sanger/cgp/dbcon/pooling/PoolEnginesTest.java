@@ -0,0 +1,152 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Checks the pool engines are found through the service loader
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class PoolEnginesTest extends TestCase {
+
+  /**
+   * A third-party style engine which only implements {@link PoolEngine}.
+   * Registered through the test resources.
+   */
+  public static class PlainEngine implements PoolEngine {
+
+    private final DbcpPoolEngine delegate = new DbcpPoolEngine();
+
+    public String getName() {
+      return "plain";
+    }
+
+    public void createPool(Config config) {
+      delegate.createPool(config);
+    }
+
+    public Connection getConnection() throws SQLException {
+      return delegate.getConnection();
+    }
+
+    public DataSource getDataSource() {
+      return delegate.getDataSource();
+    }
+
+    public int getActiveConnections() {
+      return delegate.getActiveConnections();
+    }
+
+    public int getIdleConnections() {
+      return delegate.getIdleConnections();
+    }
+
+    public int getMaxActiveConnections() {
+      return delegate.getMaxActiveConnections();
+    }
+
+    public int getMaxIdleConnections() {
+      return delegate.getMaxIdleConnections();
+    }
+
+    public String getStatus() {
+      return delegate.getStatus();
+    }
+
+    public void destroyPool() throws Exception {
+      delegate.destroyPool();
+    }
+  }
+
+  public void testBundledEnginesRegistered() {
+    List names = PoolEngines.getEngineNames();
+    assertTrue("DBCP engine not registered", names.contains(Config.ENGINE_DBCP));
+    assertTrue("dbcon engine not registered", names.contains(Config.ENGINE_DBCON));
+  }
+
+  public void testCreateEngine() {
+    assertTrue(PoolEngines.createEngine("DBCP") instanceof DbcpPoolEngine);
+    PoolEngine first = PoolEngines.createEngine(Config.ENGINE_DBCON);
+    PoolEngine second = PoolEngines.createEngine(Config.ENGINE_DBCON);
+    assertTrue(first instanceof DbConPoolEngine);
+    assertNotSame("Each pool needs its own engine instance", first, second);
+  }
+
+  public void testPlainEngineRunsPool() throws Exception {
+    Config config = Config.createEmptyConfig();
+    config.setName("plainEngineTest");
+    config.setEngine("plain");
+    config.setDriver("org.hsqldb.jdbcDriver");
+    config.setUsername("sa");
+    config.setPassword("");
+    config.setUrl("jdbc:hsqldb:mem:plainengine");
+    config.setValidationQuery("");
+    config.setMaxActive(2);
+    config.setAdaptiveCeiling(4);
+
+    Pool pool = new Pool(config);
+    pool.init();
+    try {
+      assertTrue(pool.getEngine() instanceof PlainEngine);
+      Connection conn = pool.getConnection(Config.PRIORITY_HIGH);
+      assertEquals(1, pool.getActiveConnections());
+      DatabaseUtils.closeDbObject(conn);
+      assertEquals(0, pool.getActiveConnections());
+
+      assertNull(pool.getCircuitBreaker());
+      assertNull(pool.getLoadShedder());
+      assertNull("Engine cannot be resized", pool.getAdaptiveSizer());
+      assertEquals(0, pool.fillToMinIdle());
+      assertTrue(pool.getStatus().indexOf("Circuit breaker") == -1);
+    }
+    finally {
+      pool.destroyPool();
+    }
+  }
+
+  public void testUnknownEngine() {
+    try {
+      PoolEngines.createEngine("unknown");
+      fail("Expected an exception for an unknown engine");
+    }
+    catch (PoolingException e) {
+      // Expected
+    }
+  }
+}
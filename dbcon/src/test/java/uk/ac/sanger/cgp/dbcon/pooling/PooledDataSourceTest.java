@@ -0,0 +1,122 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.singletons.SingletonDataSource;
+import uk.ac.sanger.cgp.dbcon.support.Constants;
+import uk.ac.sanger.cgp.dbcon.support.DatabaseSupport;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Tests the data source's handling of its cached pool
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class PooledDataSourceTest extends TestCase {
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    DatabaseSupport.createDatabase();
+  }
+
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    DatabaseSupport.destroyDatabase();
+  }
+
+  public void testEqualityDoesNotCreatePools() {
+    PooledDataSource first = new PooledDataSource(Constants.DB_SYNONYM);
+    PooledDataSource second = new PooledDataSource(Constants.DB_SYNONYM);
+
+    assertEquals(first, second);
+    assertEquals(first.hashCode(), second.hashCode());
+    assertFalse(first.equals(new PooledDataSource(Constants.DBCON_ENGINE_DB_SYNONYM)));
+    assertFalse(first.equals(new SingletonDataSource(Constants.DB_SYNONYM)));
+    assertTrue("Equality checks loaded a pool", Pools.getInstance()
+        .getLoadedDbNames().isEmpty());
+  }
+
+  public void testPriorityDataSource() throws Exception {
+    // testDbDbcon reserves one of its three connections from low priority
+    PooledDataSource low = new PooledDataSource(
+        Constants.DBCON_ENGINE_DB_SYNONYM, Config.PRIORITY_LOW);
+    PooledDataSource normal = new PooledDataSource(
+        Constants.DBCON_ENGINE_DB_SYNONYM);
+    assertFalse(low.equals(normal));
+
+    List borrowed = new ArrayList();
+    try {
+      borrowed.add(low.getConnection());
+      borrowed.add(low.getConnection());
+      try {
+        low.getConnection();
+        fail("Low priority should not take the reserved connection");
+      }
+      catch (SQLException e) {
+        // Expected
+      }
+      borrowed.add(normal.getConnection());
+    }
+    finally {
+      for (int i = 0; i < borrowed.size(); i++) {
+        DatabaseUtils.closeDbObject((Connection) borrowed.get(i));
+      }
+    }
+  }
+
+  public void testPoolReloadedAfterDestroy() throws Exception {
+    PooledDataSource ds = new PooledDataSource(Constants.DB_SYNONYM);
+    DatabaseUtils.closeDbObject(ds.getConnection());
+    Pool original = Pools.getInstance().getLoadedPool(Constants.DB_SYNONYM);
+    assertNotNull(original);
+
+    long generation = Pools.getInstance().getGeneration();
+    Pools.getInstance().destroyNamedPool(Constants.DB_SYNONYM);
+    assertTrue("Destroying a pool did not move the generation on",
+        Pools.getInstance().getGeneration() > generation);
+
+    Connection conn = ds.getConnection();
+    try {
+      assertNotNull(conn);
+      Pool replacement = Pools.getInstance().getLoadedPool(Constants.DB_SYNONYM);
+      assertNotNull("Data source did not load a new pool", replacement);
+      assertNotSame(original, replacement);
+      assertEquals(1, replacement.getActiveConnections());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(conn);
+    }
+  }
+}
@@ -26,17 +26,25 @@
 
 package uk.ac.sanger.cgp.dbcon.pooling;
 
+import java.sql.Connection;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.dbcp.DelegatingConnection;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.core.AbstractPools;
+import uk.ac.sanger.cgp.dbcon.core.WarmUpReport;
 import uk.ac.sanger.cgp.dbcon.support.DatabaseSupport;
 import uk.ac.sanger.cgp.dbcon.support.Constants;
 import uk.ac.sanger.cgp.dbcon.support.ThreadHelpers;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
 
 /**
  * Contains tests which refer back to the Pools object
@@ -97,6 +105,213 @@ public class PoolsTest extends TestCase {
 		assertEquals(expected, actual);
 	}
 
+	/**
+	 * Looking up a loaded pool must never create one
+	 */
+	public void testGetLoadedPool() {
+		assertNull("No pool should have been loaded yet",
+				Pools.getInstance().getLoadedPool(Constants.DB_SYNONYM));
+		assertNull("getLoadedPool created a pool", getFirstStringFromGetLoadedDbNames());
+
+		Pool pool = Pools.getInstance().getPool(Constants.DB_SYNONYM);
+		assertSame(pool, Pools.getInstance().getLoadedPool(Constants.DB_SYNONYM));
+	}
+
+	/**
+	 * The connection opened to validate the URL should become the first
+	 * pooled connection for both engines
+	 */
+	public void testProbeConnectionAdopted() {
+		String[] names = new String[]{Constants.DB_SYNONYM, Constants.DBCON_ENGINE_DB_SYNONYM};
+		for(int i=0; i<names.length; i++) {
+			Pool pool = Pools.getInstance().getPool(names[i]);
+			assertEquals("Probe connection was not adopted by "+names[i], 1, pool.getIdleConnections());
+			assertEquals(0, pool.getActiveConnections());
+		}
+	}
+
+	/**
+	 * Warming should fill pools to their min idle size and record failures
+	 * without affecting the other synonyms
+	 */
+	public void testWarm() {
+		String unknown = "noSuchSynonym";
+		WarmUpReport report = Pools.getInstance().warm(Arrays.asList(new String[]{
+				"anotherTestDb", Constants.DBCON_ENGINE_DB_SYNONYM, unknown}));
+
+		assertEquals(3, report.getSynonyms().size());
+		assertTrue(report.hasFailures());
+		assertEquals(Arrays.asList(new String[]{unknown}), report.getFailedSynonyms());
+		assertNotNull(report.getFailure(unknown));
+		assertTrue(report.getTime("anotherTestDb") >= 0);
+
+		assertEquals("Pool was not filled to min idle", 2,
+				Pools.getInstance().getIdleConnections("anotherTestDb"));
+		assertEquals("Only one connection beyond the adopted probe was needed", 1,
+				report.getConnectionsOpened("anotherTestDb"));
+		assertEquals(1, Pools.getInstance().getIdleConnections(Constants.DBCON_ENGINE_DB_SYNONYM));
+	}
+
+	/**
+	 * Metrics, status and destroy calls must not load pools which are not
+	 * already in use
+	 */
+	public void testMetricsDoNotCreatePools() {
+		Pools pools = Pools.getInstance();
+		String name = Constants.DB_SYNONYM;
+		assertEquals(-1, pools.getActiveConnections(name));
+		assertEquals(-1, pools.getIdleConnections(name));
+		assertEquals(-1, pools.getMaxActiveConnections(name));
+		assertEquals(-1, pools.getMaxIdleConnections(name));
+		assertFalse(pools.isPoolInitalised(name));
+		pools.poolStatus(name);
+		pools.destroyNamedPool(name);
+		pools.destroyAllPools();
+		assertNull("A pool was created by a metrics or destroy call", getFirstStringFromGetLoadedDbNames());
+
+		pools.getPool(name);
+		assertTrue(pools.isPoolInitalised(name));
+		assertEquals(0, pools.getActiveConnections(name));
+	}
+
+	/**
+	 * Connections borrowed from the DBCP engine must not give borrowers the
+	 * pooled physical connection while the pool can still find its tracker
+	 */
+	public void testDbcpHidesUnderlyingConnection() throws Exception {
+		Pool pool = Pools.getInstance().getPool(Constants.DB_SYNONYM);
+		Connection conn = pool.getConnection();
+		try {
+			assertFalse(conn instanceof DelegatingConnection);
+			assertSame(conn, conn.unwrap(Connection.class));
+			assertNotNull(StateTrackingConnection.getTracker(conn));
+		}
+		finally {
+			DatabaseUtils.closeDbObject(conn);
+		}
+		assertEquals(0, pool.getActiveConnections());
+	}
+
+	/**
+	 * Closing the connection a statement leads back to must return the
+	 * borrowed connection to the pool rather than close the physical one
+	 */
+	public void testStatementConnectionCloseReturnsToPool() throws Exception {
+		String[] names = new String[]{Constants.DB_SYNONYM, Constants.DBCON_ENGINE_DB_SYNONYM};
+		for (int i = 0; i < names.length; i++) {
+			Pool pool = Pools.getInstance().getPool(names[i]);
+			for (int j = 0; j < 4; j++) {
+				Connection conn = pool.getConnection();
+				conn.createStatement().getConnection().close();
+				assertTrue(names[i] + " connection should be closed", conn.isClosed());
+			}
+			assertEquals(names[i] + " connections should all be returned", 0, pool.getActiveConnections());
+			assertTrue(names[i] + " connections should be kept idle", pool.getIdleConnections() > 0);
+		}
+	}
+
+	/**
+	 * All loaded pools are destroyed and removed
+	 */
+	public void testDestroyAllLoadedPools() {
+		Pool first = Pools.getInstance().getPool(Constants.DB_SYNONYM);
+		Pools.getInstance().getPool(Constants.DBCON_ENGINE_DB_SYNONYM);
+		assertEquals(2, Pools.getInstance().getLoadedDbNames().size());
+
+		Pools.getInstance().destroyAllPools();
+		assertEquals(0, Pools.getInstance().getLoadedDbNames().size());
+		assertNotSame("Destroyed pool was handed out again", first,
+				Pools.getInstance().getPool(Constants.DB_SYNONYM));
+	}
+
+	/**
+	 * Threads racing to load the same synonym must all be given the one pool
+	 */
+	public void testSingleFlightInitialisation() throws Exception {
+		final Pool[] results = new Pool[THREADS];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for(int i=0; i<THREADS; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						results[index] = Pools.getInstance().getPool(Constants.DB_SYNONYM);
+					}
+					catch(InterruptedException e) {
+						//Leaves the result as null
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for(int i=0; i<THREADS; i++) {
+			threads[i].join();
+		}
+
+		for(int i=0; i<THREADS; i++) {
+			assertNotNull("Thread "+i+" did not get a pool", results[i]);
+			assertSame("Thread "+i+" was given a different pool", results[0], results[i]);
+		}
+	}
+
+	/**
+	 * A pool destroyed whilst it is still being created must not be handed to
+	 * the caller creating it; that caller has to end up with a live pool which
+	 * is registered under the synonym
+	 */
+	public void testDestroyDuringInitialisation() throws Exception {
+		final CountDownLatch creating = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final AbstractPools pools = new AbstractPools() {
+			public Config getConfig(String name) {
+				if(creating.getCount() > 0) {
+					creating.countDown();
+					try {
+						proceed.await();
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return super.getConfig(name);
+			}
+		};
+		final Pool[] result = new Pool[1];
+		Thread creator = new Thread() {
+			public void run() {
+				result[0] = pools.getPool(Constants.DB_SYNONYM);
+			}
+		};
+		Thread destroyer = new Thread() {
+			public void run() {
+				pools.destroyNamedPool(Constants.DB_SYNONYM);
+			}
+		};
+
+		try {
+			creator.start();
+			creating.await();
+			destroyer.start();
+			while(pools.getGeneration() == 0) {
+				Thread.sleep(5);
+			}
+			proceed.countDown();
+			creator.join();
+			destroyer.join();
+
+			assertNotNull("Creator was not given a pool", result[0]);
+			assertSame("Creator was given a pool which is not registered", pools.getLoadedPool(Constants.DB_SYNONYM), result[0]);
+			assertNotNull("Creator was given a destroyed pool", result[0].getDataSource());
+		}
+		finally {
+			proceed.countDown();
+			pools.destroyAllPools();
+		}
+	}
+
 	/**
 	 * Checks that the default parser detected is actually searching through
 	 * all potential names
@@ -0,0 +1,188 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Checks routing of read-only connections to a pool's read URLs
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ReadReplicasTest extends TestCase {
+
+  private static final String PRIMARY_URL = "jdbc:hsqldb:mem:readprimary";
+
+  private static final String REPLICA_ONE_URL = "jdbc:hsqldb:mem:replica1";
+
+  private static final String REPLICA_TWO_URL = "jdbc:hsqldb:mem:replica2";
+
+  private static final String BAD_URL = "jdbc:nosuchdriver:replica";
+
+  private Pool pool = null;
+
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    if (pool != null) {
+      pool.destroyPool();
+    }
+  }
+
+  private Config createConfig(String[] readUrls) {
+    Config config = Config.createEmptyConfig();
+    config.setName("readReplicaTest");
+    config.setEngine(Config.ENGINE_DBCON);
+    config.setDriver("org.hsqldb.jdbcDriver");
+    config.setUsername("sa");
+    config.setPassword("");
+    config.setUrl(PRIMARY_URL);
+    config.setMaxActive(5);
+    config.setMaxIdle(5);
+    config.setValidationQuery("");
+    config.setReadUrls(Arrays.asList(readUrls));
+    return config;
+  }
+
+  private Pool createPool(Config config) {
+    pool = new Pool(config);
+    pool.init();
+    return pool;
+  }
+
+  public void testLeastActiveSpreadsReads() throws Exception {
+    createPool(createConfig(new String[] { REPLICA_ONE_URL, REPLICA_TWO_URL }));
+
+    Connection first = pool.getReadOnlyConnection();
+    Connection second = pool.getReadOnlyConnection();
+    try {
+      assertTrue("Connection should be read-only", first.isReadOnly());
+      assertTrue("Connection should be read-only", second.isReadOnly());
+      assertFalse("Reads should go to different replicas", first.getMetaData()
+          .getURL().equals(second.getMetaData().getURL()));
+      assertEquals(2, pool.getReadReplicas().getActiveConnections());
+      assertEquals("Main pool should not have been used", 0, pool
+          .getActiveConnections());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(first);
+      DatabaseUtils.closeDbObject(second);
+    }
+  }
+
+  public void testLatencyBalancing() throws Exception {
+    Config config = createConfig(new String[] { REPLICA_ONE_URL, REPLICA_TWO_URL });
+    config.setReadBalancing(Config.READ_LATENCY);
+    createPool(config);
+
+    for (int i = 0; i < 10; i++) {
+      Connection conn = pool.getReadOnlyConnection();
+      String url = conn.getMetaData().getURL();
+      DatabaseUtils.closeDbObject(conn);
+      assertTrue("Read went to " + url, url.equals(REPLICA_ONE_URL)
+          || url.equals(REPLICA_TWO_URL));
+    }
+    assertEquals(0, pool.getReadReplicas().getActiveConnections());
+  }
+
+  public void testUnavailableReplicaSkipped() throws Exception {
+    createPool(createConfig(new String[] { BAD_URL, REPLICA_ONE_URL }));
+
+    for (int i = 0; i < 3; i++) {
+      Connection conn = pool.getReadOnlyConnection();
+      assertEquals(REPLICA_ONE_URL, conn.getMetaData().getURL());
+      DatabaseUtils.closeDbObject(conn);
+    }
+  }
+
+  public void testFallBackToMainPool() throws Exception {
+    createPool(createConfig(new String[] { BAD_URL }));
+
+    Connection conn = pool.getReadOnlyConnection();
+    try {
+      assertEquals("Read should have gone to the main pool", PRIMARY_URL, conn
+          .getMetaData().getURL());
+      assertTrue("Fallback connection should be read-only", conn.isReadOnly());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(conn);
+    }
+  }
+
+  public void testAllReplicasDown() throws Exception {
+    createPool(createConfig(new String[] { BAD_URL, BAD_URL + "2" }));
+
+    Connection conn = pool.getReadOnlyConnection();
+    try {
+      assertEquals(PRIMARY_URL, conn.getMetaData().getURL());
+      assertTrue("Fallback connection should be read-only", conn.isReadOnly());
+      Statement st = conn.createStatement();
+      try {
+        st.execute("CREATE TABLE READ_ONLY_FALLBACK(ID INTEGER)");
+        fail("Should not be able to write through a read-only connection");
+      }
+      catch (SQLException e) {
+        // Expected
+      }
+      finally {
+        DatabaseUtils.closeDbObject(st);
+      }
+    }
+    finally {
+      DatabaseUtils.closeDbObject(conn);
+    }
+
+    Connection writer = pool.getConnection();
+    try {
+      assertFalse("Read-only should be switched off on return", writer
+          .isReadOnly());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(writer);
+    }
+  }
+
+  public void testUnknownBalancing() {
+    Config config = createConfig(new String[] { REPLICA_ONE_URL });
+    config.setReadBalancing("random");
+    try {
+      new ReadReplicas(config);
+      fail("Unknown read balancing should be rejected");
+    }
+    catch (PoolingException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.exceptions.PoolingException;
+
+/**
+ * Checks which errors the default {@link FatalErrorClassifier} treats as the
+ * database going away
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class SqlStateFatalErrorClassifierTest extends TestCase {
+
+  public void testSqlStates() {
+    FatalErrorClassifier classifier = new SqlStateFatalErrorClassifier();
+    assertTrue(classifier.isFatal(new SQLException("Link failure", "08S01")));
+    assertTrue(classifier.isFatal(new SQLException("No connection", "08003")));
+    assertTrue(classifier.isFatal(new SQLException("Shutting down", "57P01")));
+    assertFalse("Syntax errors are not fatal", classifier
+        .isFatal(new SQLException("Bad column", "42S22")));
+    assertFalse("No SQLState is not fatal", classifier
+        .isFatal(new SQLException("Unknown")));
+  }
+
+  public void testVendorCodesFollowUrl() {
+    SQLException gone = new SQLException("Server has gone away", null, 2006);
+    SQLException eof = new SQLException("End of file on channel", null, 3113);
+
+    FatalErrorClassifier mysql = new SqlStateFatalErrorClassifier(
+        "jdbc:mysql://localhost/test");
+    assertTrue(mysql.isFatal(gone));
+    assertFalse(mysql.isFatal(eof));
+
+    FatalErrorClassifier oracle = new SqlStateFatalErrorClassifier(
+        "jdbc:oracle:thin:@localhost:1521:test");
+    assertTrue(oracle.isFatal(eof));
+    assertFalse(oracle.isFatal(gone));
+
+    FatalErrorClassifier other = new SqlStateFatalErrorClassifier(
+        "jdbc:hsqldb:mem:test");
+    assertFalse(other.isFatal(gone));
+    assertFalse(other.isFatal(eof));
+  }
+
+  public void testChainedExceptions() {
+    FatalErrorClassifier classifier = new SqlStateFatalErrorClassifier();
+    SQLException batch = new SQLException("Batch failed", "HY000");
+    batch.setNextException(new SQLException("Connection reset", "08006"));
+    assertTrue("Next exception should be checked", classifier.isFatal(batch));
+
+    SQLException wrapped = new SQLException("Wrapped", "HY000");
+    wrapped.initCause(new SQLException("Connection reset", "08006"));
+    assertTrue("Cause should be checked", classifier.isFatal(wrapped));
+  }
+
+  public void testForConfig() {
+    Config config = Config.createEmptyConfig();
+    config.setName("classifierTest");
+    config.setUrl("jdbc:hsqldb:mem:classifier");
+    assertTrue(SqlStateFatalErrorClassifier.forConfig(config)
+        instanceof SqlStateFatalErrorClassifier);
+
+    config.setFatalErrorClassifier(NeverFatal.class.getName());
+    assertTrue(SqlStateFatalErrorClassifier.forConfig(config)
+        instanceof NeverFatal);
+
+    config.setFatalErrorClassifier("uk.ac.sanger.cgp.dbcon.NoSuchClassifier");
+    try {
+      SqlStateFatalErrorClassifier.forConfig(config);
+      fail("An unknown classifier class should be rejected");
+    }
+    catch (PoolingException e) {
+      // Expected
+    }
+  }
+
+  public static class NeverFatal implements FatalErrorClassifier {
+    public boolean isFatal(SQLException e) {
+      return false;
+    }
+  }
+}
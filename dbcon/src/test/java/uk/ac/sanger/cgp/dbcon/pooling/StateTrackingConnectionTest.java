@@ -0,0 +1,209 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Checks that {@link StateTrackingConnection} only sends transaction control
+ * calls to the driver when they change something
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class StateTrackingConnectionTest extends TestCase {
+
+  private RoundTripStatistics statistics;
+
+  private Connection physical;
+
+  private Connection conn;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    Class.forName("org.hsqldb.jdbcDriver");
+    statistics = new RoundTripStatistics();
+    physical = DriverManager.getConnection("jdbc:hsqldb:mem:tracking", "sa", "");
+    conn = StateTrackingConnection.wrap(physical, statistics,
+        Config.RESET_IF_DIRTY);
+  }
+
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    DatabaseUtils.closeDbObject(conn);
+  }
+
+  public void testBorrowSettingsAreLocal() throws Exception {
+    DatabaseUtils.connectionSettings(conn);
+    assertFalse("Auto-commit should be off", conn.getAutoCommit());
+    assertTrue("Driver should not have been told yet", physical.getAutoCommit());
+    assertEquals(1, statistics.getAutoCommitCalls());
+    assertEquals(0, statistics.getAutoCommitCallsSent());
+    assertEquals(1, statistics.getRollbackCalls());
+    assertEquals(0, statistics.getRollbackCallsSent());
+    assertEquals(2, statistics.getRoundTripsAvoided());
+  }
+
+  public void testToggleIsNeverSent() throws Exception {
+    conn.setAutoCommit(false);
+    conn.setAutoCommit(true);
+    conn.setReadOnly(false);
+    assertEquals("No calls should have reached the driver", 3, statistics
+        .getRoundTripsAvoided());
+  }
+
+  public void testStatementAppliesStateAndDirties() throws Exception {
+    DatabaseUtils.connectionSettings(conn);
+    Statement st = conn.createStatement();
+    try {
+      st.execute("CREATE MEMORY TABLE TRACKING(ID INTEGER)");
+      assertFalse("Driver auto-commit should now be off", physical
+          .getAutoCommit());
+      assertSame("Statement should hand back the tracking connection", conn, st
+          .getConnection());
+    }
+    finally {
+      DatabaseUtils.closeDbObject(st);
+    }
+
+    PreparedStatement ps = conn.prepareStatement("INSERT INTO TRACKING VALUES(?)");
+    try {
+      ps.setInt(1, 1);
+      ps.executeUpdate();
+    }
+    finally {
+      DatabaseUtils.closeDbObject(ps);
+    }
+    conn.rollback();
+    assertEquals("Dirty rollback should be sent", 1, statistics
+        .getRollbackCallsSent());
+
+    conn.rollback();
+    conn.commit();
+    assertEquals("Clean rollbacks should be skipped", 3, statistics
+        .getRollbackCalls());
+    assertEquals(1, statistics.getRollbackCallsSent());
+    assertEquals("Clean commit should be skipped", 0, statistics
+        .getCommitCallsSent());
+  }
+
+  public void testEnablingAutoCommitCommitsWork() throws Exception {
+    conn.setAutoCommit(false);
+    Statement st = conn.createStatement();
+    try {
+      st.execute("CREATE MEMORY TABLE TRACKING_COMMIT(ID INTEGER)");
+      st.executeUpdate("INSERT INTO TRACKING_COMMIT VALUES(1)");
+    }
+    finally {
+      DatabaseUtils.closeDbObject(st);
+    }
+    conn.setAutoCommit(true);
+    assertTrue("Driver should have been switched back straight away", physical
+        .getAutoCommit());
+    assertEquals(2, statistics.getAutoCommitCallsSent());
+  }
+
+  public void testCountsSurviveClose() throws Exception {
+    conn.setAutoCommit(false);
+    conn.rollback();
+    conn.close();
+    assertEquals("Counts should be kept once the connection is closed", 2,
+        statistics.getRoundTripsAvoided());
+  }
+
+  public void testResetPolicies() throws Exception {
+    StateTrackingConnection tracker = StateTrackingConnection.getTracker(conn);
+    conn.setAutoCommit(false);
+    tracker.reset();
+    assertEquals("Clean connection should not be rolled back", 0, statistics
+        .getRollbackCallsSent());
+
+    Connection always = StateTrackingConnection.wrap(DriverManager
+        .getConnection("jdbc:hsqldb:mem:tracking", "sa", ""), statistics,
+        Config.RESET_ALWAYS);
+    try {
+      always.setAutoCommit(false);
+      StateTrackingConnection.getTracker(always).reset();
+      assertEquals("Always should roll back a clean connection", 1,
+          statistics.getRollbackCallsSent());
+    }
+    finally {
+      always.close();
+    }
+
+    Connection never = StateTrackingConnection.wrap(DriverManager
+        .getConnection("jdbc:hsqldb:mem:tracking", "sa", ""), statistics,
+        Config.RESET_NEVER);
+    try {
+      never.setAutoCommit(false);
+      Statement st = never.createStatement();
+      st.execute("CREATE MEMORY TABLE TRACKING_NEVER(ID INTEGER)");
+      st.close();
+      StateTrackingConnection neverTracker = StateTrackingConnection
+          .getTracker(never);
+      neverTracker.setReturning(true);
+      never.rollback();
+      never.setAutoCommit(true);
+      neverTracker.setReturning(false);
+      assertTrue("Never should leave the work outstanding", neverTracker
+          .isDirty());
+      assertFalse("Returning should not switch auto-commit on", never
+          .getAutoCommit());
+      assertEquals(1, statistics.getRollbackCallsSent());
+    }
+    finally {
+      never.close();
+    }
+  }
+
+  public void testStatementLeadsBackToHandle() throws Exception {
+    Statement st = conn.createStatement();
+    assertSame("Without a handle the tracker is the connection", conn, st
+        .getConnection());
+
+    Connection handle = ProxyConnection.newInstance(conn);
+    assertSame(handle, st.getConnection());
+    handle.close();
+    assertSame("Returned handle should be forgotten", conn, st
+        .getConnection());
+    st.close();
+  }
+
+  public void testCloseDbObjectLeavesResetToPool() throws Exception {
+    conn.setAutoCommit(false);
+    DatabaseUtils.closeDbObject(conn);
+    assertEquals("No rollback should have been requested", 0, statistics
+        .getRollbackCalls());
+  }
+}
@@ -0,0 +1,187 @@
+/*
+##########################################################################
+#                          COPYRIGHT NOTICE                              #
+##########################################################################
+#                                                                        #
+# Copyright (c) 2006 Genome Research Ltd.                                #
+# Author: The Cancer Genome Project IT group cancerit@sanger.ac.uk       #
+#                                                                        #
+# THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       #
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF     #
+# MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. #
+# IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY   #
+# CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,   #
+# TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE      #
+# SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                 #
+#                                                                        #
+# This code is free software; you can redistribute it and/or modify it   #
+# under the terms of the BSD License.                                    #
+#                                                                        #
+# Any redistribution or derivation in whole or in part including any     #
+# substantial portion of this code must include this copyright and       #
+# permission notice.                                                     #
+#                                                                        #
+##########################################################################
+*/
+
+package uk.ac.sanger.cgp.dbcon.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+import uk.ac.sanger.cgp.dbcon.config.Config;
+import uk.ac.sanger.cgp.dbcon.util.DatabaseUtils;
+
+/**
+ * Checks switching between the primary and backup URL in {@link UrlFailover}
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class UrlFailoverTest extends TestCase {
+
+  private static final String PRIMARY_URL = "jdbc:hsqldb:mem:primary";
+
+  private static final String BACKUP_URL = "jdbc:hsqldb:mem:backup";
+
+  private static final String BAD_URL = "jdbc:nosuchdriver:primary";
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    Class.forName("org.hsqldb.jdbcDriver");
+  }
+
+  private Config createConfig(String url, String workingUrl) {
+    Config config = Config.createEmptyConfig();
+    config.setName("failoverTest");
+    config.setDriver("org.hsqldb.jdbcDriver");
+    config.setUsername("sa");
+    config.setPassword("");
+    config.setUrl(url);
+    config.setBackupUrl(BACKUP_URL);
+    config.setWorkingUrl(workingUrl);
+    config.setFailoverThreshold(2);
+    return config;
+  }
+
+  public void testFailoverAfterThreshold() throws Exception {
+    Config config = createConfig(BAD_URL, BAD_URL);
+    UrlFailover failover = new UrlFailover(config);
+    try {
+      try {
+        failover.openConnection();
+        fail("First failure should not switch to the backup URL");
+      }
+      catch (SQLException e) {
+        // Expected
+      }
+      assertFalse(failover.isFailedOver());
+
+      Connection conn = failover.openConnection();
+      DatabaseUtils.closeDbObject(conn);
+      assertTrue("Should have switched to the backup URL", failover
+          .isFailedOver());
+      assertEquals(BACKUP_URL, failover.getCurrentUrl());
+      assertEquals(BACKUP_URL, config.getWorkingUrl());
+      assertEquals(1, failover.getFailovers());
+      assertEquals(1, failover.getGeneration().get());
+    }
+    finally {
+      failover.close();
+    }
+  }
+
+  public void testNoFailoverWithoutBackup() throws Exception {
+    Config config = createConfig(BAD_URL, BAD_URL);
+    config.setBackupUrl("");
+    UrlFailover failover = new UrlFailover(config);
+    for (int i = 0; i < 3; i++) {
+      try {
+        failover.openConnection();
+        fail("Connection to a bad URL should fail");
+      }
+      catch (SQLException e) {
+        // Expected
+      }
+    }
+    assertFalse(failover.isFailedOver());
+    assertEquals(0, failover.getFailovers());
+  }
+
+  public void testFailbackWhenPrimaryReturns() throws Exception {
+    Config config = createConfig(PRIMARY_URL, BACKUP_URL);
+    config.setFailbackInterval(50);
+    UrlFailover failover = new UrlFailover(config);
+    try {
+      assertTrue("Pool created on the backup URL should start failed over",
+          failover.isFailedOver());
+      Thread.sleep(500);
+      assertFalse("Should have switched back to the primary URL", failover
+          .isFailedOver());
+      assertEquals(PRIMARY_URL, config.getWorkingUrl());
+      assertEquals(1, failover.getFailbacks());
+    }
+    finally {
+      failover.close();
+    }
+  }
+
+  public void testStandbyConnectionsUsedOnFailover() throws Exception {
+    Config config = createConfig(BAD_URL, BAD_URL);
+    config.setFailoverThreshold(1);
+    config.setFailbackInterval(50);
+    config.setStandbyConnections(2);
+    UrlFailover failover = new UrlFailover(config);
+    try {
+      Thread.sleep(300);
+      assertEquals("Standby connections should have been opened", 2, failover
+          .getStandbyConnections());
+
+      DatabaseUtils.closeDbObject(failover.openConnection());
+      assertTrue(failover.isFailedOver());
+      assertEquals("Failover should have used a standby connection", 1,
+          failover.getStandbyUsed());
+      assertEquals(1, failover.getStandbyConnections());
+
+      Thread.sleep(300);
+      assertEquals("Standby should not be topped up while failed over", 1,
+          failover.getStandbyConnections());
+    }
+    finally {
+      failover.close();
+    }
+    assertEquals("Standby connections should be closed with the failover", 0,
+        failover.getStandbyConnections());
+  }
+
+  public void testSwitchRetiresConnections() throws Exception {
+    Config config = createConfig(BAD_URL, BAD_URL);
+    UrlFailover failover = new UrlFailover(config);
+    try {
+      Connection physical = DatabaseUtils.getValidConnection(createConfig(
+          BACKUP_URL, BACKUP_URL));
+      Connection tracked = StateTrackingConnection.wrap(physical,
+          new RoundTripStatistics(), Config.RESET_ALWAYS);
+      StateTrackingConnection tracker = StateTrackingConnection
+          .getTracker(tracked);
+      tracker.retireOnChange(failover.getGeneration());
+      assertFalse(tracker.isRetired());
+
+      for (int i = 0; i < 2; i++) {
+        try {
+          DatabaseUtils.closeDbObject(failover.openConnection());
+        }
+        catch (SQLException e) {
+          // The first attempt fails
+        }
+      }
+      assertTrue("Connection opened before the switch should be retired",
+          tracker.isRetired());
+      tracked.close();
+    }
+    finally {
+      failover.close();
+    }
+  }
+}
@@ -67,4 +67,5 @@ public class Constants {
 	
 	public static final String DB_SYNONYM = "testDb";
   public static final String DB_URL = "jdbc:hsqldb:mem:test";
+  public static final String DBCON_ENGINE_DB_SYNONYM = "testDbDbcon";
 }